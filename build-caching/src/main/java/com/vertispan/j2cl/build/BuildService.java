@@ -35,7 +35,11 @@ public class BuildService {
     // all registered project+task items that might need to be built, and their inputs
     private final Map<Input, CollectedTaskInputs> inputs = new HashMap<>();
 
-    // hashes of each file in each project, updated under lock
+    // changes reported since the last build started, written to without locking so that reporting changes
+    // never waits for a build to finish
+    private final ChangeJournal changeJournal = new ChangeJournal();
+
+    // hashes of each file in each project, only read or updated by requestBuild while holding the lock
     private final Map<Project, Map<Path, DiskCache.CacheEntry>> currentProjectSourceHash = new HashMap<>();
 
     private BlockingBuildListener prevBuild;
@@ -146,9 +150,10 @@ public class BuildService {
     }
 
     /**
-     * Assign the initial hashes for files in the project. Call if there is no watch service enabled.
+     * Assign the initial hashes for files in the project. Call if there is no watch service enabled. This may
+     * be called again before a later build to pick up every change made since, replacing what was known before.
      */
-    public synchronized void initialHashes() {
+    public void initialHashes() {
         // for each project which has sources, hash them
         inputs.keySet().stream()
                 .map(Input::getProject)
@@ -166,25 +171,28 @@ public class BuildService {
                                         throw new IllegalStateException("Two paths in a project had the same file " + a + ", " + b);
                                     }
                             ));
-                    triggerChanges(project, hashes, Collections.emptyMap(), Collections.emptySet());
+                    changeJournal.replaceProject(project, hashes);
                 });
     }
 
     /**
-     * Marks that a file has been created, deleted, or modified in the given project.
+     * Marks that a file has been created, deleted, or modified in the given project. This never blocks, even
+     * if a build is in progress - the change will be seen by the next call to requestBuild().
      */
-    public synchronized void triggerChanges(Project project, Map<Path, DiskCache.CacheEntry> createdFiles, Map<Path, DiskCache.CacheEntry> changedFiles, Set<Path> deletedFiles) {
-        Map<Path, DiskCache.CacheEntry> hashes = currentProjectSourceHash.computeIfAbsent(project, ignore -> new HashMap<>());
-        hashes.keySet().removeAll(deletedFiles);
-        assert hashes.keySet().stream().noneMatch(createdFiles.keySet()::contains) : "File already exists, can't be added " + createdFiles.keySet() + ", " + hashes.keySet();
-        hashes.putAll(createdFiles);
-        assert hashes.keySet().containsAll(changedFiles.keySet()) : "File doesn't exist, can't be modified";
-        hashes.putAll(changedFiles);
+    public void triggerChanges(Project project, Map<Path, DiskCache.CacheEntry> createdFiles, Map<Path, DiskCache.CacheEntry> changedFiles, Set<Path> deletedFiles) {
+        changeJournal.append(project, createdFiles, changedFiles, deletedFiles);
 
         // with all projects updated by this batch, we can rebuild everything -
         // callers will indicate it is time for this with requestBuild()
     }
 
+    /**
+     * Marks that every file in the given source root of the project should be replaced by the given entries,
+     * such as after a rescan when the watcher may have missed events. Like triggerChanges, this never blocks.
+     */
+    public void replaceSourceRoot(Project project, Path sourceRoot, Collection<DiskCache.CacheEntry> entries) {
+        changeJournal.replaceRoot(project, sourceRoot, entries);
+    }
 
     /**
      * Only one build can take place at a time, be sure to stop the previous build before submitting a new one,
@@ -198,7 +206,11 @@ public class BuildService {
             prevBuild.blockUntilFinished();
         }
 
-        // TODO update inputs with the hash changes we've seen
+        // take every change reported so far, anything reported after this point will be part of the next build
+        for (ChangeJournal.Change change : changeJournal.snapshot()) {
+            change.applyTo(currentProjectSourceHash);
+        }
+
         Stream.concat(inputs.keySet().stream(), inputs.values().stream().flatMap(i -> i.getInputs().stream()))
                 .filter(i -> i.getProject().hasSourcesMapped())
                 .filter(i -> i.getOutputType().equals(OutputTypes.INPUT_SOURCES))
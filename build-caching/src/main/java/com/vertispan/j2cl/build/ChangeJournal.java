@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Append-only record of file changes reported for each project, which the watcher can write to from any
+ * thread without waiting for a build to finish. Builds take everything recorded so far in one atomic step,
+ * and replay it on top of the hashes they already know about.
+ *
+ * Internally this is a lock-free stack: appending pushes a new node with a compare-and-set, and taking a
+ * snapshot swaps the whole stack for an empty one, so no change can be both in a snapshot and left behind,
+ * or be lost between the two.
+ */
+class ChangeJournal {
+    /**
+     * A single batch of changes to a project's files.
+     */
+    interface Change {
+        void applyTo(Map<Project, Map<Path, DiskCache.CacheEntry>> projectHashes);
+    }
+
+    private static final class Node {
+        private final Change change;
+        private final Node previous;
+
+        private Node(Change change, Node previous) {
+            this.change = change;
+            this.previous = previous;
+        }
+    }
+
+    private final AtomicReference<Node> head = new AtomicReference<>();
+
+    /**
+     * Records that files were created, modified, or deleted in the given project.
+     */
+    public void append(Project project, Map<Path, DiskCache.CacheEntry> createdFiles, Map<Path, DiskCache.CacheEntry> changedFiles, Set<Path> deletedFiles) {
+        append(projectHashes -> {
+            Map<Path, DiskCache.CacheEntry> hashes = projectHashes.computeIfAbsent(project, ignore -> new HashMap<>());
+            hashes.keySet().removeAll(deletedFiles);
+            assert hashes.keySet().stream().noneMatch(createdFiles.keySet()::contains) : "File already exists, can't be added " + createdFiles.keySet() + ", " + hashes.keySet();
+            hashes.putAll(createdFiles);
+            assert hashes.keySet().containsAll(changedFiles.keySet()) : "File doesn't exist, can't be modified";
+            hashes.putAll(changedFiles);
+        });
+    }
+
+    /**
+     * Records that every file under the given source root of the project should be replaced by the given entries,
+     * for use when individual changes may have been missed and the root had to be scanned again.
+     */
+    public void replaceRoot(Project project, Path root, Collection<DiskCache.CacheEntry> entries) {
+        append(projectHashes -> {
+            Map<Path, DiskCache.CacheEntry> hashes = projectHashes.computeIfAbsent(project, ignore -> new HashMap<>());
+            hashes.values().removeIf(entry -> entry.getAbsoluteParent().equals(root));
+            for (DiskCache.CacheEntry entry : entries) {
+                hashes.put(entry.getSourcePath(), entry);
+            }
+        });
+    }
+
+    /**
+     * Records that the project's files are exactly the given entries, discarding anything known about it before.
+     */
+    public void replaceProject(Project project, Map<Path, DiskCache.CacheEntry> hashes) {
+        append(projectHashes -> projectHashes.put(project, new HashMap<>(hashes)));
+    }
+
+    public void append(Change change) {
+        Node previous;
+        Node next;
+        do {
+            previous = head.get();
+            next = new Node(change, previous);
+        } while (!head.compareAndSet(previous, next));
+    }
+
+    /**
+     * Removes every change recorded so far, and returns them in the order they were appended. Changes appended
+     * while this runs will be part of the next snapshot.
+     */
+    public Deque<Change> snapshot() {
+        Deque<Change> changes = new ArrayDeque<>();
+        for (Node node = head.getAndSet(null); node != null; node = node.previous) {
+            changes.addFirst(node.change);
+        }
+        return changes;
+    }
+}
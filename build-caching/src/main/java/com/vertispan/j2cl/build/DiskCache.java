@@ -317,6 +317,14 @@ public abstract class DiskCache {
      * in a path, and their corresponding hashes.
      */
     public static Collection<CacheEntry> hashContents(Path path) {
+        return hashContents(path, ignore -> true);
+    }
+
+    /**
+     * Like {@link #hashContents(Path)}, but only hashes files whose path relative to the given path is accepted
+     * by the filter, so that files which will be ignored anyway are never read.
+     */
+    public static Collection<CacheEntry> hashContents(Path path, PathMatcher filter) {
         Set<CacheEntry> fileHashes = new HashSet<>();
         if (Files.exists(path)) {
             FileHasher fileHasher = FileHasher.DEFAULT_FILE_HASHER;
@@ -335,6 +343,9 @@ public abstract class DiskCache {
                                     // ignore directories
                                     return FileVisitResult.CONTINUE;
                                 }
+                                if (!filter.matches(path.relativize(file))) {
+                                    return FileVisitResult.CONTINUE;
+                                }
                                 FileHash hash = PathUtils.hash(fileHasher, file);
                                 if (hash == null) {
                                     //file could have been deleted or was otherwise unreadable
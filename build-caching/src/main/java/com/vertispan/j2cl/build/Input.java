@@ -30,6 +30,10 @@ import java.util.stream.Collectors;
  * contents live, so it can be filtered if desired. The files in the contents
  * are already hashed, and each Input instance will filter to just the files it is
  * interested in, and take the hash of the hashes to represent
+ *
+ * Every file in the input is part of the key of the task that asked for it, even if the task
+ * only reads it through filters, unless the only views made of it come from filterOnly(), in
+ * which case only the files matched by those filters are.
  */
 public class Input implements com.vertispan.j2cl.build.task.Input {
     public interface BuildSpecificChanges {
@@ -53,6 +57,10 @@ public class Input implements com.vertispan.j2cl.build.task.Input {
     private final Project project;
     private final String outputType;
 
+    // filters passed to filterOnly(), and whether anything else made the whole input part of the key
+    private final Set<PathMatcher> keyFilters = new HashSet<>();
+    private boolean keyedOnAllFiles;
+
     private TaskOutput contents;
     private BuildSpecificChanges buildSpecificChanges;
 
@@ -72,9 +80,11 @@ public class Input implements com.vertispan.j2cl.build.task.Input {
     private static class FilteredInput implements com.vertispan.j2cl.build.task.Input {
         private final Input wrapped;
         private final PathMatcher[] filters;
-        public FilteredInput(Input input, PathMatcher[] filters) {
+        private final boolean keyOnly;
+        public FilteredInput(Input input, PathMatcher[] filters, boolean keyOnly) {
             this.wrapped = input;
             this.filters = filters;
+            this.keyOnly = keyOnly;
         }
 
         @Override
@@ -84,7 +94,13 @@ public class Input implements com.vertispan.j2cl.build.task.Input {
             // anyway.
             HashSet<PathMatcher> allMatchers = new HashSet<>(Arrays.asList(this.filters));
             allMatchers.addAll(Arrays.asList(filters));
-            return new FilteredInput(wrapped, allMatchers.toArray(filters));
+            return wrapped.view(allMatchers.toArray(new PathMatcher[0]), keyOnly);
+        }
+
+        @Override
+        public com.vertispan.j2cl.build.task.Input filterOnly(PathMatcher... filters) {
+            // the key can't be narrower than the view this came from
+            return filter(filters);
         }
 
         @Override
@@ -116,6 +132,7 @@ public class Input implements com.vertispan.j2cl.build.task.Input {
             return "FilteredInput{" +
                     "wrapped=" + wrapped +
                     ", filters=" + Arrays.toString(filters) +
+                    ", keyOnly=" + keyOnly +
                     '}';
         }
     }
@@ -123,9 +140,27 @@ public class Input implements com.vertispan.j2cl.build.task.Input {
     @Override
     public com.vertispan.j2cl.build.task.Input filter(PathMatcher... filters) {
         if (filters.length == 0) {
+            keyedOnAllFiles = true;
             return this;
         }
-        return new FilteredInput(this, filters);
+        return view(filters, false);
+    }
+
+    @Override
+    public com.vertispan.j2cl.build.task.Input filterOnly(PathMatcher... filters) {
+        if (filters.length == 0) {
+            return filter();
+        }
+        return view(filters, true);
+    }
+
+    private com.vertispan.j2cl.build.task.Input view(PathMatcher[] filters, boolean keyOnly) {
+        if (keyOnly) {
+            keyFilters.addAll(Arrays.asList(filters));
+        } else {
+            keyedOnAllFiles = true;
+        }
+        return new FilteredInput(this, filters, keyOnly);
     }
 
     /**
@@ -164,7 +199,9 @@ public class Input implements com.vertispan.j2cl.build.task.Input {
         out.setProjectKey(getProject().getKey());
         out.setOutputType(getOutputType());
 
-        out.setFileHashes(getFilesAndHashes().stream().collect(Collectors.toMap(
+        out.setFileHashes(getFilesAndHashes().stream()
+                .filter(e -> keyedOnAllFiles || keyFilters.isEmpty() || keyFilters.stream().anyMatch(f -> f.matches(e.getSourcePath())))
+                .collect(Collectors.toMap(
                 e -> e.getSourcePath().toString(),
                 e -> e.getHash().asString()
         )));
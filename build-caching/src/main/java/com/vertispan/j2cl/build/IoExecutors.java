@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates executors for the I/O lane of the {@link TaskScheduler}, where tasks that spend their time copying
+ * or unpacking files run so that they don't occupy a worker that could be running javac, j2cl or closure.
+ */
+public final class IoExecutors {
+    private IoExecutors() {
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for each task when running on a JDK that supports
+     * them (21 and newer), since blocking file operations are cheap there. On older JDKs, returns a fixed
+     * pool of the given size instead.
+     *
+     * @param fallbackThreadCount number of platform threads to use if virtual threads are not available
+     */
+    public static ExecutorService newIoExecutor(int fallbackThreadCount) {
+        // The plugin targets Java 11, so look this up reflectively rather than calling it directly
+        if (!Boolean.getBoolean("j2cl.io.disableVirtualThreads")) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (NoSuchMethodException | IllegalAccessException ignored) {
+                // not available on this JDK, fall through
+            } catch (InvocationTargetException e) {
+                // present but not usable (e.g. preview feature not enabled), fall through
+            }
+        }
+        return Executors.newFixedThreadPool(fallbackThreadCount, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "j2cl-io-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -62,6 +62,7 @@ public class Project implements com.vertispan.j2cl.build.task.Project {
         this.dependencies = dependencies;
     }
 
+    @Override
     public List<String> getSourceRoots() {
         return sourceRoots;
     }
@@ -196,6 +196,82 @@ public class PropertyTrackingConfig implements Config {
                 }, TreeMap::new));
     }
 
+    @Override
+    public List<Chunk> getChunks() {
+        ConfigValueProvider.ConfigNode chunks = config.findNode("chunks");
+        if (chunks == null) {
+            return Collections.emptyList();
+        }
+        return chunks.getChildren().stream()
+                .map(chunk -> {
+                    String name = null;
+                    List<String> entrypoints = Collections.emptyList();
+                    List<String> packages = Collections.emptyList();
+                    List<String> dependencies = Collections.emptyList();
+                    for (ConfigValueProvider.ConfigNode child : chunk.getChildren()) {
+                        switch (child.getName()) {
+                            case "name":
+                                name = useStringConfig(child);
+                                break;
+                            case "entrypoints":
+                                entrypoints = useStringListConfig(child);
+                                break;
+                            case "packages":
+                                packages = useStringListConfig(child);
+                                break;
+                            case "dependencies":
+                                dependencies = useStringListConfig(child);
+                                break;
+                            default:
+                                throw new IllegalStateException("Unrecognized chunk config " + child.getPath());
+                        }
+                    }
+                    if (name == null) {
+                        throw new IllegalStateException("Chunk has no name " + chunk.getPath());
+                    }
+                    return new ChunkConfig(name, entrypoints, packages, dependencies);
+                })
+                .collect(Collectors.toUnmodifiableList());
+    }
+
+    private List<String> useStringListConfig(ConfigValueProvider.ConfigNode node) {
+        return node.getChildren().stream().map(this::useStringConfig).collect(Collectors.toUnmodifiableList());
+    }
+
+    private static class ChunkConfig implements Chunk {
+        private final String name;
+        private final List<String> entrypoints;
+        private final List<String> packages;
+        private final List<String> dependencies;
+
+        private ChunkConfig(String name, List<String> entrypoints, List<String> packages, List<String> dependencies) {
+            this.name = name;
+            this.entrypoints = entrypoints;
+            this.packages = packages;
+            this.dependencies = dependencies;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public List<String> getEntrypoints() {
+            return entrypoints;
+        }
+
+        @Override
+        public List<String> getPackages() {
+            return packages;
+        }
+
+        @Override
+        public List<String> getDependencies() {
+            return dependencies;
+        }
+    }
+
     @Override
     public Map<String, String> getUsedConfigs() {
         return Collections.unmodifiableMap(usedKeys);
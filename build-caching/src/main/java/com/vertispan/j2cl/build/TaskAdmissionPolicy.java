@@ -0,0 +1,309 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.vertispan.j2cl.build.impl.CollectedTaskInputs;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Decides when a task that the scheduler has found to be ready may actually start running, and on which
+ * executor. Without any limits configured, every task is started as soon as it is ready, which is the
+ * same behavior as the scheduler had before this existed.
+ *
+ * Three kinds of limits are supported:
+ * <ul>
+ *     <li>A maximum number of concurrently running tasks per output type, so that for example only two
+ *     closure compiles can run at once, regardless of how many worker threads exist.</li>
+ *     <li>A memory budget, shared by all tasks that are not I/O-bound. Each output type is weighted by the
+ *     largest heap growth recently observed while such a task ran, and a task will wait until its weight fits
+ *     in what remains of the budget. A task is always allowed to start if nothing else holds any of the
+ *     budget, so a single task larger than the budget can still make progress.</li>
+ *     <li>A separate lane for I/O-bound tasks, which are handed to their own executor and are not counted
+ *     against the memory budget.</li>
+ * </ul>
+ *
+ * Memory estimates are coarse - heap usage is sampled when a task starts and when it finishes, so concurrent
+ * tasks and uncollected garbage both inflate the number. This errs towards running fewer heavy tasks at once,
+ * which is what the budget is for. Estimates can be saved to disk so that the next build starts with them.
+ */
+public class TaskAdmissionPolicy {
+    /**
+     * How much an existing estimate shrinks when a smaller value is observed, so that a single unusually large
+     * run doesn't pessimize every later build.
+     */
+    private static final double ESTIMATE_DECAY = 0.9;
+
+    private static final MemoryMXBean MEMORY_BEAN = ManagementFactory.getMemoryMXBean();
+
+    private final Map<String, Integer> concurrencyLimits;
+    private final long memoryBudget;
+    private final Set<String> ioBoundOutputTypes;
+    private final Path estimatesFile;
+
+    private final Map<String, Long> memoryEstimates = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private final Map<String, Integer> running = new HashMap<>();
+    private final List<PendingTask> waiting = new ArrayList<>();
+    private long reservedMemory;
+
+    private static class PendingTask {
+        private final String outputType;
+        private final boolean ioBound;
+        private final boolean helper;
+        private final Executor executor;
+        private final Runnable work;
+        private long reservation;
+
+        private PendingTask(String outputType, boolean ioBound, boolean helper, Executor executor, Runnable work) {
+            this.outputType = outputType;
+            this.ioBound = ioBound;
+            this.helper = helper;
+            this.executor = executor;
+            this.work = work;
+        }
+    }
+
+    /**
+     * Creates a policy that admits every task as soon as it is ready.
+     */
+    public static TaskAdmissionPolicy unrestricted() {
+        return new TaskAdmissionPolicy(Collections.emptyMap(), 0, Collections.emptySet(), null);
+    }
+
+    /**
+     * Parses a memory budget, either as a percentage of the maximum heap size of this JVM (such as {@code 75%}),
+     * or as a size with an optional {@code k}, {@code m} or {@code g} suffix. Null or blank means no budget.
+     *
+     * @throws NumberFormatException if the budget can't be parsed
+     */
+    public static long parseMemoryBudget(String memoryBudget) {
+        if (memoryBudget == null || memoryBudget.isBlank()) {
+            return 0;
+        }
+        String budget = memoryBudget.trim().toLowerCase(Locale.ROOT);
+        if (budget.endsWith("%")) {
+            double percent = Double.parseDouble(budget.substring(0, budget.length() - 1));
+            return (long) (Runtime.getRuntime().maxMemory() * percent / 100);
+        }
+        long multiplier = 1;
+        switch (budget.charAt(budget.length() - 1)) {
+            case 'g':
+                multiplier *= 1024;
+            case 'm':
+                multiplier *= 1024;
+            case 'k':
+                multiplier *= 1024;
+                budget = budget.substring(0, budget.length() - 1);
+        }
+        return Long.parseLong(budget) * multiplier;
+    }
+
+    /**
+     * @param concurrencyLimits maximum number of tasks of each output type that may run at once, output types
+     *                          without an entry are not limited
+     * @param memoryBudget number of bytes of heap that non-I/O-bound tasks may use at once, or zero to disable
+     * @param ioBoundOutputTypes output types which should always run in the I/O lane, in addition to tasks
+     *                           which declare themselves to be I/O-bound
+     * @param estimatesFile file to read and write memory estimates to, or null to keep them only in memory
+     * @throws IllegalArgumentException if a concurrency limit is less than one, or the memory budget is negative,
+     *                                  since tasks held back by either would never be admitted
+     */
+    public TaskAdmissionPolicy(Map<String, Integer> concurrencyLimits, long memoryBudget, Set<String> ioBoundOutputTypes, Path estimatesFile) {
+        concurrencyLimits.forEach((outputType, limit) -> {
+            if (limit == null || limit < 1) {
+                throw new IllegalArgumentException("Concurrency limit for " + outputType + " must be at least 1, but was " + limit);
+            }
+        });
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("Memory budget must not be negative, but was " + memoryBudget);
+        }
+        this.concurrencyLimits = Map.copyOf(concurrencyLimits);
+        this.memoryBudget = memoryBudget;
+        this.ioBoundOutputTypes = Set.copyOf(ioBoundOutputTypes);
+        this.estimatesFile = estimatesFile;
+
+        loadEstimates();
+    }
+
+    /**
+     * Returns true if the given task should be run in the I/O lane rather than on a regular worker, either
+     * because its factory says so, or because its output type was configured to be I/O-bound.
+     */
+    public boolean isIoBound(CollectedTaskInputs task) {
+        return task.getTaskFactory().isIoBound(task.getProject())
+                || ioBoundOutputTypes.contains(task.getTaskFactory().getOutputType());
+    }
+
+    /**
+     * Runs the work on the given executor as soon as the task it represents is admitted by this policy. This
+     * may happen immediately on the calling thread, or later on whichever thread finishes the task that was
+     * holding back this one.
+     */
+    public void execute(CollectedTaskInputs task, Executor executor, Runnable work) {
+        execute(task.getTaskFactory().getOutputType(), isIoBound(task), executor, work);
+    }
+
+    /**
+     * Returns an executor for work that helps the given task, which is already running, to finish sooner. Each
+     * piece of work is admitted as if it were another task of the same output type, so it counts against that
+     * type's concurrency limit and reserves the same memory, but doesn't update the memory estimate, since what
+     * it uses is already measured as part of the task it helps.
+     */
+    public Executor helperExecutor(CollectedTaskInputs task, Executor executor) {
+        String outputType = task.getTaskFactory().getOutputType();
+        boolean ioBound = isIoBound(task);
+        return work -> execute(outputType, ioBound, true, executor, work);
+    }
+
+    void execute(String outputType, boolean ioBound, Executor executor, Runnable work) {
+        execute(outputType, ioBound, false, executor, work);
+    }
+
+    void execute(String outputType, boolean ioBound, boolean helper, Executor executor, Runnable work) {
+        PendingTask pending = new PendingTask(outputType, ioBound, helper, executor, work);
+        List<PendingTask> admitted;
+        synchronized (this) {
+            waiting.add(pending);
+            admitted = admitWaiting();
+        }
+        admitted.forEach(this::start);
+    }
+
+    private void start(PendingTask task) {
+        try {
+            task.executor.execute(() -> {
+                long before = MEMORY_BEAN.getHeapMemoryUsage().getUsed();
+                try {
+                    task.work.run();
+                } finally {
+                    recordEstimate(task, MEMORY_BEAN.getHeapMemoryUsage().getUsed() - before);
+                    release(task);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // executor is shutting down, give back what this task held so nothing else waits on it
+            release(task);
+            throw e;
+        }
+    }
+
+    private void release(PendingTask task) {
+        List<PendingTask> admitted;
+        synchronized (this) {
+            running.merge(task.outputType, -1, Integer::sum);
+            reservedMemory -= task.reservation;
+            admitted = admitWaiting();
+        }
+        admitted.forEach(this::start);
+    }
+
+    /**
+     * Finds all waiting tasks which can now start, in the order they became ready, and reserves what each needs.
+     * Must be called while holding the lock.
+     */
+    private List<PendingTask> admitWaiting() {
+        List<PendingTask> admitted = new ArrayList<>();
+        // once a task is held back by the memory budget, don't let later tasks take that memory, or a large task
+        // could wait indefinitely while smaller ones keep starting
+        boolean memoryBlocked = false;
+        for (Iterator<PendingTask> iterator = waiting.iterator(); iterator.hasNext(); ) {
+            PendingTask task = iterator.next();
+            Integer limit = concurrencyLimits.get(task.outputType);
+            if (limit != null && running.getOrDefault(task.outputType, 0) >= limit) {
+                continue;
+            }
+            long reservation = 0;
+            if (!task.ioBound && memoryBudget > 0) {
+                if (memoryBlocked) {
+                    continue;
+                }
+                // a task estimated to need more than the whole budget takes all of it, and so runs alone
+                reservation = Math.min(memoryEstimates.getOrDefault(task.outputType, 0L), memoryBudget);
+                if (reservedMemory > 0 && reservedMemory + reservation > memoryBudget) {
+                    // helpers are optional, the task they help finishes without them, so they don't hold others back
+                    memoryBlocked = !task.helper;
+                    continue;
+                }
+            }
+            iterator.remove();
+            task.reservation = reservation;
+            reservedMemory += reservation;
+            running.merge(task.outputType, 1, Integer::sum);
+            admitted.add(task);
+        }
+        return admitted;
+    }
+
+    private void recordEstimate(PendingTask task, long observed) {
+        if (task.ioBound || task.helper || observed <= 0) {
+            return;
+        }
+        memoryEstimates.merge(task.outputType, observed, (previous, latest) -> Math.max(latest, (long) (previous * ESTIMATE_DECAY)));
+    }
+
+    private void loadEstimates() {
+        if (estimatesFile == null || !Files.isRegularFile(estimatesFile)) {
+            return;
+        }
+        try (Reader reader = Files.newBufferedReader(estimatesFile, StandardCharsets.UTF_8)) {
+            Map<String, Long> saved = new Gson().fromJson(reader, new TypeToken<Map<String, Long>>(){}.getType());
+            if (saved != null) {
+                memoryEstimates.putAll(saved);
+            }
+        } catch (IOException | RuntimeException ignored) {
+            // estimates are only advisory, start over if they can't be read
+        }
+    }
+
+    /**
+     * Writes the current memory estimates to disk, if a file was provided, so that later builds can use them.
+     */
+    public void saveEstimates() throws IOException {
+        if (estimatesFile == null || memoryEstimates.isEmpty()) {
+            return;
+        }
+        Files.createDirectories(estimatesFile.getParent());
+        Path tmp = Files.createTempFile(estimatesFile.getParent(), estimatesFile.getFileName().toString(), ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            new Gson().toJson(new TreeMap<>(memoryEstimates), writer);
+        }
+        Files.move(tmp, estimatesFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
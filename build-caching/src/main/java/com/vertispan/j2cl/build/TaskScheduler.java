@@ -24,6 +24,7 @@ import com.vertispan.j2cl.build.task.TaskContext;
 
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -55,6 +56,8 @@ import static com.vertispan.j2cl.build.task.ChangedCachedPath.ChangeType.REMOVED
  */
 public class TaskScheduler {
     private final Executor executor;
+    private final Executor ioExecutor;
+    private final TaskAdmissionPolicy admissionPolicy;
     private final DiskCache diskCache;
     private final LocalProjectBuildCache buildCache;
     private final BuildLog buildLog;
@@ -81,7 +84,24 @@ public class TaskScheduler {
      * @param buildLog log to write details to about work being performed
      */
     public TaskScheduler(Executor executor, DiskCache diskCache, LocalProjectBuildCache buildCache, BuildLog buildLog) {
+        this(executor, executor, TaskAdmissionPolicy.unrestricted(), diskCache, buildCache, buildLog);
+    }
+
+    /**
+     * Creates a scheduler which consults the given policy before starting each task, and which runs
+     * tasks the policy considers to be I/O-bound on a separate executor.
+     *
+     * @param executor executor to submit work to, to be performed off thread
+     * @param ioExecutor executor to submit I/O-bound work to
+     * @param admissionPolicy policy deciding when ready work may start
+     * @param diskCache cache to read results from, and save new results to
+     * @param buildCache
+     * @param buildLog log to write details to about work being performed
+     */
+    public TaskScheduler(Executor executor, Executor ioExecutor, TaskAdmissionPolicy admissionPolicy, DiskCache diskCache, LocalProjectBuildCache buildCache, BuildLog buildLog) {
         this.executor = executor;
+        this.ioExecutor = ioExecutor;
+        this.admissionPolicy = admissionPolicy;
         this.diskCache = diskCache;
         this.buildCache = buildCache;
         this.buildLog = buildLog;
@@ -167,6 +187,7 @@ public class TaskScheduler {
             public void onSuccess() {
                 if (firstNotificationSent.compareAndSet(false, true)) {
                     verifyFinalTaskMarkerNull();
+                    saveMemoryEstimates();
                     listener.onSuccess();
                 }
             }
@@ -175,6 +196,7 @@ public class TaskScheduler {
             public void onFailure() {
                 if (firstNotificationSent.compareAndSet(false, true)) {
                     verifyFinalTaskMarkerNull();
+                    saveMemoryEstimates();
                     listener.onFailure();
                 }
             }
@@ -183,6 +205,7 @@ public class TaskScheduler {
             public void onError(Throwable throwable) {
                 if (firstNotificationSent.compareAndSet(false, true)) {
                     verifyFinalTaskMarkerNull();
+                    saveMemoryEstimates();
                     listener.onError(throwable);
                 }
             }
@@ -191,6 +214,18 @@ public class TaskScheduler {
         return tasks::cancelPending;//TODO either this method or this lambda should check if there are no tasks running and trigger onSuccess
     }
 
+    private void saveMemoryEstimates() {
+        try {
+            admissionPolicy.saveEstimates();
+        } catch (IOException e) {
+            buildLog.debug("Failed to save task memory estimates: " + e.getMessage());
+        }
+    }
+
+    private Executor executorFor(CollectedTaskInputs taskDetails) {
+        return admissionPolicy.isIoBound(taskDetails) ? ioExecutor : executor;
+    }
+
     private void verifyFinalTaskMarkerNull() {
         String marker = finalTaskMarker.get();
         if (marker != null) {
@@ -281,7 +316,12 @@ public class TaskScheduler {
                             }
                         }
 
-                        taskDetails.getTask().execute(new TaskContext(result.outputDir(), log, latestResult.map(DiskCache.CacheResult::outputDir).orElse(null)));
+                        taskDetails.getTask().execute(new TaskContext(
+                                result.outputDir(),
+                                log,
+                                latestResult.map(DiskCache.CacheResult::outputDir).orElse(null),
+                                admissionPolicy.helperExecutor(taskDetails, executorFor(taskDetails))
+                        ));
                         if (Thread.currentThread().isInterrupted()) {
                             // Tried and failed to be canceled, so even though we were successful, some files might
                             // have been deleted. Continue deleting contents
@@ -333,7 +373,8 @@ public class TaskScheduler {
                     // We can now begin this work off-thread, will be woken up when it finishes.
                     // It is too late to cancel at this time, so no need to check.
                     cacheResult.markBegun();
-                    executor.execute(() -> {
+                    // The admission policy may hold this back until enough other work has finished
+                    admissionPolicy.execute(taskDetails, executorFor(taskDetails), () -> {
                         executeTask(taskDetails, cacheResult, listener);
                     });
                 }
@@ -355,11 +396,12 @@ public class TaskScheduler {
                 public void onSuccess(DiskCache.CacheResult cacheResult) {
                     // Succeeded, didn't do it ourselves, can schedule more work unless there is a final task
                     if (taskDetails.getTask() instanceof TaskFactory.FinalOutputTask) {
-                        // Do the work in an executor, so that we don't block the current thread (usually main or disk cache watcher)
+                        // Do the work in an executor, so that we don't block the current thread (usually main or disk cache watcher),
+                        // once the admission policy lets it start, as it would have if the task had run
                         // First though, we'll inline scheduleMoreWork so that we don't attempt to do this task a second time
                         // NOTE: we are not calling setCurrentContents on this, since no task may depend on this
                         ready.add(taskDetails.getAsInput());
-                        executor.execute(() -> {
+                        admissionPolicy.execute(taskDetails, executorFor(taskDetails), () -> {
                             boolean finished;
                             try {
                                 // if this fails, we'll report failure to the listener
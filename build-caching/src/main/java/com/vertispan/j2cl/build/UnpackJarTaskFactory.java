@@ -43,6 +43,11 @@ public class UnpackJarTaskFactory extends TaskFactory {
         return "0";
     }
 
+    @Override
+    public boolean isIoBound(Project project) {
+        return true;
+    }
+
     @Override
     public Task resolve(Project project, Config config) {
         // we don't have any proper inputs or configs
@@ -20,9 +20,13 @@ import io.methvin.watcher.DirectoryChangeEvent;
 import io.methvin.watcher.DirectoryChangeListener;
 import io.methvin.watcher.DirectoryWatcher;
 import io.methvin.watcher.hashing.FileHash;
+import io.methvin.watcher.hashing.FileHasher;
 
 import java.io.IOException;
+import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -30,6 +34,7 @@ import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -40,17 +45,65 @@ import java.util.stream.Collectors;
  * to do it.
  */
 public class WatchService {
+    /**
+     * Files that editors and operating systems create next to sources, which should never trigger a build.
+     */
+    public static final List<String> DEFAULT_IGNORED_GLOBS = List.of(
+            ".DS_Store",
+            "Thumbs.db",
+            "*.swp",
+            "*.swx",
+            "*~",
+            ".#*",
+            "#*#",
+            ".goutputstream-*",
+            "*___jb_tmp___",
+            "*___jb_old___"
+    );
+
+    private static final FileHash IGNORED_FILE_HASH = FileHash.fromLong(0);
+
     private final BuildQueue buildQueue;
     private final BuildService buildService;
     private final ScheduledExecutorService executorService;
     private final BuildLog buildLog;
+    private final long minDebounceMillis;
+    private final long maxDebounceMillis;
+    private final List<PathMatcher> ignoredFiles;
+    // the hash of each file the build service was last told about, per source root - only used from the watcher
+    // thread once watching starts, so that each event can be turned into a change the build service expects
+    private final Map<Path, Map<Path, FileHash>> knownFiles = new HashMap<>();
     private DirectoryWatcher directoryWatcher;
 
     public WatchService(BuildService buildService, ScheduledExecutorService executorService, BuildLog log) {
+        this(buildService, executorService, log, 100, 2000, DEFAULT_IGNORED_GLOBS);
+    }
+
+    /**
+     * @param minDebounceMillis how long no further changes must be seen before a build starts
+     * @param maxDebounceMillis the longest a build will be delayed after the first change, even if changes
+     *                          keep arriving
+     * @param ignoredGlobs glob patterns for files which should not be hashed or cause builds, matched against
+     *                     both the path relative to its source root, and the file name alone
+     */
+    public WatchService(BuildService buildService, ScheduledExecutorService executorService, BuildLog log, long minDebounceMillis, long maxDebounceMillis, List<String> ignoredGlobs) {
+        if (minDebounceMillis < 0 || maxDebounceMillis < minDebounceMillis) {
+            throw new IllegalArgumentException("Debounce delays must satisfy 0 <= min <= max, got " + minDebounceMillis + ", " + maxDebounceMillis);
+        }
         this.buildQueue = new BuildQueue(buildService);
         this.buildService = buildService;
         this.executorService = executorService;
         this.buildLog =log;
+        this.minDebounceMillis = minDebounceMillis;
+        this.maxDebounceMillis = maxDebounceMillis;
+        this.ignoredFiles = ignoredGlobs.stream()
+                .map(glob -> FileSystems.getDefault().getPathMatcher("glob:" + glob))
+                .collect(Collectors.toUnmodifiableList());
+    }
+
+    private boolean isIgnored(Path relativeFilePath) {
+        Path fileName = relativeFilePath.getFileName();
+        return ignoredFiles.stream().anyMatch(m -> m.matches(relativeFilePath) || (fileName != null && m.matches(fileName)));
     }
 
     public void watch(Map<Project, List<Path>> sourcePathsToWatch) throws IOException {
@@ -61,10 +114,24 @@ public class WatchService {
         });
         directoryWatcher = DirectoryWatcher.builder()
                 .paths(sourcePathsToWatch.values().stream().flatMap(List::stream).collect(Collectors.toUnmodifiableList()))
+                // skip reading ignored files at all, they will be filtered out of events below
+                .fileHasher(file -> {
+                    for (Path rootPath : pathToProjects.keySet()) {
+                        if (file.startsWith(rootPath) && isIgnored(rootPath.relativize(file))) {
+                            return IGNORED_FILE_HASH;
+                        }
+                    }
+                    return FileHasher.DEFAULT_FILE_HASHER.hash(file);
+                })
                 .listener(event -> {
-                    if (!event.isDirectory()) {
-                        Path rootPath = event.rootPath();
-                        update(pathToProjects.get(rootPath), rootPath, rootPath.relativize(event.path()), event.eventType(), event.hash());
+                    Path rootPath = event.rootPath();
+                    if (event.eventType() == DirectoryChangeEvent.EventType.OVERFLOW) {
+                        rescan(pathToProjects, rootPath);
+                    } else if (!event.isDirectory()) {
+                        Path relativeFilePath = rootPath.relativize(event.path());
+                        if (!isIgnored(relativeFilePath)) {
+                            update(pathToProjects.get(rootPath), rootPath, relativeFilePath, event.eventType(), event.hash());
+                        }
                     }
                 })
                 .build();
@@ -76,8 +143,10 @@ public class WatchService {
             Map<Path, DiskCache.CacheEntry> projectFiles = directoryWatcher.pathHashes().entrySet().stream()
                     .filter(e -> e.getValue() != FileHash.DIRECTORY)
                     .filter(e -> e.getKey().startsWith(rootPath))
+                    .filter(e -> !isIgnored(rootPath.relativize(e.getKey())))
                     .map(e -> new DiskCache.CacheEntry(rootPath.relativize(e.getKey()), rootPath, e.getValue()))
                     .collect(Collectors.toMap(e -> e.getSourcePath(), Function.identity()));
+            knownFiles.put(rootPath, hashes(projectFiles.values()));
             buildService.triggerChanges(project, projectFiles, Collections.emptyMap(), Collections.emptySet());
         }
 
@@ -88,19 +157,59 @@ public class WatchService {
         directoryWatcher.watchAsync(executorService);
     }
 
-    private void update(Project project, Path rootPath, Path relativeFilePath, DirectoryChangeEvent.EventType eventType, FileHash hash) {
+    /**
+     * Events were lost, so we can't know what changed - hash the whole affected root again (or every root, if
+     * the watcher couldn't say which one overflowed) and replace what we knew about it. The directory watcher's
+     * own hashes are still stale after this, so later events are checked against what was found here instead.
+     */
+    void rescan(Map<Path, Project> pathToProjects, Path rootPath) {
+        Map<Path, Project> roots = rootPath != null && pathToProjects.containsKey(rootPath)
+                ? Collections.singletonMap(rootPath, pathToProjects.get(rootPath))
+                : pathToProjects;
+        roots.forEach((root, project) -> {
+            buildLog.info("Too many file changes at once, rescanning " + root);
+            Collection<DiskCache.CacheEntry> entries = DiskCache.hashContents(root, path -> !isIgnored(path));
+            knownFiles.put(root, hashes(entries));
+            buildService.replaceSourceRoot(project, root, entries);
+        });
+        buildQueue.requestBuild();
+    }
+
+    private static Map<Path, FileHash> hashes(Collection<DiskCache.CacheEntry> entries) {
+        Map<Path, FileHash> hashes = new HashMap<>();
+        entries.forEach(entry -> hashes.put(entry.getSourcePath(), entry.getHash()));
+        return hashes;
+    }
+
+    /**
+     * Reports the event to the build service. After a rescan the directory watcher may call a file created when
+     * it was already known, or the reverse, so the kind of change comes from what the build service was told
+     * instead.
+     */
+    void update(Project project, Path rootPath, Path relativeFilePath, DirectoryChangeEvent.EventType eventType, FileHash hash) {
+        Map<Path, FileHash> known = knownFiles.computeIfAbsent(rootPath, ignore -> new HashMap<>());
         switch (eventType) {
             case CREATE:
-                buildService.triggerChanges(project, Collections.singletonMap(relativeFilePath, new DiskCache.CacheEntry(relativeFilePath, rootPath, hash)), Collections.emptyMap(), Collections.emptySet());
-                break;
             case MODIFY:
-                buildService.triggerChanges(project, Collections.emptyMap(), Collections.singletonMap(relativeFilePath, new DiskCache.CacheEntry(relativeFilePath, rootPath, hash)), Collections.emptySet());
+                FileHash previous = known.put(relativeFilePath, hash);
+                if (previous == null) {
+                    buildService.triggerChanges(project, Collections.singletonMap(relativeFilePath, new DiskCache.CacheEntry(relativeFilePath, rootPath, hash)), Collections.emptyMap(), Collections.emptySet());
+                } else if (!previous.equals(hash)) {
+                    buildService.triggerChanges(project, Collections.emptyMap(), Collections.singletonMap(relativeFilePath, new DiskCache.CacheEntry(relativeFilePath, rootPath, hash)), Collections.emptySet());
+                } else {
+                    // already up to date, the rescan saw this change
+                    return;
+                }
                 break;
             case DELETE:
+                if (known.remove(relativeFilePath) == null) {
+                    // already removed by a rescan
+                    return;
+                }
                 buildService.triggerChanges(project, Collections.emptyMap(), Collections.emptyMap(), Collections.singleton(relativeFilePath));
                 break;
             case OVERFLOW:
-                //TODO rescan?
+                // handled by rescan() before getting here
                 break;
         }
 
@@ -113,6 +222,9 @@ public class WatchService {
         private final BuildService buildService;
 
         private final AtomicBoolean timerStarted = new AtomicBoolean(false);
+        // when the first and most recent change was seen since the timer started, in nanoTime
+        private volatile long firstChangeNanos;
+        private final AtomicLong lastChangeNanos = new AtomicLong();
         private final AtomicReference<BuildState> buildState = new AtomicReference<>(BuildState.IDLE);
 
         private final AtomicReference<Cancelable> previous = new AtomicReference<>(null);
@@ -122,12 +234,27 @@ public class WatchService {
         }
 
         public void requestBuild() {
+            long now = System.nanoTime();
+            lastChangeNanos.set(now);
             if (timerStarted.compareAndSet(false, true)) {
-                executorService.schedule(this::timerElapsed, 100, TimeUnit.MILLISECONDS);
+                firstChangeNanos = now;
+                executorService.schedule(this::timerElapsed, minDebounceMillis, TimeUnit.MILLISECONDS);
             } // otherwise already started, will elapse soon
         }
 
         private void timerElapsed() {
+            // Wait for changes to settle - if anything changed recently, wait until it has been quiet for
+            // the minimum delay, unless we have already waited as long as we're allowed to since the first
+            // change. A large checkout will then produce one build instead of several canceled ones.
+            long now = System.nanoTime();
+            long quietMillis = TimeUnit.NANOSECONDS.toMillis(now - lastChangeNanos.get());
+            long waitedMillis = TimeUnit.NANOSECONDS.toMillis(now - firstChangeNanos);
+            if (quietMillis < minDebounceMillis && waitedMillis < maxDebounceMillis) {
+                long delay = Math.min(minDebounceMillis - quietMillis, maxDebounceMillis - waitedMillis);
+                executorService.schedule(this::timerElapsed, delay, TimeUnit.MILLISECONDS);
+                return;
+            }
+
             // if success is false, timerElapsed already ran before we got to it!
             boolean success = timerStarted.compareAndSet(true, false);
             assert success;
@@ -209,7 +336,7 @@ public class WatchService {
                     return;
                 case BUILDING:
                     startBuild();
-
+                    return;
                 case CANCELING_FOR_NEW_BUILD:
                 default:
                     throw new IllegalStateException("Not possible to be in state" + nextState);
@@ -0,0 +1,474 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.daemon;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.vertispan.j2cl.build.BlockingBuildListener;
+import com.vertispan.j2cl.build.BuildService;
+import com.vertispan.j2cl.build.DefaultDiskCache;
+import com.vertispan.j2cl.build.DiskCache;
+import com.vertispan.j2cl.build.IoExecutors;
+import com.vertispan.j2cl.build.LocalProjectBuildCache;
+import com.vertispan.j2cl.build.TaskAdmissionPolicy;
+import com.vertispan.j2cl.build.TaskRegistry;
+import com.vertispan.j2cl.build.TaskScheduler;
+import com.vertispan.j2cl.build.task.BuildLog;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived process which owns the disk cache, task schedulers and the graph of work for each project it has
+ * been asked to build, so that a build tool can skip the cost of starting a JVM, warming up the JIT, loading
+ * the compilers and collecting tasks for each build, and instead send a request and wait for the result.
+ *
+ * Clients connect over a socket on the loopback interface, and must present the random token that the daemon
+ * writes next to the port number in {@link #PORT_FILE} - this directory should only be readable by the user
+ * that runs the build. Each connection carries a single {@link BuildRequest} as a line of JSON, and the daemon
+ * replies with a {@link DaemonMessage} per line, ending with a result. Only one build runs at a time, later
+ * requests wait for it to finish.
+ *
+ * The daemon exits after it has been idle for the configured number of minutes, or when asked to stop. Only one
+ * daemon can run for a given directory, enforced by a lock file, so a second one started by a racing client
+ * exits right away, and the client connects to the first one instead.
+ *
+ * @see DaemonClient
+ */
+public class BuildDaemon {
+    public static final String PORT_FILE = "daemon.port";
+    public static final String LOCK_FILE = "daemon.lock";
+
+    /**
+     * Number of project graphs to keep ready, beyond this the least recently used is discarded and will be
+     * collected again if requested.
+     */
+    private static final int MAX_CACHED_GRAPHS = 16;
+
+    private final Gson gson = new Gson();
+
+    private final Path daemonDir;
+    private final long idleTimeoutMillis;
+    private final String token;
+
+    private final ScheduledExecutorService executor;
+    private final ExecutorService ioExecutor;
+    private final DiskCache diskCache;
+    private final ForwardingBuildLog log = new ForwardingBuildLog();
+
+    // guarded by buildLock
+    private final Object buildLock = new Object();
+    private final Map<String, TaskScheduler> schedulers = new HashMap<>();
+    private final Map<String, BuildService> graphs = new LinkedHashMap<>(MAX_CACHED_GRAPHS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BuildService> eldest) {
+            return size() > MAX_CACHED_GRAPHS;
+        }
+    };
+
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile boolean building;
+    private ServerSocket serverSocket;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 5) {
+            System.err.println("Usage: BuildDaemon <daemonDir> <cacheDir> <workerThreads> <ioThreads> <idleTimeoutMinutes>");
+            System.exit(1);
+        }
+        Path daemonDir = Paths.get(args[0]);
+        Files.createDirectories(daemonDir);
+
+        // only one daemon per directory - if another holds the lock, let the client connect to that one
+        FileChannel lockChannel = FileChannel.open(daemonDir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = lockChannel.tryLock();
+        if (lock == null) {
+            System.out.println("Another daemon is already running in " + daemonDir);
+            return;
+        }
+
+        BuildDaemon daemon = new BuildDaemon(daemonDir, Paths.get(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), TimeUnit.MINUTES.toMillis(Long.parseLong(args[4])));
+        daemon.run();
+        System.exit(0);
+    }
+
+    public BuildDaemon(Path daemonDir, Path cacheDir, int workerThreads, int ioThreads, long idleTimeoutMillis) throws IOException {
+        this.daemonDir = daemonDir;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        this.token = token.toString();
+
+        executor = Executors.newScheduledThreadPool(workerThreads);
+        ioExecutor = IoExecutors.newIoExecutor(ioThreads);
+        diskCache = new DefaultDiskCache(cacheDir.toFile(), executor);
+    }
+
+    /**
+     * Listens for requests until the daemon is idle for too long or is asked to stop, and returns once it has
+     * shut down.
+     */
+    public void run() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        writePortFile(serverSocket.getLocalPort());
+        System.out.println("Build daemon listening on port " + serverSocket.getLocalPort());
+
+        executor.scheduleWithFixedDelay(() -> {
+            if (!building && System.currentTimeMillis() - lastActivity > idleTimeoutMillis) {
+                System.out.println("Idle for too long, stopping");
+                shutdown();
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    break;
+                }
+                throw e;
+            }
+            lastActivity = System.currentTimeMillis();
+            Thread thread = new Thread(() -> handle(socket), "j2cl-daemon-client");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // the socket is closed first, wait for the rest of shutdown() to finish
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writePortFile(int port) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("port", Integer.toString(port));
+        properties.setProperty("token", token);
+        Path tmp = Files.createTempFile(daemonDir, PORT_FILE, ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        }
+        Files.move(tmp, daemonDir.resolve(PORT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             Writer writer = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            BuildRequest request;
+            try {
+                request = gson.fromJson(reader.readLine(), BuildRequest.class);
+            } catch (JsonParseException e) {
+                request = null;
+            }
+            if (request == null || !token.equals(request.getToken())) {
+                send(writer, DaemonMessage.result(false, "Invalid request"));
+                return;
+            }
+            // the token isn't part of what makes two requests the same
+            request.setToken(null);
+            send(writer, DaemonMessage.accepted());
+
+            if (request.getType() == BuildRequest.Type.STOP) {
+                send(writer, DaemonMessage.result(true, "Stopping"));
+                synchronized (buildLock) {
+                    shutdown();
+                }
+                return;
+            }
+
+            synchronized (buildLock) {
+                building = true;
+                log.target = new StreamingBuildLog(writer);
+                DaemonMessage result;
+                try {
+                    result = DaemonMessage.result(build(request), null);
+                } catch (Exception e) {
+                    log.error("Build failed", e);
+                    result = DaemonMessage.result(false, e.toString());
+                } finally {
+                    log.target = null;
+                    building = false;
+                    lastActivity = System.currentTimeMillis();
+                }
+                send(writer, result);
+            }
+        } catch (IOException e) {
+            // client went away, nothing to report to
+            System.out.println("Lost connection to client: " + e);
+        }
+    }
+
+    private boolean build(BuildRequest request) throws InterruptedException {
+        // the whole request is the key, including the size and modified time of each jar, since those are
+        // only hashed when the graph is created
+        String key = gson.toJson(request);
+        BuildService buildService = graphs.get(key);
+        if (buildService == null) {
+            buildService = new BuildService(new TaskRegistry(request.getTaskMappings()), schedulerFor(request), diskCache);
+            buildService.assignProject(request.createProjects(), request.getOutputType(), request.getConfig());
+            graphs.put(key, buildService);
+        } else {
+            log.debug("Reusing the existing build graph");
+        }
+
+        // re-hash sources each time, the client isn't watching them for us
+        buildService.initialHashes();
+
+        BlockingBuildListener listener = new BlockingBuildListener();
+        buildService.requestBuild(listener);
+        listener.blockUntilFinished();
+        return listener.isSuccess();
+    }
+
+    private TaskScheduler schedulerFor(BuildRequest request) {
+        String key = gson.toJson(Arrays.asList(
+                request.getLocalBuildCache().getAbsolutePath(),
+                request.getTaskConcurrencyLimits(),
+                request.getTaskMemoryBudget(),
+                request.getIoBoundOutputTypes()
+        ));
+        return schedulers.computeIfAbsent(key, ignore -> {
+            TaskAdmissionPolicy admissionPolicy = new TaskAdmissionPolicy(
+                    request.getTaskConcurrencyLimits(),
+                    TaskAdmissionPolicy.parseMemoryBudget(request.getTaskMemoryBudget()),
+                    request.getIoBoundOutputTypes(),
+                    request.getLocalBuildCache().toPath().resolve("task-memory-estimates.json")
+            );
+            return new TaskScheduler(executor, ioExecutor, admissionPolicy, diskCache, new LocalProjectBuildCache(request.getLocalBuildCache(), diskCache), log);
+        });
+    }
+
+    /**
+     * Stops accepting requests and releases the executors and cache, after which {@link #run()} returns.
+     */
+    void shutdown() {
+        try {
+            serverSocket.close();
+            Files.deleteIfExists(daemonDir.resolve(PORT_FILE));
+            executor.shutdown();
+            ioExecutor.shutdown();
+            diskCache.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    private void send(Writer writer, DaemonMessage message) throws IOException {
+        synchronized (writer) {
+            writer.write(gson.toJson(message));
+            writer.write('\n');
+            writer.flush();
+        }
+    }
+
+    /**
+     * Sends each log message to the client that requested the current build. Failures to send are ignored, so
+     * that a client that goes away doesn't fail a build that is already running.
+     */
+    private class StreamingBuildLog implements BuildLog {
+        private final Writer writer;
+
+        private StreamingBuildLog(Writer writer) {
+            this.writer = writer;
+        }
+
+        private void log(DaemonMessage.Level level, String msg, Throwable t) {
+            try {
+                send(writer, DaemonMessage.log(level, msg, t));
+            } catch (IOException ignored) {
+                // client is gone, keep building anyway
+            }
+        }
+
+        @Override
+        public void debug(String msg) {
+            log(DaemonMessage.Level.DEBUG, msg, null);
+        }
+
+        @Override
+        public void info(String msg) {
+            log(DaemonMessage.Level.INFO, msg, null);
+        }
+
+        @Override
+        public void warn(String msg) {
+            log(DaemonMessage.Level.WARN, msg, null);
+        }
+
+        @Override
+        public void warn(String msg, Throwable t) {
+            log(DaemonMessage.Level.WARN, msg, t);
+        }
+
+        @Override
+        public void warn(Throwable t) {
+            log(DaemonMessage.Level.WARN, null, t);
+        }
+
+        @Override
+        public void error(String msg) {
+            log(DaemonMessage.Level.ERROR, msg, null);
+        }
+
+        @Override
+        public void error(String msg, Throwable t) {
+            log(DaemonMessage.Level.ERROR, msg, t);
+        }
+
+        @Override
+        public void error(Throwable t) {
+            log(DaemonMessage.Level.ERROR, null, t);
+        }
+    }
+
+    /**
+     * The log given to every scheduler, which forwards to whichever client's build is running, or to stdout
+     * when there is none.
+     */
+    private static class ForwardingBuildLog implements BuildLog {
+        private volatile BuildLog target;
+
+        private BuildLog target() {
+            BuildLog current = target;
+            return current != null ? current : StdoutBuildLog.INSTANCE;
+        }
+
+        @Override
+        public void debug(String msg) {
+            target().debug(msg);
+        }
+
+        @Override
+        public void info(String msg) {
+            target().info(msg);
+        }
+
+        @Override
+        public void warn(String msg) {
+            target().warn(msg);
+        }
+
+        @Override
+        public void warn(String msg, Throwable t) {
+            target().warn(msg, t);
+        }
+
+        @Override
+        public void warn(Throwable t) {
+            target().warn(t);
+        }
+
+        @Override
+        public void error(String msg) {
+            target().error(msg);
+        }
+
+        @Override
+        public void error(String msg, Throwable t) {
+            target().error(msg, t);
+        }
+
+        @Override
+        public void error(Throwable t) {
+            target().error(t);
+        }
+    }
+
+    private enum StdoutBuildLog implements BuildLog {
+        INSTANCE;
+
+        @Override
+        public void debug(String msg) {
+        }
+
+        @Override
+        public void info(String msg) {
+            System.out.println(msg);
+        }
+
+        @Override
+        public void warn(String msg) {
+            System.out.println("WARN " + msg);
+        }
+
+        @Override
+        public void warn(String msg, Throwable t) {
+            warn(msg);
+            t.printStackTrace(System.out);
+        }
+
+        @Override
+        public void warn(Throwable t) {
+            t.printStackTrace(System.out);
+        }
+
+        @Override
+        public void error(String msg) {
+            System.out.println("ERROR " + msg);
+        }
+
+        @Override
+        public void error(String msg, Throwable t) {
+            error(msg);
+            t.printStackTrace(System.out);
+        }
+
+        @Override
+        public void error(Throwable t) {
+            t.printStackTrace(System.out);
+        }
+    }
+}
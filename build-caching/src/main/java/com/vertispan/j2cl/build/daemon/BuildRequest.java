@@ -0,0 +1,205 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.daemon;
+
+import com.vertispan.j2cl.build.Dependency;
+import com.vertispan.j2cl.build.Project;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A single request sent from a build tool to the {@link BuildDaemon}, describing the whole project graph and
+ * configuration so that the daemon can build it without any access to the build tool itself.
+ */
+public class BuildRequest {
+    enum Type {
+        BUILD,
+        STOP
+    }
+
+    private static class ProjectData {
+        private String key;
+        private List<String> sourceRoots;
+        private String jar;
+        // size and last modified time of each jar, so that a jar rebuilt at the same path isn't the same request
+        private List<String> jarStamps = new ArrayList<>();
+        private boolean jsZip;
+        private List<DependencyData> dependencies = new ArrayList<>();
+    }
+
+    private static class DependencyData {
+        private String project;
+        private com.vertispan.j2cl.build.task.Dependency.Scope scope;
+    }
+
+    private String token;
+    private Type type;
+
+    private List<ProjectData> projects;
+    private String project;
+    private String outputType;
+    private ConfigSnapshot config;
+    private Map<String, String> taskMappings;
+
+    private String localBuildCache;
+    private Map<String, Integer> taskConcurrencyLimits;
+    private String taskMemoryBudget;
+    private Set<String> ioBoundOutputTypes;
+
+    private BuildRequest() {
+    }
+
+    /**
+     * Describes a build of the given output type for the project and everything it depends on.
+     */
+    public static BuildRequest build(Project project, String outputType, ConfigSnapshot config, Map<String, String> taskMappings,
+                                     File localBuildCache, Map<String, Integer> taskConcurrencyLimits, String taskMemoryBudget, Set<String> ioBoundOutputTypes) {
+        BuildRequest request = new BuildRequest();
+        request.type = Type.BUILD;
+        request.project = project.getKey();
+        request.outputType = outputType;
+        request.config = config;
+        request.taskMappings = new HashMap<>(taskMappings);
+        request.localBuildCache = localBuildCache.getAbsolutePath();
+        request.taskConcurrencyLimits = new HashMap<>(taskConcurrencyLimits);
+        request.taskMemoryBudget = taskMemoryBudget;
+        request.ioBoundOutputTypes = ioBoundOutputTypes;
+
+        Map<String, ProjectData> projects = new LinkedHashMap<>();
+        collect(project, projects);
+        request.projects = new ArrayList<>(projects.values());
+        return request;
+    }
+
+    /**
+     * Asks the daemon to exit once the current build, if any, is finished.
+     */
+    public static BuildRequest stop() {
+        BuildRequest request = new BuildRequest();
+        request.type = Type.STOP;
+        return request;
+    }
+
+    private static void collect(Project project, Map<String, ProjectData> projects) {
+        if (projects.containsKey(project.getKey())) {
+            return;
+        }
+        ProjectData data = new ProjectData();
+        data.key = project.getKey();
+        data.sourceRoots = project.getSourceRoots();
+        data.jar = project.getJar() == null ? null : project.getJar().getAbsolutePath();
+        data.jsZip = project.isJsZip();
+        if (!project.hasSourcesMapped()) {
+            for (String sourceRoot : project.getSourceRoots()) {
+                data.jarStamps.add(stamp(new File(sourceRoot)));
+            }
+        }
+        if (project.getJar() != null) {
+            data.jarStamps.add(stamp(project.getJar()));
+        }
+        projects.put(project.getKey(), data);
+        for (com.vertispan.j2cl.build.task.Dependency dependency : project.getDependencies()) {
+            DependencyData dependencyData = new DependencyData();
+            dependencyData.project = dependency.getProject().getKey();
+            dependencyData.scope = dependency.getScope();
+            data.dependencies.add(dependencyData);
+            collect((Project) dependency.getProject(), projects);
+        }
+    }
+
+    private static String stamp(File file) {
+        if (!file.isFile()) {
+            return file.getAbsolutePath() + " missing";
+        }
+        return file.getAbsolutePath() + " " + file.length() + " " + file.lastModified();
+    }
+
+    /**
+     * Recreates the project graph that this request was created from, returning the project to build.
+     */
+    Project createProjects() {
+        Map<String, Project> created = new HashMap<>();
+        for (ProjectData data : projects) {
+            Project p = new Project(data.key);
+            p.setSourceRoots(data.sourceRoots);
+            if (data.jar != null) {
+                p.setJar(new File(data.jar));
+            }
+            if (data.jsZip) {
+                p.markJsZip();
+            }
+            created.put(data.key, p);
+        }
+        for (ProjectData data : projects) {
+            List<Dependency> dependencies = new ArrayList<>();
+            for (DependencyData dependencyData : data.dependencies) {
+                Dependency dependency = new Dependency();
+                dependency.setProject(created.get(dependencyData.project));
+                dependency.setScope(dependencyData.scope);
+                dependencies.add(dependency);
+            }
+            created.get(data.key).setDependencies(dependencies);
+        }
+        return created.get(project);
+    }
+
+    String getToken() {
+        return token;
+    }
+
+    void setToken(String token) {
+        this.token = token;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    String getOutputType() {
+        return outputType;
+    }
+
+    ConfigSnapshot getConfig() {
+        return config;
+    }
+
+    Map<String, String> getTaskMappings() {
+        return taskMappings == null ? Collections.emptyMap() : taskMappings;
+    }
+
+    File getLocalBuildCache() {
+        return new File(localBuildCache);
+    }
+
+    Map<String, Integer> getTaskConcurrencyLimits() {
+        return taskConcurrencyLimits == null ? Collections.emptyMap() : taskConcurrencyLimits;
+    }
+
+    String getTaskMemoryBudget() {
+        return taskMemoryBudget;
+    }
+
+    Set<String> getIoBoundOutputTypes() {
+        return ioBoundOutputTypes == null ? Collections.emptySet() : ioBoundOutputTypes;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.daemon;
+
+import com.vertispan.j2cl.build.PropertyTrackingConfig;
+import io.methvin.watcher.hashing.FileHasher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A copy of every value a {@link PropertyTrackingConfig.ConfigValueProvider} can offer under a set of keys,
+ * captured eagerly so that it can be sent to a build daemon, which can't evaluate expressions or resolve
+ * artifacts itself. Strings and files are both read up front, and the contents of each file are hashed, so
+ * that two snapshots are only equal if tasks would see the same configuration.
+ */
+public class ConfigSnapshot implements PropertyTrackingConfig.ConfigValueProvider {
+    private static class NodeData {
+        private String name;
+        private String value;
+        private String file;
+        private String fileHash;
+        private String fileError;
+        private List<NodeData> children = new ArrayList<>();
+
+        private NodeData child(String name) {
+            return children.stream().filter(c -> name.equals(c.name)).findFirst().orElse(null);
+        }
+    }
+
+    private final NodeData root;
+
+    private ConfigSnapshot(NodeData root) {
+        this.root = root;
+    }
+
+    /**
+     * Reads every node found under the given top level keys, and all of their children.
+     */
+    public static ConfigSnapshot capture(PropertyTrackingConfig.ConfigValueProvider config, Collection<String> keys) {
+        NodeData root = new NodeData();
+        for (String key : keys) {
+            ConfigNode node = config.findNode(key);
+            if (node != null) {
+                NodeData data = capture(node);
+                data.name = key;
+                root.children.add(data);
+            }
+        }
+        return new ConfigSnapshot(root);
+    }
+
+    private static NodeData capture(ConfigNode node) {
+        NodeData data = new NodeData();
+        data.name = node.getName();
+        data.value = node.readString();
+        try {
+            File file = node.readFile();
+            if (file != null) {
+                data.file = file.getAbsolutePath();
+                if (file.isFile()) {
+                    data.fileHash = FileHasher.DEFAULT_FILE_HASHER.hash(file.toPath()).asString();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not every node is meant to be read as a file, only fail if a task tries to
+            data.fileError = e.getMessage();
+        }
+        for (ConfigNode child : node.getChildren()) {
+            data.children.add(capture(child));
+        }
+        return data;
+    }
+
+    private static class SnapshotNode extends AbstractConfigNode {
+        private final NodeData data;
+
+        private SnapshotNode(String path, NodeData data) {
+            super(path);
+            this.data = data;
+        }
+
+        @Override
+        public String getName() {
+            return data.name;
+        }
+
+        @Override
+        public String readString() {
+            return data.value;
+        }
+
+        @Override
+        public File readFile() {
+            if (data.fileError != null) {
+                throw new IllegalStateException(data.fileError);
+            }
+            return data.file == null ? null : new File(data.file);
+        }
+
+        @Override
+        public List<ConfigNode> getChildren() {
+            List<ConfigNode> list = new ArrayList<>();
+            for (int i = 0; i < data.children.size(); i++) {
+                NodeData child = data.children.get(i);
+                list.add(new SnapshotNode(getPath() + "[" + i + "]" + child.name, child));
+            }
+            return list;
+        }
+    }
+
+    @Override
+    public ConfigNode findNode(String path) {
+        NodeData node = findNodeWithKey(root, path, "");
+        if (node == null) {
+            return null;
+        }
+        return new SnapshotNode(path, node);
+    }
+
+    // same lookup as Xpp3DomConfigValueProvider, trying the longest dotted prefix first
+    private NodeData findNodeWithKey(NodeData config, String prefix, String remaining) {
+        NodeData child = config.child(prefix);
+        if (child != null) {
+            if (remaining.isEmpty()) {
+                return child;
+            }
+            return findNodeWithKey(child, remaining, "");
+        }
+        int index = prefix.lastIndexOf('.');
+        if (index == -1) {
+            return null;
+        }
+        String nextRemaining;
+        if (remaining.isEmpty()) {
+            nextRemaining = prefix.substring(index + 1);
+        } else {
+            nextRemaining = prefix.substring(index + 1) + '.' + remaining;
+        }
+        return findNodeWithKey(config, prefix.substring(0, index), nextRemaining);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.daemon;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.vertispan.j2cl.build.task.BuildLog;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends requests to a {@link BuildDaemon}, starting one if none is running for the given directory. Failing to
+ * reach the daemon, or having the request rejected, is reported as an empty result rather than an exception, so
+ * that callers can fall back to building in their own process. Once the daemon has accepted a build, it may be
+ * writing to the cache, so losing the connection after that is an error instead.
+ */
+public class DaemonClient {
+    private static final long STARTUP_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    private final Gson gson = new Gson();
+    private final Path daemonDir;
+    private final List<String> launchCommand;
+    private final BuildLog log;
+
+    /**
+     * @param daemonDir directory holding the daemon's port and lock files
+     * @param launchCommand the command to start a new daemon if none is running, ending in the arguments
+     *                      described in {@link BuildDaemon#main(String[])}
+     * @param log where to write messages sent by the daemon
+     */
+    public DaemonClient(Path daemonDir, List<String> launchCommand, BuildLog log) {
+        this.daemonDir = daemonDir;
+        this.launchCommand = launchCommand;
+        this.log = log;
+    }
+
+    /**
+     * Asks the daemon to perform the build, starting it first if necessary, and blocks until it is done.
+     *
+     * @return whether the build succeeded, or empty if the daemon couldn't be reached or didn't accept the
+     * request, in which case nothing was built
+     * @throws IOException if the connection was lost after the daemon accepted the build, which may still be
+     * running
+     */
+    public Optional<Boolean> build(BuildRequest request) throws IOException {
+        Optional<DaemonMessage> result = send(request, true);
+        result.filter(r -> !r.isSuccess() && r.getMessage() != null).ifPresent(r -> log.error(r.getMessage()));
+        return result.map(DaemonMessage::isSuccess);
+    }
+
+    /**
+     * Asks a running daemon to exit, does nothing if there is none.
+     */
+    public void stop() {
+        try {
+            send(BuildRequest.stop(), false);
+        } catch (IOException e) {
+            // it was already stopping
+        }
+    }
+
+    private Optional<DaemonMessage> send(BuildRequest request, boolean launch) throws IOException {
+        Optional<Socket> socket = connect();
+        if (socket.isEmpty() && launch) {
+            socket = launchAndConnect();
+        }
+        if (socket.isEmpty()) {
+            return Optional.empty();
+        }
+        boolean accepted = false;
+        try (Socket s = socket.get();
+             Writer writer = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+             BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
+            request.setToken(readPortFile().map(p -> p.getProperty("token")).orElse(null));
+            writer.write(gson.toJson(request));
+            writer.write('\n');
+            writer.flush();
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                DaemonMessage message = gson.fromJson(line, DaemonMessage.class);
+                if (message.getType() == DaemonMessage.Type.ACCEPTED) {
+                    accepted = true;
+                } else if (message.getType() == DaemonMessage.Type.RESULT) {
+                    if (!accepted) {
+                        log.warn("Build daemon rejected the request: " + message.getMessage());
+                        return Optional.empty();
+                    }
+                    return Optional.of(message);
+                } else {
+                    log(message);
+                }
+            }
+        } catch (IOException | JsonParseException e) {
+            if (accepted) {
+                throw new IOException("Lost connection to the build daemon during the build", e);
+            }
+            log.warn("Failed to communicate with build daemon", e);
+            return Optional.empty();
+        }
+        if (accepted) {
+            throw new IOException("Build daemon closed the connection before the build finished");
+        }
+        log.warn("Build daemon closed the connection before accepting the request");
+        return Optional.empty();
+    }
+
+    private void log(DaemonMessage message) {
+        String text = message.getMessage();
+        if (message.getStackTrace() != null) {
+            text = text == null ? message.getStackTrace() : text + "\n" + message.getStackTrace();
+        }
+        switch (message.getLevel()) {
+            case DEBUG:
+                log.debug(text);
+                break;
+            case INFO:
+                log.info(text);
+                break;
+            case WARN:
+                log.warn(text);
+                break;
+            case ERROR:
+                log.error(text);
+                break;
+        }
+    }
+
+    private Optional<Properties> readPortFile() {
+        Path portFile = daemonDir.resolve(BuildDaemon.PORT_FILE);
+        if (!Files.isRegularFile(portFile)) {
+            return Optional.empty();
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(portFile, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+        return Optional.of(properties);
+    }
+
+    private Optional<Socket> connect() {
+        Optional<Properties> portFile = readPortFile();
+        if (portFile.isEmpty()) {
+            return Optional.empty();
+        }
+        Socket socket = new Socket();
+        try {
+            int port = Integer.parseInt(portFile.get().getProperty("port"));
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT_MILLIS);
+            return Optional.of(socket);
+        } catch (IOException | NumberFormatException e) {
+            // stale port file from a daemon which has exited, or one that is starting up
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            return Optional.empty();
+        }
+    }
+
+    private Optional<Socket> launchAndConnect() {
+        log.info("Starting build daemon in " + daemonDir);
+        try {
+            Files.createDirectories(daemonDir);
+            List<String> command = new ArrayList<>(launchCommand);
+            Process process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.appendTo(daemonDir.resolve("daemon.log").toFile()))
+                    .start();
+            process.getOutputStream().close();
+        } catch (IOException e) {
+            log.warn("Failed to start build daemon", e);
+            return Optional.empty();
+        }
+
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            Optional<Socket> socket = connect();
+            if (socket.isPresent()) {
+                return socket;
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Optional.empty();
+            }
+        }
+        log.warn("Timed out waiting for build daemon to start, see " + daemonDir.resolve("daemon.log"));
+        return Optional.empty();
+    }
+}
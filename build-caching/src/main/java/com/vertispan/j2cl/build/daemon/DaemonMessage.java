@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.daemon;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * A message sent from the {@link BuildDaemon} back to a client: any number of log messages, followed by a
+ * single result.
+ */
+class DaemonMessage {
+    enum Type {
+        /**
+         * Sent once the request is valid, before any work starts. Until then the client may safely give up on
+         * the daemon and build by itself, afterwards the daemon may be writing to the cache.
+         */
+        ACCEPTED,
+        LOG,
+        RESULT
+    }
+
+    enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    private Type type;
+    private Level level;
+    private String message;
+    private String stackTrace;
+    private boolean success;
+
+    static DaemonMessage log(Level level, String message, Throwable t) {
+        DaemonMessage log = new DaemonMessage();
+        log.type = Type.LOG;
+        log.level = level;
+        log.message = message;
+        if (t != null) {
+            StringWriter writer = new StringWriter();
+            t.printStackTrace(new PrintWriter(writer));
+            log.stackTrace = writer.toString();
+        }
+        return log;
+    }
+
+    static DaemonMessage accepted() {
+        DaemonMessage accepted = new DaemonMessage();
+        accepted.type = Type.ACCEPTED;
+        return accepted;
+    }
+
+    static DaemonMessage result(boolean success, String message) {
+        DaemonMessage result = new DaemonMessage();
+        result.type = Type.RESULT;
+        result.success = success;
+        result.message = message;
+        return result;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    Level getLevel() {
+        return level;
+    }
+
+    String getMessage() {
+        return message;
+    }
+
+    String getStackTrace() {
+        return stackTrace;
+    }
+
+    boolean isSuccess() {
+        return success;
+    }
+}
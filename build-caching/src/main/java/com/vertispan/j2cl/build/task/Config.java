@@ -48,6 +48,12 @@ public interface Config {
 
     Map<String, String> getDefines();
 
+    /**
+     * Chunks to split optimized output into, in addition to the initial script, in the order they were
+     * configured. Empty if the output should be a single file.
+     */
+    List<Chunk> getChunks();
+
     Map<String, String> getUsedConfigs();
 
     String getLanguageOut();
@@ -76,4 +82,28 @@ public interface Config {
      */
     boolean isIncrementalEnabled();
 
+    /**
+     * A part of the optimized output that can be loaded after the initial script, once it is needed.
+     */
+    interface Chunk {
+        /**
+         * The name of the chunk, which is also the name of its file, without the .js extension.
+         */
+        String getName();
+
+        /**
+         * Closure namespaces whose files should be in this chunk.
+         */
+        List<String> getEntrypoints();
+
+        /**
+         * Packages whose files, including those in subpackages, should be in this chunk.
+         */
+        List<String> getPackages();
+
+        /**
+         * Other chunks that must be loaded before this one. Every chunk depends on the initial script.
+         */
+        List<String> getDependencies();
+    }
 }
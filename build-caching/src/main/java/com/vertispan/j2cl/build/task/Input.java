@@ -31,6 +31,16 @@ public interface Input {
      */
     Input filter(PathMatcher... filters);
 
+    /**
+     * Public API for tasks, builder to limit input scope.
+     *
+     * Like {@link #filter(PathMatcher...)}, except that only the matching files are part of the
+     * key of the task, so changes to any other file in this input won't cause it to run again.
+     * Only use this if the task never reads the other files, including through
+     * {@link #getParentPaths()} or another filter of the same input.
+     */
+    Input filterOnly(PathMatcher... filters);
+
     /**
      * Public API for tasks.
      *
@@ -28,24 +28,27 @@ public interface OutputTypes {
 
     /**
      * Represents the contents of a project if it were built into a jar
-     * file as an external dependency. Ostensibly should contain the
-     * un-stripped bytecode for a project and all of its resources (so
-     * that downstream projects can look for those resources on the
-     * classpath), but also presently ends up holding generated resources
-     * (so that the {@link #GENERATED_SOURCES} task can copy them out),
-     * and at that point it might as well contain the original Java
-     * sources too, unstripped. Including those sources however means
-     * that this becomes the source of truth for stripping sources,
-     * rather than the union of {@link #INPUT_SOURCES} and {@link #GENERATED_SOURCES}.
-     * This conflict arises since there could be .js files in the original
-     * sources, and we must copy them here since downstream projects
-     * could require them on the classpath - and after APT runs, we can't
-     * tell which sources were copied in and which came from sources,
-     * so we can't let downstream closure point to this (or generated
-     * sources) and input sources, it will find duplicate files.
+     * file as an external dependency. For a dependency that is a jar,
+     * this is its bytecode and all of its resources. For a project in
+     * the reactor, this is the un-stripped bytecode, the original Java
+     * sources (so that this is the source of truth for stripping, along
+     * with anything generated), and any generated resources - resources
+     * in the project's own source roots are not copied, so that editing
+     * one doesn't require compiling again. Tasks that want resources
+     * should read both this and {@link #INPUT_SOURCES} of reactor projects,
+     * which can't find the same file twice, since only one holds the
+     * generated files.
      */
     String BYTECODE = "bytecode";
 
+    /**
+     * The API of a project's {@link #BYTECODE}, without method bodies or other details that can't affect
+     * compiling against it, plus its resources. Unlike {@link #STRIPPED_BYTECODE_HEADERS}, GwtIncompatible
+     * members are still present, so this can be used as the javac classpath, and its contents only change
+     * when the API does.
+     */
+    String BYTECODE_HEADERS = "bytecode_headers";
+
     /**
      * Formerly annotation processor output.
      *
@@ -29,6 +29,12 @@ public interface Project {
 
     boolean hasSourcesMapped();
 
+    /**
+     * @return the directories containing this project's sources and resources if it is a maven reactor
+     * project, or the jar file otherwise
+     */
+    List<String> getSourceRoots();
+
     /**
      * NOTE: This method may not exist for long, if a cleaner approach can be found to handling
      * archives with JS content that shouldn't have javac/j2cl run on them.
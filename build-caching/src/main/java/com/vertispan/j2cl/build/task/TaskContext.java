@@ -16,17 +16,37 @@
 package com.vertispan.j2cl.build.task;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
 
 public class TaskContext implements BuildLog {
     private final Path path;
     private final BuildLog log;
     private final Path lastSuccessfulPath;
+    private final Executor helperExecutor;
 
     public TaskContext(Path path, BuildLog log, Path lastSuccessfulPath) {
+        this(path, log, lastSuccessfulPath, null);
+    }
+
+    /**
+     * @param helperExecutor runs work which helps this task finish sooner, subject to the same limits as other
+     *                       tasks, or null if all work must happen on the task's own thread
+     */
+    public TaskContext(Path path, BuildLog log, Path lastSuccessfulPath, Executor helperExecutor) {
         this.path = path;
         this.log = log;
         this.lastSuccessfulPath = lastSuccessfulPath;
+        this.helperExecutor = helperExecutor;
     }
 
     public Path outputPath() {
@@ -47,6 +67,61 @@ public class TaskContext implements BuildLog {
         return Optional.ofNullable(lastSuccessfulPath);
     }
 
+    /**
+     * Runs each job and returns their results in the same order. Tasks should use this rather than their own
+     * threads or parallel streams, so that the build's worker count, concurrency limits and memory budget
+     * still apply: jobs run on helpers only when the build admits them, and the calling thread runs whatever
+     * is left, so all jobs complete even if no helper ever starts.
+     *
+     * @throws Exception the failure of the first job to fail, in job order, once no job is still running
+     */
+    public <T> List<T> runInParallel(List<? extends Callable<T>> jobs) throws Exception {
+        List<FutureTask<T>> tasks = jobs.stream().map(FutureTask::new).collect(Collectors.toList());
+        Queue<FutureTask<T>> queue = new ConcurrentLinkedQueue<>(tasks);
+        Runnable drain = () -> {
+            FutureTask<T> next;
+            while ((next = queue.poll()) != null) {
+                next.run();
+            }
+        };
+
+        if (helperExecutor != null) {
+            int helpers = Math.min(jobs.size(), Runtime.getRuntime().availableProcessors()) - 1;
+            for (int i = 0; i < helpers; i++) {
+                try {
+                    helperExecutor.execute(drain);
+                } catch (RejectedExecutionException e) {
+                    // shutting down, run the rest here
+                    break;
+                }
+            }
+        }
+        drain.run();
+
+        // every job has at least started, wait for any still on a helper
+        List<T> results = new ArrayList<>();
+        Throwable failure = null;
+        for (FutureTask<T> task : tasks) {
+            try {
+                results.add(task.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                tasks.forEach(t -> t.cancel(true));
+                throw e;
+            }
+        }
+        if (failure instanceof Exception) {
+            throw (Exception) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        return results;
+    }
+
     @Override
     public void debug(String msg) {
         log.debug(msg);
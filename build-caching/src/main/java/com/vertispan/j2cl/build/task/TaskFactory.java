@@ -87,6 +87,14 @@ public abstract class TaskFactory {
      */
     public abstract String getVersion();
 
+    /**
+     * Hint to the scheduler that the task created for the given project spends its time reading, writing or
+     * copying files rather than using the CPU, so it can run without taking one of the regular worker threads.
+     * Defaults to false, tasks that only copy or unpack their inputs should override this.
+     */
+    public boolean isIoBound(Project project) {
+        return false;
+    }
 
     /**
      * Complete the work, based on the inputs requested and the configs accessed.
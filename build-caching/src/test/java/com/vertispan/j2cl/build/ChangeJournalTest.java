@@ -0,0 +1,142 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeJournalTest {
+    private static final Path ROOT = Paths.get("/src/main/java");
+    private static final Path OTHER_ROOT = Paths.get("/target/generated-sources");
+
+    /**
+     * A change that does nothing when applied, but can be told apart from the others.
+     */
+    private static class Numbered implements ChangeJournal.Change {
+        private final int writer;
+        private final int sequence;
+
+        private Numbered(int writer, int sequence) {
+            this.writer = writer;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void applyTo(Map<Project, Map<Path, DiskCache.CacheEntry>> projectHashes) {
+        }
+    }
+
+    private static DiskCache.CacheEntry entry(Path root, String path) {
+        return new DiskCache.CacheEntry(Paths.get(path), root, null);
+    }
+
+    @Test
+    public void testSnapshotInOrder() {
+        ChangeJournal journal = new ChangeJournal();
+        List<ChangeJournal.Change> changes = Arrays.asList(new Numbered(0, 0), new Numbered(0, 1), new Numbered(0, 2));
+        changes.forEach(journal::append);
+
+        assertEquals(changes, new ArrayList<>(journal.snapshot()));
+        // taken by the first snapshot
+        assertTrue(journal.snapshot().isEmpty());
+
+        ChangeJournal.Change later = new Numbered(0, 3);
+        journal.append(later);
+        assertEquals(Collections.singletonList(later), new ArrayList<>(journal.snapshot()));
+    }
+
+    @Test
+    public void testReplay() {
+        Project project = new Project("com.example:app");
+        Map<Project, Map<Path, DiskCache.CacheEntry>> hashes = new HashMap<>();
+        ChangeJournal journal = new ChangeJournal();
+
+        journal.replaceProject(project, Map.of(
+                Paths.get("A.java"), entry(ROOT, "A.java"),
+                Paths.get("B.java"), entry(ROOT, "B.java"),
+                Paths.get("Gen.java"), entry(OTHER_ROOT, "Gen.java")
+        ));
+        journal.append(project, Map.of(Paths.get("C.java"), entry(ROOT, "C.java")), Map.of(Paths.get("A.java"), entry(ROOT, "A.java")), Set.of(Paths.get("B.java")));
+        journal.replaceRoot(project, OTHER_ROOT, Collections.singletonList(entry(OTHER_ROOT, "Gen2.java")));
+        journal.snapshot().forEach(change -> change.applyTo(hashes));
+
+        assertEquals(Set.of(Paths.get("A.java"), Paths.get("C.java"), Paths.get("Gen2.java")), hashes.get(project).keySet());
+    }
+
+    @Test
+    public void testConcurrentAppendAndSnapshot() throws InterruptedException {
+        int writers = 4;
+        int changesPerWriter = 20_000;
+        ChangeJournal journal = new ChangeJournal();
+        List<ChangeJournal.Change> taken = Collections.synchronizedList(new ArrayList<>());
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writerThreads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < changesPerWriter; i++) {
+                    journal.append(new Numbered(writer, i));
+                }
+            });
+            thread.start();
+            writerThreads.add(thread);
+        }
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Thread reader = new Thread(() -> {
+            while (writing.get()) {
+                taken.addAll(journal.snapshot());
+            }
+        });
+        reader.start();
+        start.countDown();
+        for (Thread thread : writerThreads) {
+            thread.join();
+        }
+        writing.set(false);
+        reader.join();
+        taken.addAll(journal.snapshot());
+
+        // every change was taken exactly once, and each writer's changes stayed in the order it appended them
+        assertEquals(writers * changesPerWriter, taken.size());
+        int[] next = new int[writers];
+        for (ChangeJournal.Change change : taken) {
+            Numbered numbered = (Numbered) change;
+            assertEquals(next[numbered.writer], numbered.sequence);
+            next[numbered.writer]++;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build;
+
+import io.methvin.watcher.hashing.FileHasher;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class InputTest {
+    private static final PathMatcher XTB = p -> p.toString().endsWith(".xtb");
+    private static final PathMatcher JS = p -> p.toString().endsWith(".js");
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = temp.newFolder("output").toPath();
+        Files.writeString(dir.resolve("messages.xtb"), "<messages/>");
+        Files.writeString(dir.resolve("App.js"), "var a;");
+        Files.writeString(dir.resolve("App.java"), "class App {}");
+    }
+
+    /**
+     * Makes a fresh input from the current state of the directory, calls the given views on it the way a task
+     * factory would, and returns the hashes that would go into the task's key.
+     */
+    private Map<String, String> key(Views views) throws IOException {
+        Input input = new Input(new Project("com.example:app"), "bytecode");
+        views.apply(input);
+        List<DiskCache.CacheEntry> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                entries.add(new DiskCache.CacheEntry(dir.relativize(file), dir, FileHasher.DEFAULT_FILE_HASHER.hash(file)));
+            }
+        }
+        input.setCurrentContents(new TaskOutput(entries));
+        return input.makeDiskFormat().getFileHashes();
+    }
+
+    private interface Views {
+        void apply(Input input);
+    }
+
+    @Test
+    public void testUnfilteredKeyedOnAllFiles() throws IOException {
+        assertEquals(Set.of("messages.xtb", "App.js", "App.java"), key(input -> {}).keySet());
+    }
+
+    @Test
+    public void testFilterKeyedOnAllFiles() throws IOException {
+        // the task might still read the other files through getParentPaths()
+        assertEquals(Set.of("messages.xtb", "App.js", "App.java"), key(input -> input.filter(XTB)).keySet());
+        assertEquals(Set.of("messages.xtb", "App.js", "App.java"), key(input -> input.filter(XTB).filter(JS)).keySet());
+    }
+
+    @Test
+    public void testFilterOnlyKeyedOnMatchingFiles() throws IOException {
+        assertEquals(Set.of("messages.xtb"), key(input -> input.filterOnly(XTB)).keySet());
+        assertEquals(Set.of("messages.xtb", "App.js"), key(input -> {
+            input.filterOnly(XTB);
+            input.filterOnly(JS);
+        }).keySet());
+        // narrowing a key-only view further doesn't make the rest of the input part of the key
+        assertEquals(Set.of("messages.xtb", "App.js"), key(input -> input.filterOnly(XTB, JS).filter(XTB)).keySet());
+    }
+
+    @Test
+    public void testFilterOnlyWithOtherViewsKeyedOnAllFiles() throws IOException {
+        assertEquals(Set.of("messages.xtb", "App.js", "App.java"), key(input -> {
+            input.filterOnly(XTB);
+            input.filter(JS);
+        }).keySet());
+        assertEquals(Set.of("messages.xtb", "App.js", "App.java"), key(input -> {
+            input.filterOnly(XTB);
+            input.filter();
+        }).keySet());
+    }
+
+    @Test
+    public void testKeyChangesWithUnmatchedFileOnlyWhenFiltered() throws IOException {
+        Map<String, String> filtered = key(input -> input.filter(XTB));
+        Map<String, String> filteredOnly = key(input -> input.filterOnly(XTB));
+
+        Files.writeString(dir.resolve("App.java"), "class App { int x; }");
+
+        assertNotEquals(filtered, key(input -> input.filter(XTB)));
+        assertEquals(filteredOnly, key(input -> input.filterOnly(XTB)));
+    }
+
+    @Test
+    public void testKeyChangesWithMatchedFile() throws IOException {
+        Map<String, String> before = key(input -> input.filterOnly(XTB));
+
+        Files.writeString(dir.resolve("messages.xtb"), "<messages><msg/></messages>");
+        assertNotEquals(before, key(input -> input.filterOnly(XTB)));
+
+        Files.delete(dir.resolve("messages.xtb"));
+        assertEquals(Map.of(), key(input -> input.filterOnly(XTB)));
+    }
+}
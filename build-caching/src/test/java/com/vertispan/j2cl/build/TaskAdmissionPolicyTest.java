@@ -0,0 +1,233 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class TaskAdmissionPolicyTest {
+    // large enough that heap growth measured while these tests run can't move the estimates much
+    private static final long GB = 1024L * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    /**
+     * Holds each task it is given until the test says to run it, so tests can see which tasks were admitted.
+     */
+    private static class HeldExecutor implements Executor {
+        private final Deque<Runnable> queued = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            queued.add(command);
+        }
+
+        void runNext() {
+            queued.removeFirst().run();
+        }
+
+        int size() {
+            return queued.size();
+        }
+    }
+
+    private final HeldExecutor executor = new HeldExecutor();
+    private final HeldExecutor ioExecutor = new HeldExecutor();
+    private final List<String> started = new ArrayList<>();
+
+    private void submit(TaskAdmissionPolicy policy, String outputType, String name) {
+        policy.execute(outputType, false, executor, () -> started.add(name));
+    }
+
+    private Path estimates(String json) throws IOException {
+        Path file = temp.newFile("estimates.json").toPath();
+        Files.writeString(file, json, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    @Test
+    public void testUnrestrictedAdmitsEverything() {
+        TaskAdmissionPolicy policy = TaskAdmissionPolicy.unrestricted();
+        for (int i = 0; i < 10; i++) {
+            submit(policy, "bytecode", "task" + i);
+        }
+        assertEquals(10, executor.size());
+    }
+
+    @Test
+    public void testConcurrencyLimit() {
+        TaskAdmissionPolicy policy = new TaskAdmissionPolicy(Map.of("optimized_js", 2), 0, Collections.emptySet(), null);
+        submit(policy, "optimized_js", "a");
+        submit(policy, "optimized_js", "b");
+        submit(policy, "optimized_js", "c");
+        submit(policy, "bytecode", "other");
+        // other output types aren't held back by the limit
+        assertEquals(3, executor.size());
+
+        executor.runNext();
+        // the first to finish lets the waiting task start
+        assertEquals(3, executor.size());
+        executor.runNext();
+        executor.runNext();
+        executor.runNext();
+        assertEquals(Arrays.asList("a", "b", "other", "c"), started);
+    }
+
+    @Test
+    public void testAdmittedInOrder() {
+        TaskAdmissionPolicy policy = new TaskAdmissionPolicy(Map.of("transpiled_js", 1), 0, Collections.emptySet(), null);
+        for (String name : Arrays.asList("a", "b", "c", "d")) {
+            submit(policy, "transpiled_js", name);
+        }
+        while (executor.size() > 0) {
+            assertEquals(1, executor.size());
+            executor.runNext();
+        }
+        assertEquals(Arrays.asList("a", "b", "c", "d"), started);
+    }
+
+    @Test
+    public void testMemoryBudget() throws IOException {
+        Path file = estimates("{\"bytecode\":" + 4 * GB + ",\"optimized_js\":" + 8 * GB + "}");
+        TaskAdmissionPolicy policy = new TaskAdmissionPolicy(Collections.emptyMap(), 10 * GB, Collections.emptySet(), file);
+        submit(policy, "bytecode", "small1");
+        submit(policy, "bytecode", "small2");
+        assertEquals(2, executor.size());
+
+        // doesn't fit, and later tasks mustn't take the memory it is waiting for, even if they would fit
+        submit(policy, "optimized_js", "large");
+        submit(policy, "transpiled_js", "unestimated");
+        assertEquals(2, executor.size());
+
+        executor.runNext();
+        assertEquals(1, executor.size());
+        executor.runNext();
+        // both running tasks are done, so the large one starts, and the other fits beside it
+        assertEquals(2, executor.size());
+        executor.runNext();
+        executor.runNext();
+        assertEquals(Arrays.asList("small1", "small2", "large", "unestimated"), started);
+    }
+
+    @Test
+    public void testTaskLargerThanBudgetRunsAlone() throws IOException {
+        Path file = estimates("{\"bytecode\":" + GB + ",\"optimized_js\":" + 100 * GB + "}");
+        TaskAdmissionPolicy policy = new TaskAdmissionPolicy(Collections.emptyMap(), 10 * GB, Collections.emptySet(), file);
+        submit(policy, "optimized_js", "huge");
+        assertEquals(1, executor.size());
+        submit(policy, "bytecode", "small");
+        assertEquals(1, executor.size());
+
+        executor.runNext();
+        assertEquals(1, executor.size());
+        executor.runNext();
+        assertEquals(Arrays.asList("huge", "small"), started);
+    }
+
+    @Test
+    public void testIoLaneIgnoresBudget() throws IOException {
+        Path file = estimates("{\"bytecode\":" + 10 * GB + ",\"unpack\":" + 10 * GB + "}");
+        TaskAdmissionPolicy policy = new TaskAdmissionPolicy(Collections.emptyMap(), 10 * GB, Set.of("unpack"), file);
+        submit(policy, "bytecode", "cpu1");
+        submit(policy, "bytecode", "cpu2");
+        policy.execute("unpack", true, ioExecutor, () -> started.add("io"));
+
+        // the budget is used up, but I/O-bound work runs anyway, on its own executor
+        assertEquals(1, executor.size());
+        assertEquals(1, ioExecutor.size());
+        ioExecutor.runNext();
+        assertEquals(Collections.singletonList("io"), started);
+    }
+
+    @Test
+    public void testIoLaneStillLimited() {
+        TaskAdmissionPolicy policy = new TaskAdmissionPolicy(Map.of("unpack", 1), 0, Set.of("unpack"), null);
+        policy.execute("unpack", true, ioExecutor, () -> started.add("a"));
+        policy.execute("unpack", true, ioExecutor, () -> started.add("b"));
+        assertEquals(1, ioExecutor.size());
+        ioExecutor.runNext();
+        ioExecutor.runNext();
+        assertEquals(Arrays.asList("a", "b"), started);
+    }
+
+    @Test
+    public void testHelpersLimited() {
+        TaskAdmissionPolicy policy = new TaskAdmissionPolicy(Map.of("transpiled_js", 2), 0, Collections.emptySet(), null);
+        submit(policy, "transpiled_js", "task");
+        executor.runNext();
+        policy.execute("transpiled_js", false, true, executor, () -> started.add("helper1"));
+        policy.execute("transpiled_js", false, true, executor, () -> started.add("helper2"));
+        policy.execute("transpiled_js", false, true, executor, () -> started.add("helper3"));
+        // the finished task gave back its slot, so two helpers may run
+        assertEquals(2, executor.size());
+        executor.runNext();
+        executor.runNext();
+        executor.runNext();
+        assertEquals(Arrays.asList("task", "helper1", "helper2", "helper3"), started);
+    }
+
+    @Test
+    public void testHelpersDontHoldBackTasks() throws IOException {
+        Path file = estimates("{\"transpiled_js\":" + 6 * GB + ",\"bytecode\":" + 2 * GB + "}");
+        TaskAdmissionPolicy policy = new TaskAdmissionPolicy(Collections.emptyMap(), 10 * GB, Collections.emptySet(), file);
+        submit(policy, "transpiled_js", "task");
+        policy.execute("transpiled_js", false, true, executor, () -> started.add("helper"));
+        submit(policy, "bytecode", "other");
+        // the helper doesn't fit, but a task that does may still start
+        assertEquals(2, executor.size());
+        executor.runNext();
+        assertEquals(2, executor.size());
+        executor.runNext();
+        executor.runNext();
+        assertEquals(Arrays.asList("task", "other", "helper"), started);
+    }
+
+    @Test
+    public void testEstimatesSaved() throws IOException {
+        Path file = estimates("{\"bytecode\":" + GB + "}");
+        TaskAdmissionPolicy policy = new TaskAdmissionPolicy(Collections.emptyMap(), 10 * GB, Collections.emptySet(), file);
+        Files.delete(file);
+        policy.saveEstimates();
+        assertTrue(Files.readString(file).contains("\"bytecode\":" + GB));
+    }
+
+    @Test
+    public void testInvalidLimitsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new TaskAdmissionPolicy(Map.of("bytecode", 0), 0, Collections.emptySet(), null));
+        assertThrows(IllegalArgumentException.class, () -> new TaskAdmissionPolicy(Map.of("bytecode", -1), 0, Collections.emptySet(), null));
+        assertThrows(IllegalArgumentException.class, () -> new TaskAdmissionPolicy(Collections.emptyMap(), -1, Collections.emptySet(), null));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build;
+
+import com.vertispan.j2cl.build.task.BuildLog;
+import io.methvin.watcher.DirectoryChangeEvent;
+import io.methvin.watcher.hashing.FileHash;
+import io.methvin.watcher.hashing.FileHasher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+
+public class WatchServiceTest {
+    private static final BuildLog LOG = new BuildLog() {
+        @Override
+        public void debug(String msg) {
+        }
+
+        @Override
+        public void info(String msg) {
+        }
+
+        @Override
+        public void warn(String msg) {
+        }
+
+        @Override
+        public void warn(String msg, Throwable t) {
+        }
+
+        @Override
+        public void warn(Throwable t) {
+        }
+
+        @Override
+        public void error(String msg) {
+        }
+
+        @Override
+        public void error(String msg, Throwable t) {
+        }
+
+        @Override
+        public void error(Throwable t) {
+        }
+    };
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final Project project = new Project("com.example:app");
+    private final ChangeJournal journal = new ChangeJournal();
+    private final Map<Project, Map<Path, DiskCache.CacheEntry>> hashes = new HashMap<>();
+    private ScheduledExecutorService executor;
+    private WatchService watchService;
+    private Path root;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        // records changes as the real service would, without ever building
+        BuildService buildService = new BuildService(null, null, null) {
+            @Override
+            public void triggerChanges(Project project, Map<Path, DiskCache.CacheEntry> createdFiles, Map<Path, DiskCache.CacheEntry> changedFiles, Set<Path> deletedFiles) {
+                journal.append(project, createdFiles, changedFiles, deletedFiles);
+            }
+
+            @Override
+            public void replaceSourceRoot(Project project, Path sourceRoot, Collection<DiskCache.CacheEntry> entries) {
+                journal.replaceRoot(project, sourceRoot, entries);
+            }
+        };
+        watchService = new WatchService(buildService, executor, LOG, 60_000, 60_000, WatchService.DEFAULT_IGNORED_GLOBS);
+        root = temp.newFolder("src").toPath();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private FileHash write(String path, String contents) throws IOException {
+        Path file = root.resolve(path);
+        Files.writeString(file, contents);
+        return FileHasher.DEFAULT_FILE_HASHER.hash(file);
+    }
+
+    private void event(DirectoryChangeEvent.EventType type, String path, FileHash hash) {
+        watchService.update(project, root, Paths.get(path), type, hash);
+    }
+
+    /**
+     * Applies everything reported so far, failing on any change that doesn't match what was reported before.
+     */
+    private Map<Path, FileHash> reported() {
+        journal.snapshot().forEach(change -> change.applyTo(hashes));
+        Map<Path, FileHash> files = new HashMap<>();
+        hashes.getOrDefault(project, Collections.emptyMap()).forEach((path, entry) -> files.put(path, entry.getHash()));
+        return files;
+    }
+
+    @Test
+    public void testEventsAfterRescan() throws IOException {
+        FileHash a = write("A.java", "class A {}");
+        event(DirectoryChangeEvent.EventType.CREATE, "A.java", a);
+        assertEquals(Map.of(Paths.get("A.java"), a), reported());
+
+        // events were lost while A was deleted and B created, so the root is rescanned
+        Files.delete(root.resolve("A.java"));
+        FileHash b = write("B.java", "class B {}");
+        watchService.rescan(Collections.singletonMap(root, project), root);
+        assertEquals(Map.of(Paths.get("B.java"), b), reported());
+
+        // events the directory watcher still delivers, based on what it knew before the overflow
+        event(DirectoryChangeEvent.EventType.CREATE, "B.java", b);
+        event(DirectoryChangeEvent.EventType.DELETE, "A.java", null);
+        assertEquals(Map.of(Paths.get("B.java"), b), reported());
+
+        // and changes made after the rescan
+        FileHash newB = write("B.java", "class B { int b; }");
+        event(DirectoryChangeEvent.EventType.CREATE, "B.java", newB);
+        FileHash newA = write("A.java", "class A { int a; }");
+        event(DirectoryChangeEvent.EventType.MODIFY, "A.java", newA);
+        assertEquals(Map.of(Paths.get("A.java"), newA, Paths.get("B.java"), newB), reported());
+    }
+}
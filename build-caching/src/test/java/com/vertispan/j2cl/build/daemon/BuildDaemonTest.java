@@ -0,0 +1,227 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.daemon;
+
+import com.google.gson.Gson;
+import com.vertispan.j2cl.build.task.BuildLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BuildDaemonTest {
+    private static final String REUSED = "Reusing the existing build graph";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final Gson gson = new Gson();
+
+    private Path daemonDir;
+    private BuildDaemon daemon;
+    private Thread daemonThread;
+    private DaemonClient client;
+    private final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+
+    private final BuildLog log = new BuildLog() {
+        @Override
+        public void debug(String msg) {
+            messages.add(msg);
+        }
+
+        @Override
+        public void info(String msg) {
+            messages.add(msg);
+        }
+
+        @Override
+        public void warn(String msg) {
+            messages.add(msg);
+        }
+
+        @Override
+        public void warn(String msg, Throwable t) {
+            messages.add(msg);
+        }
+
+        @Override
+        public void warn(Throwable t) {
+            messages.add(t.toString());
+        }
+
+        @Override
+        public void error(String msg) {
+            messages.add(msg);
+        }
+
+        @Override
+        public void error(String msg, Throwable t) {
+            messages.add(msg);
+        }
+
+        @Override
+        public void error(Throwable t) {
+            messages.add(t.toString());
+        }
+    };
+
+    @Before
+    public void startDaemon() throws Exception {
+        ReadSourcesTaskFactory.READ.clear();
+        daemonDir = temp.newFolder("daemon").toPath();
+        daemon = new BuildDaemon(daemonDir, temp.newFolder("cache").toPath(), 2, 2, TimeUnit.MINUTES.toMillis(10));
+        daemonThread = new Thread(() -> {
+            try {
+                daemon.run();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        daemonThread.start();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!Files.exists(daemonDir.resolve(BuildDaemon.PORT_FILE))) {
+            assertTrue("Daemon didn't start", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        // no launch command, the client must find the running daemon
+        client = new DaemonClient(daemonDir, Collections.emptyList(), log);
+    }
+
+    @After
+    public void stopDaemon() throws InterruptedException {
+        client.stop();
+        daemonThread.join(10_000);
+        assertFalse(daemonThread.isAlive());
+        assertFalse(Files.exists(daemonDir.resolve(BuildDaemon.PORT_FILE)));
+    }
+
+    private BuildRequest request(Path sources, Path jar) {
+        return BuildRequest.build(BuildRequestTest.app(sources, jar), ReadSourcesTaskFactory.OUTPUT_TYPE,
+                ConfigSnapshot.capture(path -> null, Collections.emptyList()),
+                Collections.emptyMap(),
+                temp.getRoot().toPath().resolve("local").toFile(),
+                Collections.emptyMap(),
+                null,
+                Collections.singleton("unpack"));
+    }
+
+    @Test
+    public void testGraphReusedUntilJarChanges() throws IOException {
+        Path sources = temp.newFolder("src").toPath();
+        Files.writeString(sources.resolve("App.java"), "class App {}");
+        Path jar = temp.getRoot().toPath().resolve("lib.jar");
+        BuildRequestTest.writeJar(jar, "class Lib {}");
+
+        assertEquals(Optional.of(true), client.build(request(sources, jar)));
+        assertFalse(messages.contains(REUSED));
+        assertTrue(ReadSourcesTaskFactory.READ.contains("class Lib {}"));
+
+        messages.clear();
+        assertEquals(Optional.of(true), client.build(request(sources, jar)));
+        assertTrue(messages.contains(REUSED));
+
+        // sources are hashed again for each request, even when the graph is reused
+        Files.writeString(sources.resolve("App.java"), "class App { int field; }");
+        assertEquals(Optional.of(true), client.build(request(sources, jar)));
+        assertTrue(ReadSourcesTaskFactory.READ.contains("class App { int field; }"));
+
+        // a jar rebuilt at the same path must not be served from the old graph
+        messages.clear();
+        BuildRequestTest.writeJar(jar, "class Lib { int field; }");
+        assertEquals(Optional.of(true), client.build(request(sources, jar)));
+        assertFalse(messages.contains(REUSED));
+        assertTrue(ReadSourcesTaskFactory.READ.contains("class Lib { int field; }"));
+    }
+
+    @Test
+    public void testMissingTaskFails() throws IOException {
+        Path sources = temp.newFolder("src").toPath();
+        Path jar = temp.getRoot().toPath().resolve("lib.jar");
+        BuildRequestTest.writeJar(jar, "class Lib {}");
+        BuildRequest request = BuildRequest.build(BuildRequestTest.app(sources, jar), "no_such_output",
+                ConfigSnapshot.capture(path -> null, Collections.emptyList()),
+                Collections.emptyMap(),
+                temp.getRoot().toPath().resolve("local").toFile(),
+                Collections.emptyMap(),
+                null,
+                Collections.emptySet());
+        assertEquals(Optional.of(false), client.build(request));
+    }
+
+    @Test
+    public void testInvalidTokenRejected() throws IOException {
+        Properties portFile = new Properties();
+        try (Reader reader = Files.newBufferedReader(daemonDir.resolve(BuildDaemon.PORT_FILE))) {
+            portFile.load(reader);
+        }
+        assertNotNull(portFile.getProperty("token"));
+
+        BuildRequest request = BuildRequest.stop();
+        request.setToken("not the token");
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(portFile.getProperty("port")));
+             Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            writer.write(gson.toJson(request) + "\n");
+            writer.flush();
+            DaemonMessage result = gson.fromJson(reader.readLine(), DaemonMessage.class);
+            assertEquals(DaemonMessage.Type.RESULT, result.getType());
+            assertFalse(result.isSuccess());
+            assertEquals("Invalid request", result.getMessage());
+            assertNull(reader.readLine());
+        }
+        // still running, since the request to stop wasn't accepted
+        assertTrue(daemonThread.isAlive());
+    }
+
+    @Test
+    public void testMessageRoundTrip() {
+        DaemonMessage log = gson.fromJson(gson.toJson(DaemonMessage.log(DaemonMessage.Level.WARN, "careful", new IllegalStateException("broken"))), DaemonMessage.class);
+        assertEquals(DaemonMessage.Type.LOG, log.getType());
+        assertEquals(DaemonMessage.Level.WARN, log.getLevel());
+        assertEquals("careful", log.getMessage());
+        assertTrue(log.getStackTrace().startsWith(IllegalStateException.class.getName() + ": broken"));
+
+        DaemonMessage result = gson.fromJson(gson.toJson(DaemonMessage.result(true, null)), DaemonMessage.class);
+        assertEquals(DaemonMessage.Type.RESULT, result.getType());
+        assertTrue(result.isSuccess());
+        assertNull(result.getMessage());
+    }
+}
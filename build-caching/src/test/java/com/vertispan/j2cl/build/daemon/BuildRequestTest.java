@@ -0,0 +1,143 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.daemon;
+
+import com.google.gson.Gson;
+import com.vertispan.j2cl.build.Dependency;
+import com.vertispan.j2cl.build.Project;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BuildRequestTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final Gson gson = new Gson();
+
+    /**
+     * Creates an "app" project with the given source directory, which depends on a "lib" project that only has
+     * a jar of sources.
+     */
+    static Project app(Path sourceDir, Path libJar) {
+        Project lib = new Project("lib");
+        lib.setSourceRoots(Collections.singletonList(libJar.toString()));
+        lib.setJar(libJar.toFile());
+        lib.setDependencies(Collections.emptyList());
+
+        Project app = new Project("app");
+        app.setSourceRoots(Collections.singletonList(sourceDir.toString()));
+        Dependency dependency = new Dependency();
+        dependency.setProject(lib);
+        dependency.setScope(com.vertispan.j2cl.build.task.Dependency.Scope.COMPILE);
+        app.setDependencies(Collections.singletonList(dependency));
+        return app;
+    }
+
+    /**
+     * Writes a jar with a single source file with the given contents, and moves its modified time forward so
+     * that a rewrite within the same millisecond still looks newer.
+     */
+    static void writeJar(Path jar, String contents) throws IOException {
+        FileTime previous = Files.exists(jar) ? Files.getLastModifiedTime(jar) : FileTime.fromMillis(0);
+        try (OutputStream out = Files.newOutputStream(jar);
+             ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry("lib/Lib.java"));
+            zip.write(contents.getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(Math.max(System.currentTimeMillis(), previous.toMillis() + 10_000)));
+    }
+
+    private BuildRequest request(Project project) {
+        return BuildRequest.build(project, ReadSourcesTaskFactory.OUTPUT_TYPE,
+                ConfigSnapshot.capture(path -> null, Collections.emptyList()),
+                Map.of("bytecode", "default"),
+                temp.getRoot().toPath().resolve("local").toFile(),
+                Map.of("bytecode", 2),
+                "1g",
+                Set.of("unpack"));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Path sources = temp.newFolder("src").toPath();
+        Path jar = temp.getRoot().toPath().resolve("lib.jar");
+        writeJar(jar, "class Lib {}");
+
+        BuildRequest request = request(app(sources, jar));
+        BuildRequest copy = gson.fromJson(gson.toJson(request), BuildRequest.class);
+        assertEquals(gson.toJson(request), gson.toJson(copy));
+
+        assertEquals(BuildRequest.Type.BUILD, copy.getType());
+        assertEquals(ReadSourcesTaskFactory.OUTPUT_TYPE, copy.getOutputType());
+        assertEquals(Map.of("bytecode", "default"), copy.getTaskMappings());
+        assertEquals(temp.getRoot().toPath().resolve("local").toFile().getAbsoluteFile(), copy.getLocalBuildCache());
+        assertEquals(Map.of("bytecode", 2), copy.getTaskConcurrencyLimits());
+        assertEquals("1g", copy.getTaskMemoryBudget());
+        assertEquals(Set.of("unpack"), copy.getIoBoundOutputTypes());
+
+        Project app = copy.createProjects();
+        assertEquals("app", app.getKey());
+        assertEquals(Collections.singletonList(sources.toString()), app.getSourceRoots());
+        List<? extends com.vertispan.j2cl.build.task.Dependency> dependencies = app.getDependencies();
+        assertEquals(1, dependencies.size());
+        assertEquals(com.vertispan.j2cl.build.task.Dependency.Scope.COMPILE, dependencies.get(0).getScope());
+        Project lib = (Project) dependencies.get(0).getProject();
+        assertEquals("lib", lib.getKey());
+        assertEquals(jar.toFile().getAbsoluteFile(), lib.getJar());
+        assertFalse(lib.hasSourcesMapped());
+        assertTrue(lib.getDependencies().isEmpty());
+    }
+
+    @Test
+    public void testStop() {
+        BuildRequest copy = gson.fromJson(gson.toJson(BuildRequest.stop()), BuildRequest.class);
+        assertEquals(BuildRequest.Type.STOP, copy.getType());
+    }
+
+    @Test
+    public void testRebuiltJarChangesRequest() throws IOException {
+        Path sources = temp.newFolder("src").toPath();
+        Path jar = temp.getRoot().toPath().resolve("lib.jar");
+        writeJar(jar, "class Lib {}");
+
+        String before = gson.toJson(request(app(sources, jar)));
+        assertEquals(before, gson.toJson(request(app(sources, jar))));
+
+        // same path, as a SNAPSHOT dependency would be
+        writeJar(jar, "class Lib { int field; }");
+        assertNotEquals(before, gson.toJson(request(app(sources, jar))));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.daemon;
+
+import com.google.gson.Gson;
+import com.vertispan.j2cl.build.PropertyTrackingConfig.ConfigValueProvider;
+import com.vertispan.j2cl.build.PropertyTrackingConfig.ConfigValueProvider.ConfigNode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+public class ConfigSnapshotTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final Gson gson = new Gson();
+
+    /**
+     * A config node with a fixed value, which is read as a file relative to the temp folder.
+     */
+    private class Node extends ConfigValueProvider.AbstractConfigNode {
+        private final String name;
+        private final String value;
+        private final List<ConfigNode> children;
+
+        private Node(String path, String name, String value, ConfigNode... children) {
+            super(path);
+            this.name = name;
+            this.value = value;
+            this.children = Arrays.asList(children);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String readString() {
+            return value;
+        }
+
+        @Override
+        public File readFile() {
+            if (value == null) {
+                return null;
+            }
+            if (value.contains(" ")) {
+                throw new IllegalArgumentException("Not a file: " + value);
+            }
+            return new File(temp.getRoot(), value);
+        }
+
+        @Override
+        public List<ConfigNode> getChildren() {
+            return children;
+        }
+    }
+
+    private ConfigValueProvider provider() {
+        Node externs = new Node("externs", "externs", null,
+                new Node("externs[0]", "extern", "a.js"),
+                new Node("externs[1]", "extern", "b.js"));
+        Node defines = new Node("defines", "defines", null,
+                new Node("defines.goog.DEBUG", "goog.DEBUG", "false"));
+        Node level = new Node("compilationLevel", "compilationLevel", "ADVANCED OPTIMIZATIONS");
+        return path -> {
+            switch (path) {
+                case "externs":
+                    return externs;
+                case "defines":
+                    return defines;
+                case "compilationLevel":
+                    return level;
+                default:
+                    return null;
+            }
+        };
+    }
+
+    private ConfigSnapshot roundTrip(ConfigSnapshot snapshot) {
+        return gson.fromJson(gson.toJson(snapshot), ConfigSnapshot.class);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Files.writeString(temp.newFile("a.js").toPath(), "var a;");
+        Files.writeString(temp.newFile("b.js").toPath(), "var b;");
+        ConfigSnapshot snapshot = roundTrip(ConfigSnapshot.capture(provider(), Arrays.asList("externs", "defines", "compilationLevel", "missing")));
+
+        assertEquals("ADVANCED OPTIMIZATIONS", snapshot.findNode("compilationLevel").readString());
+        assertNull(snapshot.findNode("missing"));
+
+        List<File> externs = new ArrayList<>();
+        for (ConfigNode extern : snapshot.findNode("externs").getChildren()) {
+            externs.add(extern.readFile());
+        }
+        assertEquals(Arrays.asList(new File(temp.getRoot(), "a.js").getAbsoluteFile(), new File(temp.getRoot(), "b.js").getAbsoluteFile()), externs);
+
+        // dotted names are found by trying the longest prefix first
+        assertEquals("false", snapshot.findNode("defines.goog.DEBUG").readString());
+        assertEquals(Collections.singletonList("goog.DEBUG"), snapshot.findNode("defines").getChildren().stream().map(ConfigNode::getName).collect(java.util.stream.Collectors.toList()));
+
+        // only a task that reads the value as a file sees the failure
+        assertThrows(IllegalStateException.class, () -> snapshot.findNode("compilationLevel").readFile());
+    }
+
+    @Test
+    public void testFileContentsChangeSnapshot() throws IOException {
+        File a = temp.newFile("a.js");
+        Files.writeString(a.toPath(), "var a;");
+        Files.writeString(temp.newFile("b.js").toPath(), "var b;");
+        List<String> keys = Collections.singletonList("externs");
+
+        String before = gson.toJson(ConfigSnapshot.capture(provider(), keys));
+        assertEquals(before, gson.toJson(ConfigSnapshot.capture(provider(), keys)));
+
+        Files.writeString(a.toPath(), "var a = 1;");
+        assertNotEquals(before, gson.toJson(ConfigSnapshot.capture(provider(), keys)));
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.daemon;
+
+import com.google.gson.Gson;
+import com.vertispan.j2cl.build.task.BuildLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks when the client falls back to an in-process build, against a fake daemon that answers each request with
+ * the given messages and then hangs up.
+ */
+public class DaemonClientTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final Gson gson = new Gson();
+
+    private Path daemonDir;
+    private ServerSocket server;
+    private Thread serverThread;
+    private final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+
+    private final BuildLog log = new BuildLog() {
+        @Override
+        public void debug(String msg) {
+            messages.add(msg);
+        }
+
+        @Override
+        public void info(String msg) {
+            messages.add(msg);
+        }
+
+        @Override
+        public void warn(String msg) {
+            messages.add(msg);
+        }
+
+        @Override
+        public void warn(String msg, Throwable t) {
+            messages.add(msg);
+        }
+
+        @Override
+        public void warn(Throwable t) {
+            messages.add(t.toString());
+        }
+
+        @Override
+        public void error(String msg) {
+            messages.add(msg);
+        }
+
+        @Override
+        public void error(String msg, Throwable t) {
+            messages.add(msg);
+        }
+
+        @Override
+        public void error(Throwable t) {
+            messages.add(t.toString());
+        }
+    };
+
+    @Before
+    public void writePortFile() throws IOException {
+        daemonDir = temp.newFolder("daemon").toPath();
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Properties properties = new Properties();
+        properties.setProperty("port", Integer.toString(server.getLocalPort()));
+        properties.setProperty("token", "secret");
+        try (Writer writer = Files.newBufferedWriter(daemonDir.resolve(BuildDaemon.PORT_FILE), StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        }
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.close();
+        if (serverThread != null) {
+            serverThread.join();
+        }
+    }
+
+    private void answer(DaemonMessage... replies) {
+        serverThread = new Thread(() -> {
+            try (Socket socket = server.accept();
+                 BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                 Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+                reader.readLine();
+                for (DaemonMessage reply : replies) {
+                    writer.write(gson.toJson(reply));
+                    writer.write('\n');
+                }
+                writer.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        serverThread.start();
+    }
+
+    private Optional<Boolean> build() throws IOException {
+        // the fake daemon doesn't look at the request, and there is no launch command to start a real one
+        return new DaemonClient(daemonDir, Collections.emptyList(), log).build(BuildRequest.stop());
+    }
+
+    @Test
+    public void testResult() throws IOException {
+        answer(DaemonMessage.accepted(), DaemonMessage.log(DaemonMessage.Level.INFO, "building", null), DaemonMessage.result(true, null));
+        assertEquals(Optional.of(true), build());
+        assertTrue(messages.contains("building"));
+    }
+
+    @Test
+    public void testFailedBuildIsNotRetried() throws IOException {
+        answer(DaemonMessage.accepted(), DaemonMessage.result(false, "Compile failed"));
+        assertEquals(Optional.of(false), build());
+        assertTrue(messages.contains("Compile failed"));
+    }
+
+    @Test
+    public void testRejectedFallsBack() throws IOException {
+        answer(DaemonMessage.result(false, "Invalid request"));
+        assertEquals(Optional.empty(), build());
+    }
+
+    @Test
+    public void testClosedBeforeAcceptingFallsBack() throws IOException {
+        answer();
+        assertEquals(Optional.empty(), build());
+    }
+
+    @Test
+    public void testClosedAfterAcceptingFails() {
+        // the daemon may still be writing to the cache, building again here could race with it
+        answer(DaemonMessage.accepted(), DaemonMessage.log(DaemonMessage.Level.INFO, "building", null));
+        assertThrows(IOException.class, this::build);
+    }
+}
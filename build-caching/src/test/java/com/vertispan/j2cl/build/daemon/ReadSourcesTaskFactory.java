@@ -0,0 +1,72 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.daemon;
+
+import com.vertispan.j2cl.build.task.CachedPath;
+import com.vertispan.j2cl.build.task.Config;
+import com.vertispan.j2cl.build.task.Dependency;
+import com.vertispan.j2cl.build.task.Input;
+import com.vertispan.j2cl.build.task.OutputTypes;
+import com.vertispan.j2cl.build.task.Project;
+import com.vertispan.j2cl.build.task.TaskFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the sources of a project and its dependencies, recording what it saw, so that tests can tell which
+ * version of each input a build used.
+ */
+public class ReadSourcesTaskFactory extends TaskFactory {
+    public static final String OUTPUT_TYPE = "read_sources";
+
+    static final List<String> READ = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public String getOutputType() {
+        return OUTPUT_TYPE;
+    }
+
+    @Override
+    public String getTaskName() {
+        return "default";
+    }
+
+    @Override
+    public String getVersion() {
+        return "0";
+    }
+
+    @Override
+    public Task resolve(Project project, Config config) {
+        List<Input> inputs = new ArrayList<>();
+        inputs.add(input(project, OutputTypes.INPUT_SOURCES));
+        for (Dependency dependency : project.getDependencies()) {
+            inputs.add(input(dependency, OutputTypes.INPUT_SOURCES));
+        }
+        return context -> {
+            for (Input input : inputs) {
+                for (CachedPath file : input.getFilesAndHashes()) {
+                    READ.add(Files.readString(file.getAbsolutePath(), StandardCharsets.UTF_8));
+                }
+            }
+            Files.writeString(context.outputPath().resolve("done"), "");
+        };
+    }
+}
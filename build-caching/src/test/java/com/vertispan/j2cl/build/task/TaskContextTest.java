@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.task;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class TaskContextTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static final BuildLog LOG = new BuildLog() {
+        @Override
+        public void debug(String msg) {
+        }
+
+        @Override
+        public void info(String msg) {
+        }
+
+        @Override
+        public void warn(String msg) {
+        }
+
+        @Override
+        public void warn(String msg, Throwable t) {
+        }
+
+        @Override
+        public void warn(Throwable t) {
+        }
+
+        @Override
+        public void error(String msg) {
+        }
+
+        @Override
+        public void error(String msg, Throwable t) {
+        }
+
+        @Override
+        public void error(Throwable t) {
+        }
+    };
+
+    private static TaskContext context(java.util.concurrent.Executor helperExecutor) {
+        return new TaskContext(Paths.get("out"), LOG, null, helperExecutor);
+    }
+
+    private static List<Callable<Integer>> jobs(int count, Set<Thread> threads) {
+        List<Callable<Integer>> jobs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int value = i;
+            jobs.add(() -> {
+                threads.add(Thread.currentThread());
+                return value;
+            });
+        }
+        return jobs;
+    }
+
+    @Test
+    public void testWithoutHelpers() throws Exception {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        List<Integer> results = new TaskContext(Paths.get("out"), LOG, null).runInParallel(jobs(5, threads));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), results);
+        assertEquals(Collections.singleton(Thread.currentThread()), threads);
+    }
+
+    @Test
+    public void testHelpersNeverStarted() throws Exception {
+        // the policy may hold helpers back until after the task is done, the task mustn't wait for them
+        List<Runnable> held = new ArrayList<>();
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        assertEquals(Arrays.asList(0, 1, 2), context(held::add).runInParallel(jobs(3, threads)));
+        assertEquals(Collections.singleton(Thread.currentThread()), threads);
+
+        // helpers that start late find nothing left to do
+        held.forEach(Runnable::run);
+        assertEquals(Collections.singleton(Thread.currentThread()), threads);
+    }
+
+    @Test
+    public void testHelpersRejected() throws Exception {
+        List<Integer> results = context(work -> {
+            throw new RejectedExecutionException();
+        }).runInParallel(jobs(3, ConcurrentHashMap.newKeySet()));
+        assertEquals(Arrays.asList(0, 1, 2), results);
+    }
+
+    @Test
+    public void testRunsInParallel() throws Exception {
+        Assume.assumeTrue(Runtime.getRuntime().availableProcessors() > 1);
+        // neither job can finish unless both run at the same time
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        Callable<Boolean> job = () -> {
+            bothStarted.countDown();
+            return bothStarted.await(10, TimeUnit.SECONDS);
+        };
+        assertEquals(Arrays.asList(true, true), context(executor).runInParallel(Arrays.asList(job, job)));
+    }
+
+    @Test
+    public void testFirstFailureThrown() {
+        Set<Integer> ran = ConcurrentHashMap.newKeySet();
+        List<Callable<Integer>> jobs = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            int value = i;
+            jobs.add(() -> {
+                ran.add(value);
+                if (value % 2 == 1) {
+                    throw new IOException("failed " + value);
+                }
+                return value;
+            });
+        }
+        IOException e = assertThrows(IOException.class, () -> context(executor).runInParallel(jobs));
+        assertEquals("failed 1", e.getMessage());
+        // nothing is left running once the failure is reported
+        assertEquals(6, ran.size());
+        assertTrue(ran.containsAll(Arrays.asList(0, 1, 2, 3, 4, 5)));
+    }
+}
@@ -17,9 +17,19 @@ package com.vertispan.j2cl.mojo;
 
 import com.vertispan.j2cl.build.Dependency;
 import com.vertispan.j2cl.build.DiskCache;
+import com.vertispan.j2cl.build.IoExecutors;
+import com.vertispan.j2cl.build.LocalProjectBuildCache;
 import com.vertispan.j2cl.build.Project;
+import com.vertispan.j2cl.build.PropertyTrackingConfig;
+import com.vertispan.j2cl.build.TaskAdmissionPolicy;
 import com.vertispan.j2cl.build.TaskRegistry;
+import com.vertispan.j2cl.build.TaskScheduler;
+import com.vertispan.j2cl.build.daemon.BuildDaemon;
+import com.vertispan.j2cl.build.daemon.BuildRequest;
+import com.vertispan.j2cl.build.daemon.ConfigSnapshot;
+import com.vertispan.j2cl.build.daemon.DaemonClient;
 import com.vertispan.j2cl.build.provided.SkipAptTask;
+import com.vertispan.j2cl.build.task.BuildLog;
 import com.vertispan.j2cl.build.task.OutputTypes;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.maven.RepositoryUtils;
@@ -30,6 +40,7 @@ import org.apache.maven.execution.MavenSession;
 import org.apache.maven.model.FileSet;
 import org.apache.maven.plugin.MojoExecution;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.descriptor.PluginDescriptor;
 import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
@@ -48,7 +59,13 @@ import org.eclipse.aether.resolution.ArtifactResult;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
@@ -103,6 +120,63 @@ public abstract class AbstractBuildMojo extends AbstractCacheMojo {
     @Parameter(defaultValue = "false", property = "j2cl.incremental")
     private boolean incrementalEnabled;
 
+    /**
+     * When incremental builds are enabled and a change affects the API of a project's own types, transpile only
+     * the sources that refer to the changed types, rather than the whole project. Finding those sources needs
+     * javac's record of what refers to what, so J2CL must then wait for javac to finish compiling the project
+     * instead of starting as soon as the sources are stripped. Leave this off where javac is slower than
+     * transpiling the whole project.
+     */
+    @Parameter(defaultValue = "false", property = "j2cl.incrementalTranspileDependents")
+    private boolean incrementalTranspileDependents;
+
+    /**
+     * Compile each project against the API of its in-reactor dependencies, rather than their full bytecode,
+     * so that a change which doesn't affect a dependency's API, like editing a method body, doesn't cause
+     * projects that depend on it to be compiled again.
+     */
+    @Parameter(defaultValue = "false", property = "j2cl.compileAgainstHeaders")
+    private boolean compileAgainstHeaders;
+
+    /**
+     * Number of parts to split each project's sources into, by package, so that J2CL can transpile them at
+     * the same time. Only helps for projects with many packages, where J2CL would otherwise be the longest
+     * part of the build while other threads are idle. Extra shards only run on worker threads that are free,
+     * and count against {@code taskConcurrencyLimits} and {@code taskMemoryBudget} like other transpile tasks.
+     */
+    @Parameter(defaultValue = "1", property = "j2cl.transpileShards")
+    private int transpileShards;
+
+    /**
+     * Number of separate JVMs to run Closure Compiler in, so that several optimized builds can run at once
+     * without sharing this JVM's heap, and one that runs out of memory fails only its own task. The workers
+     * are started when first needed and reused until Maven exits. Zero runs Closure in this JVM.
+     */
+    @Parameter(defaultValue = "0", property = "j2cl.closureWorkers")
+    private int closureWorkers;
+
+    /**
+     * Arguments for the JVMs started by {@link #closureWorkers}, separated by spaces, such as {@code -Xmx4g}.
+     */
+    @Parameter(property = "j2cl.closureWorkerJvmArgs")
+    private String closureWorkerJvmArgs;
+
+    /**
+     * Keep each JS file that Closure Compiler parses in memory, and reuse it in later compiles if the file hasn't
+     * changed, rather than parsing every input again. Mostly useful for j2cl:watch, or a reactor where several
+     * apps share dependencies. This can hold a lot of memory, though it is released when the heap runs low.
+     */
+    @Parameter(defaultValue = "false", property = "j2cl.closureParseCache")
+    private boolean closureParseCache;
+
+    /**
+     * Wrap each file in a BUNDLE build in eval, so that the browser's devtools list every file as its own
+     * script. Setting this to false writes each file as plain code with an index sourcemap instead, which lets
+     * the browser cache the compiled code between page loads and start parsing it while the bundle downloads.
+     */
+    @Parameter(defaultValue = "true", property = "j2cl.bundleEval")
+    private boolean bundleEval;
+
     private List<DependencyReplacement> defaultDependencyReplacements = Arrays.asList(
             new DependencyReplacement("com.google.jsinterop:base", "com.vertispan.jsinterop:base:" + Versions.VERTISPAN_JSINTEROP_BASE_VERSION),
             new DependencyReplacement("org.realityforge.com.google.jsinterop:base", "com.vertispan.jsinterop:base:" + Versions.VERTISPAN_JSINTEROP_BASE_VERSION),
@@ -119,6 +193,64 @@ public abstract class AbstractBuildMojo extends AbstractCacheMojo {
     @Parameter
     protected String workerThreadCount = "4";
 
+    /**
+     * Maximum number of tasks of a given output type that may run at the same time, independent of
+     * {@link #workerThreadCount}. Keys are output types such as {@code optimized_js} or {@code bytecode},
+     * values are the limit. Output types that are not listed are only limited by the number of workers.
+     */
+    @Parameter
+    protected Map<String, Integer> taskConcurrencyLimits = new HashMap<>();
+
+    /**
+     * Amount of heap that CPU-bound tasks may use at the same time, either as a percentage of the maximum
+     * heap size (such as {@code 75%}), or as a size with an optional {@code k}, {@code m} or {@code g}
+     * suffix. Each kind of task is weighted by the heap growth recently observed while it ran, and tasks
+     * wait to start until their weight fits in the remaining budget. Unset or {@code 0} disables the budget.
+     */
+    @Parameter(property = "j2cl.taskMemoryBudget")
+    protected String taskMemoryBudget;
+
+    /**
+     * Output types which should be run in a separate lane from the regular workers, since they spend
+     * their time copying or reading files rather than using the CPU. Tasks which only copy or unpack files
+     * already run in that lane, this is only needed for custom tasks.
+     */
+    @Parameter
+    protected Set<String> ioBoundOutputTypes = new HashSet<>();
+
+    /**
+     * Number of threads to use for I/O-bound tasks, in the same format as {@link #workerThreadCount}. Only
+     * used when running on a JDK older than 21, newer JDKs start a virtual thread for each such task.
+     */
+    @Parameter
+    protected String ioWorkerThreadCount = "1C";
+
+    /**
+     * Sends builds to a long-lived daemon process instead of running them inside Maven, so that the compilers
+     * stay loaded and warmed up, and unchanged projects don't need their tasks collected again. The daemon is
+     * started the first time it is needed, and exits after {@link #daemonIdleTimeoutMinutes}. If it can't be
+     * started or reached, the build runs in this process as usual.
+     * <p></p>
+     * The daemon's worker thread counts are fixed by whichever build starts it.
+     */
+    @Parameter(defaultValue = "false", property = "j2cl.daemon")
+    protected boolean daemon;
+
+    /**
+     * Extra arguments for the JVM that runs the build daemon, such as {@code -Xmx4g}.
+     */
+    @Parameter
+    protected List<String> daemonJvmArgs = new ArrayList<>();
+
+    /**
+     * Minutes the build daemon will wait for another request before it exits.
+     */
+    @Parameter(defaultValue = "60", property = "j2cl.daemon.idleTimeoutMinutes")
+    protected int daemonIdleTimeoutMinutes;
+
+    // set if the daemon couldn't be reached, so later builds in this goal don't keep trying
+    private boolean daemonUnavailable;
+
     // tools to resolve dependencies
     @Component
     protected RepositorySystem repoSystem;
@@ -160,11 +292,53 @@ public abstract class AbstractBuildMojo extends AbstractCacheMojo {
     }
 
     protected int getWorkerTheadCount() {
+        return parseThreadCount(workerThreadCount);
+    }
+
+    protected int getIoWorkerThreadCount() {
+        return parseThreadCount(ioWorkerThreadCount);
+    }
+
+    private static int parseThreadCount(String threadCount) {
         // Use the same algorithm as org.apache.maven.cli.MavenCli
-        if (workerThreadCount.contains("C")) {
-            return (int) (Float.parseFloat(workerThreadCount.replace("C", "")) * Runtime.getRuntime().availableProcessors());
+        if (threadCount.contains("C")) {
+            return Math.max(1, (int) (Float.parseFloat(threadCount.replace("C", "")) * Runtime.getRuntime().availableProcessors()));
+        }
+        return Integer.parseInt(threadCount);
+    }
+
+    protected long getTaskMemoryBudget() throws MojoExecutionException {
+        try {
+            return TaskAdmissionPolicy.parseMemoryBudget(taskMemoryBudget);
+        } catch (NumberFormatException e) {
+            throw new MojoExecutionException("Can't parse taskMemoryBudget " + taskMemoryBudget, e);
+        }
+    }
+
+    /**
+     * Creates the executor for tasks that are run in the I/O lane, see {@link #ioBoundOutputTypes}.
+     */
+    protected ExecutorService createIoExecutor() {
+        return IoExecutors.newIoExecutor(getIoWorkerThreadCount());
+    }
+
+    /**
+     * Creates the scheduler shared by all builds in this goal, applying any configured concurrency limits and
+     * memory budget.
+     */
+    protected TaskScheduler createTaskScheduler(Executor executor, Executor ioExecutor, DiskCache diskCache, BuildLog log) throws MojoExecutionException {
+        TaskAdmissionPolicy admissionPolicy;
+        try {
+            admissionPolicy = new TaskAdmissionPolicy(
+                    taskConcurrencyLimits,
+                    getTaskMemoryBudget(),
+                    ioBoundOutputTypes,
+                    localBuildCache.toPath().resolve("task-memory-estimates.json")
+            );
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException("Invalid taskConcurrencyLimits or taskMemoryBudget: " + e.getMessage(), e);
         }
-        return Integer.parseInt(workerThreadCount);
+        return new TaskScheduler(executor, ioExecutor, admissionPolicy, diskCache, new LocalProjectBuildCache(localBuildCache, diskCache), log);
     }
 
     protected Artifact getMavenArtifactWithCoords(String coords) throws MojoExecutionException {
@@ -417,12 +591,85 @@ public abstract class AbstractBuildMojo extends AbstractCacheMojo {
         }
     }
 
-    protected TaskRegistry createTaskRegistry() {
+    protected Map<String, String> getTaskMappings() {
         if (!annotationProcessorMode.pluginShouldRunApt()) {
             taskMappings.put(OutputTypes.BYTECODE, SkipAptTask.SKIP_TASK_NAME);
         }
+        return taskMappings;
+    }
+
+    protected TaskRegistry createTaskRegistry() {
         // use any task wiring if specified
-        return new TaskRegistry(taskMappings);
+        return new TaskRegistry(getTaskMappings());
+    }
+
+    /**
+     * If {@link #daemon} is enabled, asks the build daemon to build the given project, starting the daemon if
+     * necessary. The config is read in this process for each of the given top level keys, so that expressions
+     * and Maven coordinates are resolved before being sent.
+     *
+     * @return whether the build succeeded, or empty if the daemon is disabled, couldn't be reached or didn't
+     * accept the build, and the build should be run in this process instead
+     * @throws MojoExecutionException if the connection was lost once the daemon had started the build, since
+     * it may still be writing to the cache, and building in this process at the same time isn't safe
+     */
+    protected Optional<Boolean> buildWithDaemon(Project project, String outputTask, PropertyTrackingConfig.ConfigValueProvider config, Collection<String> configKeys) throws MojoExecutionException {
+        if (!daemon || daemonUnavailable) {
+            return Optional.empty();
+        }
+        BuildRequest request = BuildRequest.build(
+                project,
+                outputTask,
+                ConfigSnapshot.capture(config, configKeys),
+                getTaskMappings(),
+                localBuildCache,
+                taskConcurrencyLimits,
+                taskMemoryBudget,
+                ioBoundOutputTypes
+        );
+        Optional<Boolean> result;
+        try {
+            result = createDaemonClient().build(request);
+        } catch (IOException e) {
+            // the daemon may still be writing to the cache, so building here too could corrupt it
+            throw new MojoExecutionException("Lost connection to the build daemon during the build, see " + getCacheDir().resolve("daemon") + " for its log", e);
+        }
+        if (result.isEmpty()) {
+            getLog().warn("Build daemon is unavailable, building in this process instead");
+            daemonUnavailable = true;
+        }
+        return result;
+    }
+
+    private DaemonClient createDaemonClient() throws MojoExecutionException {
+        PluginDescriptor pluginDescriptor = (PluginDescriptor) getPluginContext().get("pluginDescriptor");
+        String classpath;
+        try {
+            List<String> entries = new ArrayList<>();
+            for (URL url : pluginDescriptor.getClassRealm().getURLs()) {
+                entries.add(Paths.get(url.toURI()).toString());
+            }
+            classpath = String.join(File.pathSeparator, entries);
+        } catch (URISyntaxException e) {
+            throw new MojoExecutionException("Failed to read the plugin classpath", e);
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(daemonJvmArgs);
+        command.add("-cp");
+        command.add(classpath);
+        command.add(BuildDaemon.class.getName());
+
+        // each distinct plugin classpath and jvm gets its own daemon, so a daemon never runs stale tasks
+        Path daemonDir = getCacheDir().resolve("daemon").resolve(String.format("%08x", command.hashCode()));
+        command.add(daemonDir.toString());
+        command.add(getCacheDir().toString());
+        command.add(Integer.toString(getWorkerTheadCount()));
+        command.add(Integer.toString(getIoWorkerThreadCount()));
+        command.add(Integer.toString(daemonIdleTimeoutMinutes));
+
+        return new DaemonClient(daemonDir, command, new MavenLog(getLog()));
     }
 
     protected Predicate<String> withSourceRootFilter() {
@@ -432,11 +679,12 @@ public abstract class AbstractBuildMojo extends AbstractCacheMojo {
                     path.endsWith("generated-sources" + File.separator + "annotations")));
     }
 
-    protected void addShutdownHook(ScheduledExecutorService executor, DiskCache diskCache) {
+    protected void addShutdownHook(ScheduledExecutorService executor, ExecutorService ioExecutor, DiskCache diskCache) {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try {
                 // first prevent new tasks from starting
                 executor.shutdown();
+                ioExecutor.shutdown();
 
                 // next, make sure the disk cache doesn't try to pick up work - this will block on joining
                 // to the watching thread, so we ran shutdown above
@@ -444,13 +692,17 @@ public abstract class AbstractBuildMojo extends AbstractCacheMojo {
 
                 // finally, interrupt running work and wait a short time for that to stop
                 executor.shutdownNow();
+                ioExecutor.shutdownNow();
                 executor.awaitTermination(shutdownWaitSeconds, TimeUnit.SECONDS);
+                ioExecutor.awaitTermination(shutdownWaitSeconds, TimeUnit.SECONDS);
 
             } catch (IOException e) {
                 executor.shutdownNow();
+                ioExecutor.shutdownNow();
                 e.printStackTrace();
             } catch (InterruptedException e) {
                 executor.shutdownNow();
+                ioExecutor.shutdownNow();
                 e.printStackTrace();
                 Thread.currentThread().interrupt();
             }
@@ -19,7 +19,6 @@ import com.vertispan.j2cl.build.BlockingBuildListener;
 import com.vertispan.j2cl.build.BuildService;
 import com.vertispan.j2cl.build.DefaultDiskCache;
 import com.vertispan.j2cl.build.DiskCache;
-import com.vertispan.j2cl.build.LocalProjectBuildCache;
 import com.vertispan.j2cl.build.Project;
 import com.vertispan.j2cl.build.TaskRegistry;
 import com.vertispan.j2cl.build.TaskScheduler;
@@ -48,9 +47,11 @@ import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -156,6 +157,27 @@ public class BuildMojo extends AbstractBuildMojo {
     @Parameter
     protected TranslationsFileConfig translationsFile;
 
+    /**
+     * Splits the output of SIMPLE_OPTIMIZATIONS or ADVANCED_OPTIMIZATIONS into chunks, which the page can load
+     * once they are needed, instead of downloading the whole application before it starts. Each chunk holds the
+     * files providing its entrypoints and the files in its packages, and Closure moves any file needed by more
+     * than one chunk into a chunk they all depend on. Everything else stays in the initial script, which every
+     * chunk depends on. Chunks must be listed after the chunks they depend on.
+     * <pre>
+     * &lt;chunks&gt;
+     *   &lt;chunk&gt;
+     *     &lt;name&gt;admin&lt;/name&gt;
+     *     &lt;packages&gt;&lt;package&gt;com.example.admin&lt;/package&gt;&lt;/packages&gt;
+     *   &lt;/chunk&gt;
+     * &lt;/chunks&gt;
+     * </pre>
+     * Each chunk is written next to the initial script as name.js, along with a manifest, named like the initial
+     * script but ending in .chunks.json, listing the files to load for each chunk, in order. Other compilation
+     * levels ignore this and write a single file.
+     */
+    @Parameter
+    protected List<ChunkConfig> chunks = new ArrayList<>();
+
     /**
      * Closure flag: "Determines the set of builtin externs to load. Options: BROWSER, CUSTOM. Defaults to BROWSER."
      *
@@ -235,8 +257,17 @@ public class BuildMojo extends AbstractBuildMojo {
         // given the build output, determine what tasks we're going to run
         String outputTask = getOutputTask(compilationLevel);
 
+        Optional<Boolean> daemonResult = buildWithDaemon(p, outputTask, config, config.getKeys());
+        if (daemonResult.isPresent()) {
+            if (!daemonResult.get()) {
+                throw new MojoFailureException("Build failed, check log for failures");
+            }
+            return;
+        }
+
         // construct other required elements to get the work done
         ScheduledExecutorService executor = Executors.newScheduledThreadPool(getWorkerTheadCount());
+        ExecutorService ioExecutor = createIoExecutor();
         final DiskCache diskCache;
         try {
             diskCache = new DefaultDiskCache(getCacheDir().toFile(), executor);
@@ -244,10 +275,10 @@ public class BuildMojo extends AbstractBuildMojo {
             throw new MojoExecutionException("Failed to create cache", ioException);
         }
 
-        addShutdownHook(executor, diskCache);
+        addShutdownHook(executor, ioExecutor, diskCache);
 
         MavenLog mavenLog = new MavenLog(getLog());
-        TaskScheduler taskScheduler = new TaskScheduler(executor, diskCache, new LocalProjectBuildCache(localBuildCache, diskCache), mavenLog);
+        TaskScheduler taskScheduler = createTaskScheduler(executor, ioExecutor, diskCache, mavenLog);
 
         TaskRegistry taskRegistry = createTaskRegistry();
 
@@ -24,7 +24,6 @@ import com.vertispan.j2cl.build.BuildService;
 import com.vertispan.j2cl.build.DefaultDiskCache;
 import com.vertispan.j2cl.build.Dependency;
 import com.vertispan.j2cl.build.DiskCache;
-import com.vertispan.j2cl.build.LocalProjectBuildCache;
 import com.vertispan.j2cl.build.Project;
 import com.vertispan.j2cl.build.PropertyTrackingConfig;
 import com.vertispan.j2cl.build.TaskRegistry;
@@ -76,16 +75,19 @@ import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.logging.Level;
@@ -267,6 +269,8 @@ public class TestMojo extends AbstractBuildMojo {
     @Parameter
     protected TranslationsFileConfig translationsFile;
 
+    private InProcessBuild inProcessBuild;
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
         if (skip) {
@@ -339,35 +343,9 @@ public class TestMojo extends AbstractBuildMojo {
         // given the build output, determine what tasks we're going to run
         String outputTask = getOutputTask(compilationLevel);
 
-        // construct other required elements to get the work done
-        ScheduledExecutorService executor = Executors.newScheduledThreadPool(getWorkerTheadCount());
-        final DiskCache diskCache;
-        try {
-            diskCache = new DefaultDiskCache(getCacheDir().toFile(), executor);
-        } catch (IOException ioException) {
-            throw new MojoExecutionException("Failed to create cache", ioException);
-        }
-
-        addShutdownHook(executor, diskCache);
-
-        MavenLog mavenLog = new MavenLog(getLog());
-        TaskScheduler taskScheduler = new TaskScheduler(executor, diskCache, new LocalProjectBuildCache(localBuildCache, diskCache), mavenLog);
-        TaskRegistry taskRegistry = createTaskRegistry();
-
-        // Given these, build the graph of work we need to complete to get the list of tests
-        BuildService buildService = new BuildService(taskRegistry, taskScheduler, diskCache);
-        buildService.assignProject(test, TestCollectionTask.TEST_COLLECTION_OUTPUT_TYPE, config);
-
-        // Get the hash of all current files, since we aren't running a watch service
-        buildService.initialHashes();
-
-        // perform the initial build, produce the test
-        BlockingBuildListener listener = new BlockingBuildListener();
-        try {
-            buildService.requestBuild(listener);
-            listener.blockUntilFinished();
-        } catch (InterruptedException e) {
-            throw new MojoExecutionException("Interrupted", e);
+        // perform the initial build, produce the test summary
+        if (!build(test, TestCollectionTask.TEST_COLLECTION_OUTPUT_TYPE, config, config.getKeys())) {
+            throw new MojoFailureException("Failed to collect tests, see log for details");
         }
 
         // now we have the test summary json in the webapp dir
@@ -412,21 +390,9 @@ public class TestMojo extends AbstractBuildMojo {
                         )
                 );
 
-                // Fresh build service (to avoid re-running other final tasks) since we're building serially,
-                // but we reuse the params
-                buildService = new BuildService(taskRegistry, taskScheduler, diskCache);
-                buildService.assignProject(suite, outputTask, overridenConfig);
-                buildService.initialHashes();
-                BlockingBuildListener l = new BlockingBuildListener();
-                try {
-                    buildService.requestBuild(l);
-                    l.blockUntilFinished();
-                } catch (InterruptedException e) {
-                    throw new MojoExecutionException("Interrupted", e);
-                } catch (CompletionException e) {
-                    throw new MojoExecutionException("Error while building", e.getCause());
-                }
-                if (!l.isSuccess()) {
+                List<String> configKeys = new ArrayList<>(config.getKeys());
+                configKeys.add("initialScriptFilename");
+                if (!build(suite, outputTask, overridenConfig, configKeys)) {
                     throw new MojoFailureException("Error building test, see log for details");
                 }
 
@@ -525,6 +491,67 @@ public class TestMojo extends AbstractBuildMojo {
     }
 
 
+    /**
+     * Builds the given project with the daemon if it is enabled and available, otherwise in this process.
+     *
+     * @return true if the build succeeded
+     */
+    private boolean build(Project project, String outputTask, PropertyTrackingConfig.ConfigValueProvider config, Collection<String> configKeys) throws MojoExecutionException {
+        Optional<Boolean> daemonResult = buildWithDaemon(project, outputTask, config, configKeys);
+        if (daemonResult.isPresent()) {
+            return daemonResult.get();
+        }
+        if (inProcessBuild == null) {
+            inProcessBuild = new InProcessBuild();
+        }
+        return inProcessBuild.build(project, outputTask, config);
+    }
+
+    /**
+     * The executors, cache and scheduler used to build in this process, only created once the daemon turns out
+     * not to be used, and then shared by each build this mojo runs.
+     */
+    private class InProcessBuild {
+        private final DiskCache diskCache;
+        private final TaskScheduler taskScheduler;
+        private final TaskRegistry taskRegistry = createTaskRegistry();
+
+        private InProcessBuild() throws MojoExecutionException {
+            ScheduledExecutorService executor = Executors.newScheduledThreadPool(getWorkerTheadCount());
+            ExecutorService ioExecutor = createIoExecutor();
+            try {
+                diskCache = new DefaultDiskCache(getCacheDir().toFile(), executor);
+            } catch (IOException ioException) {
+                throw new MojoExecutionException("Failed to create cache", ioException);
+            }
+
+            addShutdownHook(executor, ioExecutor, diskCache);
+
+            taskScheduler = createTaskScheduler(executor, ioExecutor, diskCache, new MavenLog(getLog()));
+        }
+
+        private boolean build(Project project, String outputTask, PropertyTrackingConfig.ConfigValueProvider config) throws MojoExecutionException {
+            // Fresh build service (to avoid re-running other final tasks) since we're building serially,
+            // but we reuse the params
+            BuildService buildService = new BuildService(taskRegistry, taskScheduler, diskCache);
+            buildService.assignProject(project, outputTask, config);
+
+            // Get the hash of all current files, since we aren't running a watch service
+            buildService.initialHashes();
+
+            BlockingBuildListener listener = new BlockingBuildListener();
+            try {
+                buildService.requestBuild(listener);
+                listener.blockUntilFinished();
+            } catch (InterruptedException e) {
+                throw new MojoExecutionException("Interrupted", e);
+            } catch (CompletionException e) {
+                throw new MojoExecutionException("Error while building", e.getCause());
+            }
+            return listener.isSuccess();
+        }
+    }
+
     private WebDriver createBrowser() throws MojoExecutionException {
         if ("chrome".equalsIgnoreCase(webdriver)) {
             ChromeOptions chromeOptions = new ChromeOptions();
@@ -18,7 +18,6 @@ package com.vertispan.j2cl.mojo;
 import com.vertispan.j2cl.build.BuildService;
 import com.vertispan.j2cl.build.DefaultDiskCache;
 import com.vertispan.j2cl.build.DiskCache;
-import com.vertispan.j2cl.build.LocalProjectBuildCache;
 import com.vertispan.j2cl.build.Project;
 import com.vertispan.j2cl.build.TaskRegistry;
 import com.vertispan.j2cl.build.TaskScheduler;
@@ -43,9 +42,11 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.Function;
@@ -151,6 +152,28 @@ public class WatchMojo extends AbstractBuildMojo {
     @Parameter(defaultValue = "SORT_ONLY")
     protected String dependencyMode;
 
+    /**
+     * After a file changes, how long to wait without any further changes before starting a build, in
+     * milliseconds. Bursts of changes, like switching branches, will be collected into a single build.
+     */
+    @Parameter(defaultValue = "100", property = "j2cl.watch.minDebounceMillis")
+    protected long minDebounceMillis;
+
+    /**
+     * The longest time to wait after the first change before starting a build, in milliseconds, even if files
+     * are still changing.
+     */
+    @Parameter(defaultValue = "2000", property = "j2cl.watch.maxDebounceMillis")
+    protected long maxDebounceMillis;
+
+    /**
+     * Glob patterns for files that should be ignored when they change, such as editor swap files. Patterns are
+     * matched against both the file's path within its source directory, and its file name. Specifying this
+     * replaces the defaults, which cover common editor and operating system files.
+     */
+    @Parameter
+    protected List<String> ignoredFiles = new ArrayList<>(WatchService.DEFAULT_IGNORED_GLOBS);
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
         PluginDescriptor pluginDescriptor = (PluginDescriptor) getPluginContext().get("pluginDescriptor");
@@ -202,6 +225,7 @@ public class WatchMojo extends AbstractBuildMojo {
         // cache dir (plus a few other special things like webappDirectory), but the
         // other config options come from the plugin or goal config itself
         ScheduledExecutorService executor = Executors.newScheduledThreadPool(getWorkerTheadCount());
+        ExecutorService ioExecutor = createIoExecutor();
         final DiskCache diskCache;
         try {
             diskCache = new DefaultDiskCache(getCacheDir().toFile(), executor);
@@ -209,10 +233,10 @@ public class WatchMojo extends AbstractBuildMojo {
             throw new MojoExecutionException("Failed to create cache", ioException);
         }
 
-        addShutdownHook(executor, diskCache);
+        addShutdownHook(executor, ioExecutor, diskCache);
 
         MavenLog mavenLog = new MavenLog(getLog());
-        TaskScheduler taskScheduler = new TaskScheduler(executor, diskCache, new LocalProjectBuildCache(localBuildCache, diskCache), mavenLog);
+        TaskScheduler taskScheduler = createTaskScheduler(executor, ioExecutor, diskCache, mavenLog);
 
         // TODO support individual task registries per execution
         TaskRegistry taskRegistry = createTaskRegistry();
@@ -285,7 +309,7 @@ public class WatchMojo extends AbstractBuildMojo {
         } catch (Exception ex) {
             throw new MojoExecutionException("Failed to build project model", ex);
         }
-        WatchService watchService = new WatchService(buildService, executor, mavenLog);
+        WatchService watchService = new WatchService(buildService, executor, mavenLog, minDebounceMillis, maxDebounceMillis, ignoredFiles);
         try {
             // trigger initial changes, and start up watching for future ones to rebuild
             watchService.watch(
@@ -187,6 +187,18 @@ public class Xpp3DomConfigValueProvider implements PropertyTrackingConfig.Config
         }
     }
 
+    /**
+     * @return the name of each top level config entry, such that every value can be found under one of them
+     */
+    public List<String> getKeys() {
+        List<String> keys = new ArrayList<>();
+        keys.add("extraClasspath");
+        for (Xpp3Dom child : config.getChildren()) {
+            keys.add(child.getName());
+        }
+        return keys;
+    }
+
     @Override
     public ConfigNode findNode(String path) {
         if (path.equals("extraClasspath")) {
@@ -21,7 +21,7 @@ import com.google.gson.GsonBuilder;
 import com.google.javascript.jscomp.deps.ClosureBundler;
 import com.vertispan.j2cl.build.task.*;
 import com.vertispan.j2cl.tools.Closure;
-import org.apache.commons.io.FileUtils;
+import com.vertispan.j2cl.tools.FileMirror;
 
 import java.io.File;
 import java.io.IOException;
@@ -36,6 +36,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static com.vertispan.j2cl.build.provided.ClosureBundleTask.BUNDLE_JS_EXTENSION;
+import static com.vertispan.j2cl.build.provided.ClosureBundleTask.SOURCE_MAP_EXTENSION;
 import static com.vertispan.j2cl.build.provided.ClosureTask.COPIED_OUTPUT;
 import static com.vertispan.j2cl.build.provided.ClosureTask.copiedOutputPath;
 
@@ -43,6 +44,7 @@ import static com.vertispan.j2cl.build.provided.ClosureTask.copiedOutputPath;
 public class BundleJarTask extends TaskFactory {
 
     public static final PathMatcher BUNDLE_JS = withSuffix(BUNDLE_JS_EXTENSION);
+    public static final PathMatcher BUNDLE_JS_MAP = withSuffix(BUNDLE_JS_EXTENSION + SOURCE_MAP_EXTENSION);
 
     @Override
     public String getOutputType() {
@@ -56,7 +58,12 @@ public class BundleJarTask extends TaskFactory {
 
     @Override
     public String getVersion() {
-        return "0";
+        return "1";
+    }
+
+    @Override
+    public boolean isIoBound(Project project) {
+        return true;
     }
 
     @Override
@@ -70,6 +77,10 @@ public class BundleJarTask extends TaskFactory {
                 )
                 .map(i -> i.filter(BUNDLE_JS))
                 .collect(Collectors.toUnmodifiableList());
+        // bundles written without eval have index sourcemaps next to them, copy those too but don't load them
+        List<Input> sourceMaps = jsSources.stream()
+                .map(i -> input(i.getProject(), OutputTypes.BUNDLED_JS).filter(BUNDLE_JS_MAP))
+                .collect(Collectors.toUnmodifiableList());
 
         // Sort the projects, to try to include them in order. We can't be sure that all project
         // dependencies will be (or should be) present, but we can make sure that we only load
@@ -97,7 +108,7 @@ public class BundleJarTask extends TaskFactory {
                 )
                 // Only need to consider the original inputs and generated sources,
                 // J2CL won't contribute this kind of sources
-                .map(p -> input(p, OutputTypes.BYTECODE).filter(COPIED_OUTPUT))
+                .flatMap(p -> BytecodeTask.resourceInputsOnly(p, this::input, COPIED_OUTPUT))
                 .collect(Collectors.toUnmodifiableList());
 
         return new FinalOutputTask() {
@@ -117,7 +128,7 @@ public class BundleJarTask extends TaskFactory {
 
                 File outputDir = initialScriptFile.getParentFile();
                 outputDir.mkdirs();
-                for (CachedPath bundle : jsSources.stream()
+                for (CachedPath bundle : Stream.concat(jsSources.stream(), sourceMaps.stream())
                         .flatMap(i -> i.getFilesAndHashes().stream())
                         .collect(Collectors.toUnmodifiableList())) {
                     Path targetFile = outputDir.toPath().resolve(bundle.getSourcePath());
@@ -132,7 +143,8 @@ public class BundleJarTask extends TaskFactory {
                 destSourcesDir.mkdirs();
                 for (Path dir : jsSources.stream().map(Input::getParentPaths).flatMap(Collection::stream).map(p -> p.resolve(Closure
                         .SOURCES_DIRECTORY_NAME)).collect(Collectors.toSet())) {
-                    FileUtils.copyDirectory(dir.toFile(), destSourcesDir);
+                    // copy rather than link, so that editing the webapp can't change the cached bundles
+                    FileMirror.copy(dir, destSourcesDir.toPath());
                 }
 
                 try {
@@ -0,0 +1,273 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.provided;
+
+import com.google.auto.service.AutoService;
+import com.google.common.collect.ImmutableList;
+import com.google.turbine.bytecode.ClassFile;
+import com.google.turbine.bytecode.ClassReader;
+import com.google.turbine.bytecode.ClassWriter;
+import com.vertispan.j2cl.build.task.*;
+
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Reduces a project's bytecode to what is needed to compile against it, so that javac in downstream projects
+ * can use this instead of {@link OutputTypes#BYTECODE}, and only needs to run again when this changes. Method
+ * bodies are removed, as are synthetic members, private members without annotations, and anonymous and local
+ * classes - none of these can be referenced from another project. Private members with annotations are kept
+ * in case an annotation processor looks for them. Resources which were generated into the bytecode are copied
+ * as-is, so that processors can still find them on the classpath - resources from source roots are put on the
+ * classpath directly by {@link BytecodeTask}. The {@link BytecodeTask#DEPENDENCIES_FILE} is left out, it changes
+ * with every edit to a source and nothing downstream reads it.
+ *
+ * Projects which contain an annotation processor are copied unchanged, since javac will need to run the
+ * processor from this classpath.
+ */
+@AutoService(TaskFactory.class)
+public class BytecodeHeadersTask extends TaskFactory {
+    // not exposed by java.lang.reflect.Modifier
+    private static final int ACC_SYNTHETIC = 0x1000;
+
+    private static final PathMatcher DEPENDENCIES_FILE = p -> p.equals(Paths.get(BytecodeTask.DEPENDENCIES_FILE));
+
+    @Override
+    public String getOutputType() {
+        return OutputTypes.BYTECODE_HEADERS;
+    }
+
+    @Override
+    public String getTaskName() {
+        return "default";
+    }
+
+    @Override
+    public String getVersion() {
+        return "1";
+    }
+
+    @Override
+    public boolean isIoBound(Project project) {
+        return !project.hasSourcesMapped();
+    }
+
+    @Override
+    public Task resolve(Project project, Config config) {
+        Input bytecode = input(project, OutputTypes.BYTECODE)
+                .filterOnly(p -> !BytecodeTask.JAVA_SOURCES.matches(p) && !DEPENDENCIES_FILE.matches(p));
+        List<Input> processorServices = BytecodeTask.resourceInputsOnly(project, this::input, BytecodeTask.APT_PROCESSOR)
+                .collect(Collectors.toUnmodifiableList());
+
+        return context -> {
+            boolean hasProcessor = processorServices.stream().anyMatch(input -> !input.getFilesAndHashes().isEmpty());
+            for (CachedPath entry : bytecode.getFilesAndHashes()) {
+                Path outputFile = context.outputPath().resolve(entry.getSourcePath());
+                if (hasProcessor || !BytecodeTask.JAVA_BYTECODE.matches(entry.getSourcePath())) {
+                    Files.createDirectories(outputFile.getParent());
+                    Files.copy(entry.getAbsolutePath(), outputFile);
+                    continue;
+                }
+                Optional<byte[]> header = header(entry.getSourcePath().toString(), Files.readAllBytes(entry.getAbsolutePath()));
+                if (header.isPresent()) {
+                    Files.createDirectories(outputFile.getParent());
+                    Files.write(outputFile, header.get());
+                }
+            }
+        };
+    }
+
+    private static Optional<byte[]> header(String path, byte[] bytes) {
+        ClassFile classFile = ClassReader.read(path, bytes);
+        if (classFile.name().equals("module-info")
+                || (classFile.access() & ACC_SYNTHETIC) != 0
+                || isAnonymousOrLocal(bytes)) {
+            // nothing outside of this project can refer to these
+            return Optional.empty();
+        }
+        List<ClassFile.MethodInfo> methods = classFile.methods().stream()
+                .filter(method -> isApi(method.access(), !method.annotations().isEmpty()))
+                .collect(Collectors.toUnmodifiableList());
+        List<ClassFile.FieldInfo> fields = classFile.fields().stream()
+                .filter(field -> isApi(field.access(), !field.annotations().isEmpty()))
+                .collect(Collectors.toUnmodifiableList());
+        List<ClassFile.InnerClass> innerClasses = classFile.innerClasses().stream()
+                .filter(inner -> inner.outerClass() != null)
+                .collect(Collectors.toUnmodifiableList());
+
+        return Optional.of(ClassWriter.writeClass(new ClassFile(
+                classFile.access(),
+                classFile.majorVersion(),
+                classFile.name(),
+                classFile.signature(),
+                classFile.superName(),
+                classFile.interfaces(),
+                classFile.permits(),
+                methods,
+                fields,
+                classFile.annotations(),
+                innerClasses,
+                classFile.typeAnnotations(),
+                null,
+                // nest attributes only matter at runtime, and would list anonymous classes
+                null,
+                ImmutableList.of(),
+                classFile.record(),
+                null
+        )));
+    }
+
+    /**
+     * Checks if the class is anonymous or local, or is nested in such a class. Turbine's reader drops the
+     * InnerClasses entries for anonymous and local classes, and skips EnclosingMethod, so this reads those two
+     * attributes itself. Only anonymous and local classes have an EnclosingMethod attribute, and their own entry
+     * in InnerClasses has no outer class - following the outer classes from this one finds if any of them is such
+     * a class.
+     */
+    private static boolean isAnonymousOrLocal(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        // magic and version
+        skip(buffer, 8);
+        int constantCount = u2(buffer);
+        // offsets of utf8 constants, and the utf8 index for each class constant
+        int[] utf8 = new int[constantCount];
+        int[] classNames = new int[constantCount];
+        for (int i = 1; i < constantCount; i++) {
+            int tag = buffer.get();
+            switch (tag) {
+                case 1:// Utf8
+                    utf8[i] = buffer.position();
+                    skip(buffer, u2(buffer));
+                    break;
+                case 7:// Class
+                    classNames[i] = u2(buffer);
+                    break;
+                case 8:// String
+                case 16:// MethodType
+                case 19:// Module
+                case 20:// Package
+                    skip(buffer, 2);
+                    break;
+                case 15:// MethodHandle
+                    skip(buffer, 3);
+                    break;
+                case 3:// Integer
+                case 4:// Float
+                case 9:// Fieldref
+                case 10:// Methodref
+                case 11:// InterfaceMethodref
+                case 12:// NameAndType
+                case 17:// Dynamic
+                case 18:// InvokeDynamic
+                    skip(buffer, 4);
+                    break;
+                case 5:// Long
+                case 6:// Double
+                    skip(buffer, 8);
+                    // takes two entries
+                    i++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+            }
+        }
+        // access flags
+        skip(buffer, 2);
+        int thisClass = classNames[u2(buffer)];
+        // super class, then interfaces
+        skip(buffer, 2);
+        skip(buffer, 2 * u2(buffer));
+        // fields, then methods
+        skipMembers(buffer);
+        skipMembers(buffer);
+
+        // the name of each class listed in InnerClasses to the name of its outer class, or 0 if it has none
+        Map<Integer, Integer> outerClasses = new HashMap<>();
+        int attributeCount = u2(buffer);
+        for (int i = 0; i < attributeCount; i++) {
+            String name = utf8(bytes, utf8[u2(buffer)]);
+            int end = buffer.getInt() + buffer.position();
+            if (name.equals("EnclosingMethod")) {
+                return true;
+            }
+            if (name.equals("InnerClasses")) {
+                int count = u2(buffer);
+                for (int j = 0; j < count; j++) {
+                    int inner = classNames[u2(buffer)];
+                    int outer = u2(buffer);
+                    outerClasses.put(inner, outer == 0 ? 0 : classNames[outer]);
+                    // inner name and access flags
+                    skip(buffer, 4);
+                }
+            }
+            buffer.position(end);
+        }
+
+        Integer outer = outerClasses.get(thisClass);
+        // javac lists every enclosing class, stop if a bad class file has a cycle
+        for (int depth = 0; outer != null && depth <= outerClasses.size(); depth++) {
+            if (outer == 0) {
+                return true;
+            }
+            outer = outerClasses.get(outer);
+        }
+        return false;
+    }
+
+    private static void skipMembers(ByteBuffer buffer) {
+        int count = u2(buffer);
+        for (int i = 0; i < count; i++) {
+            // access flags, name and descriptor
+            skip(buffer, 6);
+            int attributeCount = u2(buffer);
+            for (int j = 0; j < attributeCount; j++) {
+                skip(buffer, 2);
+                skip(buffer, buffer.getInt());
+            }
+        }
+    }
+
+    private static int u2(ByteBuffer buffer) {
+        return buffer.getShort() & 0xFFFF;
+    }
+
+    private static void skip(ByteBuffer buffer, int length) {
+        buffer.position(buffer.position() + length);
+    }
+
+    private static String utf8(byte[] bytes, int offset) {
+        int length = ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+        // attribute names are plain ascii, so this doesn't need to handle the modified encoding
+        return new String(bytes, offset + 2, length, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isApi(int access, boolean annotated) {
+        if ((access & ACC_SYNTHETIC) != 0) {
+            return false;
+        }
+        return !Modifier.isPrivate(access) || annotated;
+    }
+}
@@ -19,6 +19,8 @@ import com.google.auto.service.AutoService;
 import com.google.j2cl.common.SourceUtils;
 import com.vertispan.j2cl.build.task.*;
 import com.vertispan.j2cl.tools.Javac;
+import com.vertispan.j2cl.tools.JavacDependencies;
+import org.apache.commons.io.FileUtils;
 
 import javax.annotation.Nullable;
 import java.io.BufferedReader;
@@ -26,6 +28,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
@@ -33,18 +36,25 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.ZipFile;
 
 /**
  * This runs javac (and so, all annotation processors) on the input source, and
- * produces a directory of all sources, resources, and bytecode of a reactor
- * project. This results in a directory with the same contents you might get from
- * unpacking the jar from a non-reactor dependency, so we can treat all
- * dependencies the same, regardless of their origin.
+ * produces a directory of the Java sources, bytecode and generated files of a
+ * reactor project. Other resources are left where they are, so that editing them
+ * doesn't require compiling again - see {@link #resourceInputs}. For a non-reactor
+ * dependency, the contents of its jar are copied as-is.
  */
 @AutoService(TaskFactory.class)
 public class BytecodeTask extends TaskFactory {
@@ -55,9 +65,25 @@ public class BytecodeTask extends TaskFactory {
     public static final PathMatcher JAVA_MODULE_INFO = withSuffix("module-info.java");
     public static final PathMatcher JAVA_SOURCES_EXCEPT_MODULE_INFO = p -> JAVA_SOURCES.matches(p) && !JAVA_MODULE_INFO.matches(p);
 
+    public static final PathMatcher RESOURCES = p -> !JAVA_SOURCES.matches(p) && !JAVA_BYTECODE.matches(p);
+
     public static final PathMatcher APT_PROCESSOR = p ->
                         p.equals(Paths.get("META-INF", "services", "javax.annotation.processing.Processor"));
 
+    /**
+     * Written to the output when incremental builds are enabled, so the next build can find which sources to
+     * compile again and which class files to copy.
+     */
+    public static final String DEPENDENCIES_FILE = "META-INF/j2cl-javac-dependencies.json";
+
+    private static final String PROCESSOR_SERVICE_FILE = "META-INF/services/javax.annotation.processing.Processor";
+
+    /**
+     * Jars already checked for an annotation processor, since every resolve of this task and of
+     * {@link StripSourcesTask} checks the same ones.
+     */
+    private static final Map<File, CheckedJar> CHECKED_JARS = new ConcurrentHashMap<>();
+
     @Override
     public String getOutputType() {
         return OutputTypes.BYTECODE;
@@ -70,7 +96,13 @@ public class BytecodeTask extends TaskFactory {
 
     @Override
     public String getVersion() {
-        return "0";
+        return "1";
+    }
+
+    @Override
+    public boolean isIoBound(Project project) {
+        // projects without sources only have their jar contents copied
+        return !project.hasSourcesMapped();
     }
 
     @Override
@@ -87,33 +119,45 @@ public class BytecodeTask extends TaskFactory {
             };
         }
 
-        // TODO just use one input for both of these
-        // track the dirs (with all file changes) so that APT can see things it wants
-        Input inputDirs = input(project, OutputTypes.INPUT_SOURCES);
+        // Resources are only inputs if an annotation processor could read them, otherwise only a change to a
+        // Java source should cause this to run again
+        boolean processorsMayRun = mayRunProcessors(project, config.getExtraClasspath());
+
         // track just java files (so we can just compile them), ignoring module-info.java files (as they make javac 8 fail)
         Input inputSources = input(project, OutputTypes.INPUT_SOURCES).filter(JAVA_SOURCES_EXCEPT_MODULE_INFO);
-        // track resources so they are available to downstream processors on the classpath, as they would
-        // be if we had built a jar
-        Input resources = input(project, OutputTypes.INPUT_SOURCES).filter(NOT_BYTECODE);
+        // track the dirs (with all file changes) so that APT can see things it wants
+        Input inputDirs = processorsMayRun ? input(project, OutputTypes.INPUT_SOURCES) : inputSources;
+        // copy the java sources, so that this output holds everything that will need to be stripped
+        Input javaSources = input(project, OutputTypes.INPUT_SOURCES).filter(JAVA_SOURCES);
 
-        List<Input> bytecodeClasspath = scope(project.getDependencies()
+        // when enabled, compile against the API of in-reactor dependencies, so that this only needs to run again
+        // if that changes - jars never change, so they can be used as-is
+        boolean compileAgainstHeaders = "true".equalsIgnoreCase(config.getString("compileAgainstHeaders"));
+        List<Project> classpathProjects = scope(project.getDependencies()
                         .stream()
                         .filter(dependency -> dependency.getProject().getProcessors().isEmpty()).collect(Collectors.toSet()),
-                com.vertispan.j2cl.build.task.Dependency.Scope.COMPILE)
+                com.vertispan.j2cl.build.task.Dependency.Scope.COMPILE);
+        List<Input> bytecodeClasspath = classpathProjects
                 .stream()
-                .map(inputs(OutputTypes.BYTECODE))
+                .map(p -> input(p, compileAgainstHeaders && p.hasSourcesMapped() ? OutputTypes.BYTECODE_HEADERS : OutputTypes.BYTECODE))
                 .collect(Collectors.toUnmodifiableList());
+        // reactor projects don't copy their resources to their output, so put them on the classpath directly for
+        // any processor that looks for them, as if they were in a jar
+        List<Input> resourceClasspath = processorsMayRun ? classpathProjects.stream()
+                .filter(Project::hasSourcesMapped)
+                .map(p -> input(p, OutputTypes.INPUT_SOURCES).filter(RESOURCES))
+                .collect(Collectors.toUnmodifiableList()) : Collections.emptyList();
 
         List<Input> inReactorProcessors = scope(project.getDependencies().stream().filter(dependency -> dependency.getProject().hasSourcesMapped()
                         && !dependency.getProject().isJsZip()).collect(Collectors.toSet()),
                 com.vertispan.j2cl.build.task.Dependency.Scope.COMPILE)
                 .stream()
-                .map(inputs(OutputTypes.BYTECODE))
-                .map(input -> input.filter(APT_PROCESSOR))
+                .flatMap(p -> resourceInputsOnly(p, this::input, APT_PROCESSOR))
                 .collect(Collectors.toUnmodifiableList());
 
         File bootstrapClasspath = config.getBootstrapClasspath();
         List<File> extraClasspath = new ArrayList<>(config.getExtraClasspath());
+        boolean incrementalEnabled = config.isIncrementalEnabled();
         Set<String> processors = new HashSet<>();
         project.getDependencies()
                 .stream()
@@ -136,15 +180,15 @@ public class BytecodeTask extends TaskFactory {
             if (!inputSources.getFilesAndHashes().isEmpty()) {
                 // At least one .java file in sources, compile it (otherwise skip this and just copy resource)
 
-                List<File> classpathDirs = Stream.concat(
+                List<File> classpathDirs = Stream.of(
                         bytecodeClasspath.stream().map(Input::getParentPaths).flatMap(Collection::stream).map(Path::toFile),
+                        resourceClasspath.stream().map(Input::getParentPaths).flatMap(Collection::stream).map(Path::toFile),
                         extraClasspath.stream()
-                ).collect(Collectors.toUnmodifiableList());
+                ).flatMap(Function.identity()).collect(Collectors.toUnmodifiableList());
 
                 List<File> sourcePaths = inputDirs.getParentPaths().stream().map(Path::toFile).collect(Collectors.toUnmodifiableList());
                 File generatedClassesDir = getGeneratedClassesDir(context);
                 File classOutputDir = context.outputPath().toFile();
-                Javac javac = new Javac(context, generatedClassesDir, sourcePaths, classpathDirs, classOutputDir, bootstrapClasspath, aptProcessors);
 
                 // TODO convention for mapping to original file paths, provide FileInfo out of Inputs instead of Paths,
                 //      automatically relativized?
@@ -153,19 +197,41 @@ public class BytecodeTask extends TaskFactory {
                         .map(p -> SourceUtils.FileInfo.create(p.getAbsolutePath().toString(), p.getSourcePath().toString()))
                         .collect(Collectors.toUnmodifiableList());
 
-                try {
-                    if (!javac.compile(sources)) {
-                        throw new RuntimeException("Failed to complete bytecode task, check log");
+                // Dependencies are only tracked when no annotation processor can run, since we can't tell what a
+                // processor reads or generates, so it must always see every source
+                boolean trackDependencies = incrementalEnabled && !mayRunProcessors(generatedClassesDir, aptProcessors, classpathDirs);
+                String classpathKey = extraClasspath + ";" + bootstrapClasspath;
+
+                boolean compiled = false;
+                if (trackDependencies && context.lastSuccessfulOutput().isPresent()
+                        && bytecodeClasspath.stream().allMatch(input -> input.getChanges().isEmpty())) {
+                    Optional<JavacDependencies> previous = JavacDependencies.read(context.lastSuccessfulOutput().get().resolve(DEPENDENCIES_FILE))
+                            .filter(dependencies -> classpathKey.equals(dependencies.getClasspathKey()));
+                    if (previous.isPresent()) {
+                        compiled = compileIncrementally(context, previous.get(), classpathKey, inputSources, sources, classpathDirs, knownContents(bytecodeClasspath), generatedClassesDir, bootstrapClasspath, aptProcessors);
+                    }
+                }
+
+                if (!compiled) {
+                    Javac javac = new Javac(context, generatedClassesDir, sourcePaths, classpathDirs, knownContents(bytecodeClasspath), classOutputDir, bootstrapClasspath, aptProcessors);
+                    JavacDependencies dependencies = new JavacDependencies(classpathKey);
+                    try {
+                        if (!javac.compile(sources, trackDependencies ? new JavacDependencies.Recorder(dependencies, relativePaths(sources)) : null)) {
+                            throw new RuntimeException("Failed to complete bytecode task, check log");
+                        }
+                    } catch (Exception exception) {
+                        exception.printStackTrace();
+                        throw exception;
+                    }
+                    if (trackDependencies) {
+                        dependencies.write(context.outputPath().resolve(DEPENDENCIES_FILE));
                     }
-                } catch (Exception exception) {
-                    exception.printStackTrace();
-                    throw exception;
                 }
             }
 
-            // Copy all resources, even .java files, so that this output is the source of truth as if this
-            // were freshly unpacked from a jar
-            for (CachedPath entry : resources.getFilesAndHashes()) {
+            // Copy the .java files, so that this output is the source of truth for stripping, along with any
+            // sources that were generated
+            for (CachedPath entry : javaSources.getFilesAndHashes()) {
                 Files.createDirectories(context.outputPath().resolve(entry.getSourcePath()).getParent());
                 Files.copy(entry.getAbsolutePath(), context.outputPath().resolve(entry.getSourcePath()));
             }
@@ -173,6 +239,222 @@ public class BytecodeTask extends TaskFactory {
         };
     }
 
+    /**
+     * Compiles only the sources which changed since the last successful build and the sources which depend on
+     * them, copying the class files of every other source from the last output.
+     *
+     * @return true if the output is complete, false if the caller must compile everything instead, in which
+     * case the output directory has been emptied
+     */
+    private boolean compileIncrementally(TaskContext context, JavacDependencies previous, String classpathKey, Input inputSources,
+                                         List<SourceUtils.FileInfo> sources, List<File> classpathDirs, Map<File, List<Path>> knownContents, File generatedClassesDir,
+                                         File bootstrapClasspath, Set<String> aptProcessors) throws IOException {
+        Path lastOutput = context.lastSuccessfulOutput().get();
+        Set<String> changed = inputSources.getChanges().stream()
+                .map(change -> change.getSourcePath().toString())
+                .collect(Collectors.toSet());
+        Set<String> recompile = new HashSet<>(changed);
+        recompile.addAll(previous.findDependents(changed));
+
+        JavacDependencies dependencies = new JavacDependencies(classpathKey);
+        List<SourceUtils.FileInfo> toCompile = new ArrayList<>();
+        for (SourceUtils.FileInfo source : sources) {
+            if (recompile.contains(source.originalPath())) {
+                toCompile.add(source);
+                continue;
+            }
+            JavacDependencies.SourceInfo info = previous.getSources().get(source.originalPath());
+            if (info == null || !copyClassFiles(info, lastOutput, context.outputPath())) {
+                // the last build didn't record this file, can't tell what it produced
+                FileUtils.cleanDirectory(context.outputPath().toFile());
+                return false;
+            }
+            dependencies.getSources().put(source.originalPath(), info);
+        }
+        context.debug("Compiling " + toCompile.size() + " of " + sources.size() + " sources incrementally");
+
+        if (!toCompile.isEmpty()) {
+            // compile against the class files we just copied, rather than from other sources
+            List<File> classpath = new ArrayList<>(classpathDirs);
+            classpath.add(context.outputPath().toFile());
+            DeferredBuildLog log = new DeferredBuildLog();
+            Javac javac = new Javac(log, generatedClassesDir, Collections.emptyList(), classpath, knownContents, context.outputPath().toFile(), bootstrapClasspath, aptProcessors);
+            if (!javac.compile(toCompile, new JavacDependencies.Recorder(dependencies, relativePaths(toCompile)))) {
+                // might be a real error, or something we missed - either way, a full build will report it properly
+                context.info("Incremental compile failed, compiling all sources");
+                FileUtils.cleanDirectory(context.outputPath().toFile());
+                return false;
+            }
+            log.replay(context);
+        }
+        dependencies.write(context.outputPath().resolve(DEPENDENCIES_FILE));
+        return true;
+    }
+
+    private static boolean copyClassFiles(JavacDependencies.SourceInfo info, Path from, Path to) throws IOException {
+        for (String classFile : info.getClassFiles()) {
+            Path source = from.resolve(classFile);
+            if (!Files.exists(source)) {
+                return false;
+            }
+            Path target = to.resolve(classFile);
+            Files.createDirectories(target.getParent());
+            Files.copy(source, target);
+        }
+        return true;
+    }
+
+    /**
+     * The files matching the given filters that a project contributes besides its bytecode. Resources in a reactor
+     * project's source roots are read from there, since this task doesn't copy them, along with anything its
+     * annotation processors generated. A jar's resources were all copied to this task's output.
+     *
+     * @param input the calling task's {@code input} method, so the inputs are tracked for that task
+     */
+    public static Stream<Input> resourceInputs(Project project, BiFunction<Project, String, Input> input, PathMatcher... filters) {
+        return resourceInputs(project, input, false, filters);
+    }
+
+    /**
+     * Like {@link #resourceInputs}, but only the matching files are part of the calling task's key, so that
+     * editing some other resource doesn't run it again. Only for tasks that read nothing else from these inputs,
+     * not even their parent paths.
+     */
+    public static Stream<Input> resourceInputsOnly(Project project, BiFunction<Project, String, Input> input, PathMatcher... filters) {
+        return resourceInputs(project, input, true, filters);
+    }
+
+    private static Stream<Input> resourceInputs(Project project, BiFunction<Project, String, Input> input, boolean keyOnly, PathMatcher... filters) {
+        Function<Input, Input> filter = keyOnly ? i -> i.filterOnly(filters) : i -> i.filter(filters);
+        Input bytecode = filter.apply(input.apply(project, OutputTypes.BYTECODE));
+        if (!project.hasSourcesMapped()) {
+            return Stream.of(bytecode);
+        }
+        return Stream.of(filter.apply(input.apply(project, OutputTypes.INPUT_SOURCES)), bytecode);
+    }
+
+    /**
+     * Lists the contents of each classpath directory from the inputs, which the build has already listed and
+     * which won't change while javac reads them.
+     */
+    private static Map<File, List<Path>> knownContents(List<Input> classpath) {
+        Map<File, List<Path>> contents = new HashMap<>();
+        for (Input input : classpath) {
+            for (CachedPath file : input.getFilesAndHashes()) {
+                Path root = file.getAbsolutePath();
+                for (int i = 0; i < file.getSourcePath().getNameCount(); i++) {
+                    root = root.getParent();
+                }
+                contents.computeIfAbsent(root.toFile(), ignore -> new ArrayList<>()).add(file.getSourcePath());
+            }
+            // directories with no files still need to be known, so they aren't listed again
+            input.getParentPaths().forEach(path -> contents.putIfAbsent(path.toFile(), new ArrayList<>()));
+        }
+        return contents;
+    }
+
+    private static Map<String, String> relativePaths(List<SourceUtils.FileInfo> sources) {
+        return sources.stream().collect(Collectors.toMap(SourceUtils.FileInfo::sourcePath, SourceUtils.FileInfo::originalPath));
+    }
+
+    /**
+     * Returns true if javac could run any annotation processor, either one that was named explicitly, or one
+     * that it will discover from the classpath.
+     */
+    private static boolean mayRunProcessors(@Nullable File generatedClassesDir, Set<String> aptProcessors, List<File> classpath) throws IOException {
+        if (generatedClassesDir == null) {
+            // -proc:none
+            return false;
+        }
+        if (!aptProcessors.isEmpty()) {
+            return true;
+        }
+        return hasProcessorServiceFile(classpath);
+    }
+
+    /**
+     * Returns true if javac could find an annotation processor when compiling this project: one in a jar
+     * dependency or on the extra classpath, or one in a reactor dependency. Reactor projects are only built
+     * later, so we check their resources for a declared processor, and assume that a project with processors
+     * of its own could be generating one.
+     *
+     * @throws UncheckedIOException if a jar can't be read, since javac would fail to read it too
+     */
+    static boolean mayRunProcessors(Project project, List<File> extraClasspath) {
+        try {
+            return hasProcessorServiceFile(extraClasspath) || mayRunProcessors(project, new HashSet<>());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to look for annotation processors for " + project.getKey(), e);
+        }
+    }
+
+    private static boolean mayRunProcessors(Project project, Set<String> visited) throws IOException {
+        for (com.vertispan.j2cl.build.task.Dependency dependency : project.getDependencies()) {
+            Project dependencyProject = dependency.getProject();
+            if (!dependencyProject.getProcessors().isEmpty()) {
+                return true;
+            }
+            if (dependencyProject.hasSourcesMapped() && !dependencyProject.isJsZip() && visited.add(dependencyProject.getKey())) {
+                List<File> sourceRoots = dependencyProject.getSourceRoots().stream()
+                        .map(File::new)
+                        .collect(Collectors.toUnmodifiableList());
+                if (hasProcessorServiceFile(sourceRoots) || mayRunProcessors(dependencyProject, visited)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if any of the given directories or jars declares an annotation processor service.
+     */
+    static boolean hasProcessorServiceFile(List<File> classpath) throws IOException {
+        for (File entry : classpath) {
+            if (entry.isDirectory()) {
+                if (new File(entry, PROCESSOR_SERVICE_FILE).isFile()) {
+                    return true;
+                }
+            } else if (entry.isFile()) {
+                if (hasProcessorServiceFile(entry)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks a jar for an annotation processor service, only opening it if it wasn't already checked since it
+     * last changed.
+     */
+    private static boolean hasProcessorServiceFile(File jar) throws IOException {
+        long length = jar.length();
+        long lastModified = jar.lastModified();
+        CheckedJar checked = CHECKED_JARS.get(jar);
+        if (checked != null && checked.length == length && checked.lastModified == lastModified) {
+            return checked.hasProcessor;
+        }
+        boolean hasProcessor;
+        try (ZipFile zipFile = new ZipFile(jar)) {
+            hasProcessor = zipFile.getEntry(PROCESSOR_SERVICE_FILE) != null;
+        }
+        CHECKED_JARS.put(jar, new CheckedJar(length, lastModified, hasProcessor));
+        return hasProcessor;
+    }
+
+    private static final class CheckedJar {
+        private final long length;
+        private final long lastModified;
+        private final boolean hasProcessor;
+
+        private CheckedJar(long length, long lastModified, boolean hasProcessor) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hasProcessor = hasProcessor;
+        }
+    }
+
     @Nullable
     protected File getGeneratedClassesDir(TaskContext context) {
         return context.outputPath().toFile();
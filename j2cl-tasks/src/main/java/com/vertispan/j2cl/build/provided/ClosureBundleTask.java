@@ -18,12 +18,12 @@ package com.vertispan.j2cl.build.provided;
 import com.google.auto.service.AutoService;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.reflect.TypeToken;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.debugging.sourcemap.Base64VLQ;
+import com.google.gson.stream.JsonWriter;
 import com.google.javascript.jscomp.Compiler;
 import com.google.javascript.jscomp.CompilerInput;
 import com.google.javascript.jscomp.CompilerOptions;
+import com.google.javascript.jscomp.SortingErrorManager;
 import com.google.javascript.jscomp.SourceFile;
 import com.google.javascript.jscomp.deps.ClosureBundler;
 import com.google.javascript.jscomp.deps.DependencyInfo;
@@ -38,31 +38,33 @@ import com.vertispan.j2cl.build.task.Config;
 import com.vertispan.j2cl.build.task.Input;
 import com.vertispan.j2cl.build.task.OutputTypes;
 import com.vertispan.j2cl.build.task.Project;
+import com.vertispan.j2cl.build.task.TaskContext;
 import com.vertispan.j2cl.build.task.TaskFactory;
 import com.vertispan.j2cl.tools.Closure;
+import com.vertispan.j2cl.tools.LoggingErrorReportGenerator;
 import io.methvin.watcher.hashing.Murmur3F;
-import org.apache.commons.io.FileUtils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.lang.reflect.Type;
+import java.lang.ref.SoftReference;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.Optional;
+import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -73,6 +75,18 @@ import java.util.stream.Stream;
 public class ClosureBundleTask extends TaskFactory {
 
     public static final String BUNDLE_JS_EXTENSION = ".bundle.js";
+    public static final String SOURCE_MAP_EXTENSION = ".map";
+
+    private static final int MAX_CACHED_DEPENDENCY_INFO = 100_000;
+
+    // parsing is the most expensive part of a full bundle, and the same files are bundled again by later builds,
+    // and often by other projects - softly referenced, so the cache gives way before the build runs out of memory
+    private static final Map<String, SoftReference<DependencyInfoFormat>> DEPENDENCY_INFO = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SoftReference<DependencyInfoFormat>> eldest) {
+            return size() > MAX_CACHED_DEPENDENCY_INFO;
+        }
+    };
 
     @Override
     public String getOutputType() {
@@ -86,7 +100,7 @@ public class ClosureBundleTask extends TaskFactory {
 
     @Override
     public String getVersion() {
-        return "1";
+        return "2";
     }
 
     @Override
@@ -95,20 +109,20 @@ public class ClosureBundleTask extends TaskFactory {
         if (project.isJsZip()) {
             js = Collections.singletonList(input(project, OutputTypes.BYTECODE).filter(ClosureTask.PLAIN_JS_SOURCES));
         } else {
-            // TODO filter to just JS and sourcemaps? probably not required unless we also get sources
-            //      from the actual input source instead of copying it along each step
-            js = Stream.of(
-                            input(project, OutputTypes.TRANSPILED_JS),
-                            input(project, OutputTypes.BYTECODE)
+            js = Stream.concat(
+                            Stream.of(input(project, OutputTypes.TRANSPILED_JS).filter(ClosureTask.PLAIN_JS_SOURCES)),
+                            BytecodeTask.resourceInputs(project, this::input, ClosureTask.PLAIN_JS_SOURCES)
                     )
-                    .map(i -> i.filter(ClosureTask.PLAIN_JS_SOURCES))
                     .collect(Collectors.toUnmodifiableList());
         }
 
         // Consider treating this always as true, since the build doesnt get more costly to be incremental
         boolean incrementalEnabled = config.isIncrementalEnabled();
 
-        Gson gson = new GsonBuilder().setPrettyPrinting().serializeNulls().create();
+        // wrapping each file in eval lets the browser's devtools show them as separate scripts, but the browser
+        // can't cache the compiled code or start parsing it early, so this can be turned off in favor of plain
+        // code with an index sourcemap
+        boolean useEval = !"false".equalsIgnoreCase(config.getString("bundleEval"));
 
         return context -> {
             assert Files.isDirectory(context.outputPath());
@@ -126,51 +140,49 @@ public class ClosureBundleTask extends TaskFactory {
                 return;// nothing to do
             }
 
-            // copy the sources locally so that we can create usable sourcemaps
-            //TODO consider a soft link
+            // link the sources locally so that we can create usable sourcemaps
             File sources = new File(closureOutputDir, Closure.SOURCES_DIRECTORY_NAME);
-            for (Path path : js.stream().map(Input::getParentPaths).flatMap(Collection::stream).collect(Collectors.toUnmodifiableList())) {
-                FileUtils.copyDirectory(path.toFile(), sources);
-            }
+            ClosureTask.mirrorSources(js, sources.toPath(), context.lastSuccessfulOutput().map(last -> last.resolve(Closure.SOURCES_DIRECTORY_NAME)));
 
             List<DependencyInfoAndSource> dependencyInfos = new ArrayList<>();
-            Compiler jsCompiler = new Compiler(System.err);//TODO before merge, write this to the log
+            // files from the last bundle which haven't changed since, so their output can be copied from it
+            Map<String, DependencyInfoIndex.Entry> unchanged = new HashMap<>();
+            Path sourcesDir = sources.toPath();
 
+            Optional<DependencyInfoIndex> previousIndex = Optional.empty();
+            Optional<Path> previousBundle = Optional.empty();
             if (incrementalEnabled && context.lastSuccessfulOutput().isPresent()) {
-                // collect any dep info from disk for existing files
-                final Map<String, DependencyInfoAndSource> depInfoMap;
                 Path lastOutput = context.lastSuccessfulOutput().get();
-                try (InputStream inputStream = Files.newInputStream(lastOutput.resolve("depInfo.json"))) {
-                    Type listType = new TypeToken<List<DependencyInfoFormat>>() {
-                    }.getType();
-                    List<DependencyInfoFormat> deps = gson.fromJson(new BufferedReader(new InputStreamReader(inputStream)), listType);
-                    depInfoMap = deps.stream()
-                            .map(info -> new DependencyInfoAndSource(
-                                    info,
-                                    () -> Files.readString(lastOutput.resolve(Closure.SOURCES_DIRECTORY_NAME).resolve(info.getName())))
-                            )
-                            .collect(Collectors.toMap(DependencyInfo::getName, Function.identity()));
+                previousIndex = DependencyInfoIndex.read(lastOutput.resolve(DependencyInfoIndex.FILE_NAME))
+                        .filter(index -> index.isEval() == useEval);
+                previousBundle = findBundle(lastOutput, fileNameKey);
+            }
+
+            if (previousIndex.isPresent()) {
+                // collect any dep info from disk for existing files, keeping the previous order, so that sorting
+                // again gives the same order wherever possible
+                final Map<String, DependencyInfoAndSource> depInfoMap = new LinkedHashMap<>();
+                for (DependencyInfoIndex.Entry entry : previousIndex.get()) {
+                    String name = entry.getName();
+                    depInfoMap.put(name, new DependencyInfoAndSource(entry, () -> Files.readString(sourcesDir.resolve(name))));
+                    unchanged.put(name, entry);
                 }
 
                 // create new dep info for any added/modified file
+                List<Path> addedOrModified = new ArrayList<>();
                 for (Input jsInput : js) {
                     for (ChangedCachedPath change : jsInput.getChanges()) {
+                        unchanged.remove(change.getSourcePath().toString());
                         if (change.changeType() == ChangedCachedPath.ChangeType.REMOVED) {
                             depInfoMap.remove(change.getSourcePath().toString());
                         } else {
-                            // ADD or MODIFY
-                            CompilerInput input = new CompilerInput(SourceFile.builder()
-                                    .withPath(context.outputPath().resolve(Closure.SOURCES_DIRECTORY_NAME).resolve(change.getSourcePath()))
-                                    .withOriginalPath(change.getSourcePath().toString())
-                                    .build());
-                            input.setCompiler(jsCompiler);
-                            depInfoMap.put(
-                                    change.getSourcePath().toString(),
-                                    new DependencyInfoAndSource(input, input::getCode)
-                            );
+                            addedOrModified.add(change.getSourcePath());
                         }
                     }
                 }
+                for (DependencyInfoAndSource info : readDependencyInfo(context, sourcesDir, addedOrModified)) {
+                    depInfoMap.put(info.getName(), info);
+                }
 
                 // no need to expand to include other files, since this is only computed locally
 
@@ -178,26 +190,24 @@ public class ClosureBundleTask extends TaskFactory {
                 dependencyInfos.addAll(depInfoMap.values());
             } else {
                 //non-incremental, read everything
-                for (Input jsInput : js) {
-                    for (CachedPath path : jsInput.getFilesAndHashes()) {
-                        CompilerInput input = new CompilerInput(SourceFile.builder()
-                                .withPath(context.outputPath().resolve(Closure.SOURCES_DIRECTORY_NAME).resolve(path.getSourcePath()))
-                                .withOriginalPath(path.getSourcePath().toString())
-                                .build());
-                        input.setCompiler(jsCompiler);
-
-                        dependencyInfos.add(new DependencyInfoAndSource(input, input::getCode));
-                    }
-                }
+                dependencyInfos.addAll(readDependencyInfo(context, sourcesDir, js.stream()
+                        .map(Input::getFilesAndHashes)
+                        .flatMap(Collection::stream)
+                        .map(CachedPath::getSourcePath)
+                        .collect(Collectors.toUnmodifiableList())));
+            }
+            if (previousBundle.isEmpty()) {
+                unchanged.clear();
             }
 
             // re-sort that full collection
             SortedDependencies<DependencyInfoAndSource> sorter = new SortedDependencies<>(dependencyInfos);
+            List<DependencyInfoAndSource> sorted = sorter.getSortedList();
+            long[] bundleEnds = new long[sorted.size()];
+            DependencyInfoIndex.Layout[] bundleLayouts = new DependencyInfoIndex.Layout[sorted.size()];
+            byte[][] bundleHashes = new byte[sorted.size()][];
 
-
-            // TODO optional/stretch-goal find first change in the list, so we can keep old prefix of bundle output
-
-            // rebundle all (optional: remaining) files using this already handled sort
+            // rebundle the remaining files using this already handled sort
             ClosureBundler bundler = new ClosureBundler(Transpiler.NULL, new BaseTranspiler(
                     new BaseTranspiler.CompilerSupplier(
                             CompilerOptions.LanguageMode.ECMASCRIPT_NEXT.toFeatureSet().without(FeatureSet.Feature.MODULES),
@@ -210,47 +220,224 @@ public class ClosureBundleTask extends TaskFactory {
                             ImmutableMap.of()
                     ),
                     ""
-            )).useEval(true);
-
-            try (OutputStream outputStream = Files.newOutputStream(Paths.get(outputFile));
-                 BufferedWriter bundleOut = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8))) {
-                for (DependencyInfoAndSource info : sorter.getSortedList()) {
-                    String code = info.getSource();
+            )).useEval(useEval);
+
+            try (FileChannel bundleChannel = FileChannel.open(outputFilePath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                 FileChannel previousChannel = previousBundle.isPresent() ? FileChannel.open(previousBundle.get()) : null) {
+                // each file is built as a string first, so we know exactly where it ends in the bundle
+                OutputStream bundleOut = new BufferedOutputStream(Channels.newOutputStream(bundleChannel));
+                StringBuilder entry = new StringBuilder();
+                long position = 0;
+                // the range of the previous bundle waiting to be copied, extended while unchanged files follow
+                // each other in the same order
+                long copyStart = 0;
+                long copyEnd = 0;
+                for (int i = 0; i < sorted.size(); i++) {
+                    DependencyInfoAndSource info = sorted.get(i);
                     String name = info.getName();
 
-                    //TODO do we actually need this?
-                    if (Compiler.isFillFileName(name) && code.isEmpty()) {
+                    DependencyInfoIndex.Entry previous = unchanged.get(name);
+                    if (previous != null) {
+                        if (previous.getStart() != copyEnd) {
+                            bundleOut.flush();
+                            transfer(previousChannel, copyStart, copyEnd, bundleChannel);
+                            copyStart = previous.getStart();
+                        }
+                        copyEnd = previous.getEnd();
+                        position += previous.getEnd() - previous.getStart();
+                        bundleHashes[i] = previous.getHash();
+                        bundleLayouts[i] = previous.getLayout();
+                        bundleEnds[i] = position;
                         continue;
                     }
+                    if (copyEnd != copyStart) {
+                        bundleOut.flush();
+                        transfer(previousChannel, copyStart, copyEnd, bundleChannel);
+                        copyStart = copyEnd;
+                    }
 
-                    // append this file and a comment where it came from
-                    bundleOut.append("//").append(name).append("\n");
-                    bundler.withPath(name).withSourceUrl(Closure.SOURCES_DIRECTORY_NAME + "/" + name).appendTo(bundleOut, info, code);
-                    bundleOut.append("\n");
-
+                    String code = info.getSource();
+                    //TODO do we actually need this?
+                    if (!Compiler.isFillFileName(name) || !code.isEmpty()) {
+                        // append this file and a comment where it came from
+                        entry.setLength(0);
+                        entry.append("//").append(name).append("\n");
+                        if (useEval) {
+                            bundler.withPath(name).withSourceUrl(Closure.SOURCES_DIRECTORY_NAME + "/" + name).appendTo(entry, info, code);
+                        } else {
+                            // a sourceURL would name the whole bundle, the sourcemap points to each file instead
+                            bundler.withPath(name).appendTo(entry, info, code);
+                        }
+                        entry.append("\n");
+                        bundleLayouts[i] = layout(entry, code, !useEval);
+                        byte[] bytes = entry.toString().getBytes(StandardCharsets.UTF_8);
+                        bundleOut.write(bytes);
+                        position += bytes.length;
+
+                        Murmur3F entryHash = new Murmur3F();
+                        entryHash.update(bytes);
+                        bundleHashes[i] = entryHash.getValueBytesBigEndian();
+                    } else {
+                        bundleHashes[i] = new byte[0];
+                        bundleLayouts[i] = DependencyInfoIndex.Layout.EMPTY;
+                    }
+                    bundleEnds[i] = position;
                 }
+                bundleOut.flush();
+                transfer(previousChannel, copyStart, copyEnd, bundleChannel);
+            }
+            // write dependency info and the layout of the bundle for some incremental rebuild
+            DependencyInfoIndex.write(context.outputPath().resolve(DependencyInfoIndex.FILE_NAME), useEval, sorted, bundleEnds, bundleLayouts, bundleHashes);
 
+            // name the file by the hashes of each file's output, rather than reading the bundle again to hash it
+            Murmur3F murmur = new Murmur3F();
+            for (byte[] bundleHash : bundleHashes) {
+                murmur.update(bundleHash);
             }
-            // append dependency info to deserialize on some incremental rebuild
-            try (OutputStream outputStream = Files.newOutputStream(context.outputPath().resolve("depInfo.json"));
-                 BufferedWriter jsonOut = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8))) {
-                List<DependencyInfoFormat> jsonList = sorter.getSortedList().stream()
-                        .map(DependencyInfoFormat::new)
-                        .collect(Collectors.toUnmodifiableList());
-                gson.toJson(jsonList, jsonOut);
+            String bundleFileName = fileNameKey + "-" + murmur.getValueHexString() + BUNDLE_JS_EXTENSION;
+            if (!useEval) {
+                writeSourceMap(outputFilePath.resolveSibling(bundleFileName + SOURCE_MAP_EXTENSION), bundleFileName, sorted, bundleLayouts);
+                Files.writeString(outputFilePath, "//# sourceMappingURL=" + bundleFileName + SOURCE_MAP_EXTENSION + "\n", StandardOpenOption.APPEND);
             }
+            Files.move(outputFilePath, outputFilePath.resolveSibling(bundleFileName));
+        };
+    }
 
-            // hash the file itself, rename to include that hash
-            Murmur3F murmur = new Murmur3F();
-            try (InputStream is = new BufferedInputStream(Files.newInputStream(outputFilePath))) {
-                int b;
-                while ((b = is.read()) != -1) {
-                    murmur.update(b);
+    /**
+     * Reads the dependency info of each of the given files, parsing them in parallel through the task context
+     * with a compiler for each thread, and reusing the info parsed earlier in this JVM for any file with the
+     * same name and contents. Errors and warnings from parsing are written to the task's log, and the info for
+     * those files isn't reused, so that they are reported again by the next build.
+     */
+    static List<DependencyInfoAndSource> readDependencyInfo(TaskContext context, Path sourcesDir, List<Path> files) throws Exception {
+        ThreadLocal<Compiler> compilers = ThreadLocal.withInitial(Compiler::new);
+        List<Callable<DependencyInfoAndSource>> jobs = new ArrayList<>();
+        for (Path sourcePath : files) {
+            jobs.add(() -> {
+                String name = sourcePath.toString();
+                Path path = sourcesDir.resolve(sourcePath);
+                byte[] bytes = Files.readAllBytes(path);
+                String code = new String(bytes, StandardCharsets.UTF_8);
+                Murmur3F hash = new Murmur3F();
+                hash.update(bytes);
+                String key = name + ":" + hash.getValueHexString();
+
+                DependencyInfoFormat cached;
+                synchronized (DEPENDENCY_INFO) {
+                    SoftReference<DependencyInfoFormat> ref = DEPENDENCY_INFO.get(key);
+                    cached = ref == null ? null : ref.get();
                 }
+                if (cached == null) {
+                    Compiler compiler = compilers.get();
+                    SortingErrorManager errorManager = new SortingErrorManager(Collections.singleton(new LoggingErrorReportGenerator(compiler, context)));
+                    compiler.setErrorManager(errorManager);
+                    CompilerInput input = new CompilerInput(SourceFile.builder()
+                            .withPath(path)
+                            .withOriginalPath(name)
+                            .withContent(code)
+                            .build());
+                    input.setCompiler(compiler);
+                    cached = new DependencyInfoFormat(input);
+                    if (errorManager.getErrorCount() + errorManager.getWarningCount() > 0) {
+                        errorManager.generateReport();
+                    } else {
+                        synchronized (DEPENDENCY_INFO) {
+                            DEPENDENCY_INFO.put(key, new SoftReference<>(cached));
+                        }
+                    }
+                }
+                return new DependencyInfoAndSource(cached, () -> code);
+            });
+        }
+        return context.runInParallel(jobs);
+    }
+
+    /**
+     * Finds the lines that a file's output takes up, and where the unchanged source starts within them.
+     */
+    private static DependencyInfoIndex.Layout layout(CharSequence output, String code, boolean mapSource) {
+        int lines = countLines(output, output.length());
+        int sourceStart = mapSource && !code.isEmpty() ? output.toString().indexOf(code) : -1;
+        if (sourceStart == -1) {
+            return new DependencyInfoIndex.Layout(lines, 0, 0, 0);
+        }
+        int sourceLine = countLines(output, sourceStart);
+        int lineStart = sourceStart;
+        while (lineStart > 0 && output.charAt(lineStart - 1) != '\n') {
+            lineStart--;
+        }
+        int sourceLines = countLines(code, code.length()) + (code.endsWith("\n") ? 0 : 1);
+        return new DependencyInfoIndex.Layout(lines, sourceLine, sourceStart - lineStart, sourceLines);
+    }
+
+    private static int countLines(CharSequence text, int end) {
+        int lines = 0;
+        for (int i = 0; i < end; i++) {
+            if (text.charAt(i) == '\n') {
+                lines++;
             }
-            Files.move(outputFilePath, outputFilePath.resolveSibling(fileNameKey + "-" + murmur.getValueHexString() + BUNDLE_JS_EXTENSION));
-            //TODO when back to keyboard rename sourcemap? is that a thing we need to do?
-        };
+        }
+        return lines;
+    }
+
+    /**
+     * Writes an index sourcemap for a bundle of plain code, with a section for each file that maps every line
+     * of its source to the line it was written to in the bundle.
+     */
+    private static void writeSourceMap(Path file, String bundleFileName, List<? extends DependencyInfo> sorted, DependencyInfoIndex.Layout[] layouts) throws IOException {
+        try (JsonWriter writer = new JsonWriter(Files.newBufferedWriter(file))) {
+            writer.beginObject();
+            writer.name("version").value(3);
+            writer.name("file").value(bundleFileName);
+            writer.name("sections").beginArray();
+            StringBuilder mappings = new StringBuilder();
+            int line = 0;
+            for (int i = 0; i < sorted.size(); i++) {
+                DependencyInfoIndex.Layout layout = layouts[i];
+                if (layout.getSourceLines() > 0) {
+                    mappings.setLength(0);
+                    Base64VLQ.encode(mappings, layout.getSourceColumn());
+                    mappings.append("AAA");
+                    for (int sourceLine = 1; sourceLine < layout.getSourceLines(); sourceLine++) {
+                        mappings.append(";AACA");
+                    }
+
+                    writer.beginObject();
+                    writer.name("offset").beginObject()
+                            .name("line").value(line + layout.getSourceLine())
+                            .name("column").value(0)
+                            .endObject();
+                    writer.name("map").beginObject()
+                            .name("version").value(3)
+                            .name("sources").beginArray().value(Closure.SOURCES_DIRECTORY_NAME + "/" + sorted.get(i).getName()).endArray()
+                            .name("names").beginArray().endArray()
+                            .name("mappings").value(mappings.toString())
+                            .endObject();
+                    writer.endObject();
+                }
+                line += layout.getLines();
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+    }
+
+    private static void transfer(FileChannel from, long start, long end, FileChannel to) throws IOException {
+        long position = start;
+        while (position < end) {
+            position += from.transferTo(position, end - position, to);
+        }
+    }
+
+    private static Optional<Path> findBundle(Path outputDir, String fileNameKey) {
+        try (Stream<Path> files = Files.list(outputDir)) {
+            return files.filter(file -> {
+                String fileName = file.getFileName().toString();
+                return fileName.startsWith(fileNameKey + "-") && fileName.endsWith(BUNDLE_JS_EXTENSION);
+            }).findAny();
+        } catch (IOException e) {
+            return Optional.empty();
+        }
     }
 
     public interface SourceSupplier {
@@ -329,11 +516,11 @@ public class ClosureBundleTask extends TaskFactory {
     public static class DependencyInfoFormat implements DependencyInfo {
         private String name;
 //        private String pathRelativeToClosureBase = name;
-        private List<String> provides;
+        private ImmutableList<String> provides;
 //        private List<RequireFormat> requires; //skipping requires as it isnt used by the dep sorter
-        private List<String> requiredSymbols;
-        private List<String> typeRequires;
-        private Map<String, String> loadFlags;
+        private ImmutableList<String> requiredSymbols;
+        private ImmutableList<String> typeRequires;
+        private ImmutableMap<String, String> loadFlags;
         private boolean hasExternsAnnotation;
         private boolean hasNoCompileAnnotation;
 
@@ -344,7 +531,7 @@ public class ClosureBundleTask extends TaskFactory {
         public DependencyInfoFormat(DependencyInfo info) {
             setName(info.getName());
             setHasExternsAnnotation(info.getHasExternsAnnotation());
-            setHasNoCompileAnnotation(info.getHasExternsAnnotation());
+            setHasNoCompileAnnotation(info.getHasNoCompileAnnotation());
             setProvides(info.getProvides());
             setLoadFlags(info.getLoadFlags());
             setTypeRequires(info.getTypeRequires());
@@ -365,11 +552,11 @@ public class ClosureBundleTask extends TaskFactory {
         }
 
         public ImmutableList<String> getProvides() {
-            return ImmutableList.copyOf(provides);
+            return provides;
         }
 
         public void setProvides(List<String> provides) {
-            this.provides = provides;
+            this.provides = ImmutableList.copyOf(provides);
         }
 
         public ImmutableList<Require> getRequires() {
@@ -378,27 +565,27 @@ public class ClosureBundleTask extends TaskFactory {
 
         @Override
         public ImmutableList<String> getRequiredSymbols() {
-            return ImmutableList.copyOf(requiredSymbols);
+            return requiredSymbols;
         }
 
         public void setRequiredSymbols(List<String> requiredSymbols) {
-            this.requiredSymbols = requiredSymbols;
+            this.requiredSymbols = ImmutableList.copyOf(requiredSymbols);
         }
 
         public ImmutableList<String> getTypeRequires() {
-            return ImmutableList.copyOf(typeRequires);
+            return typeRequires;
         }
 
         public void setTypeRequires(List<String> typeRequires) {
-            this.typeRequires = typeRequires;
+            this.typeRequires = ImmutableList.copyOf(typeRequires);
         }
 
         public ImmutableMap<String, String> getLoadFlags() {
-            return ImmutableMap.copyOf(loadFlags);
+            return loadFlags;
         }
 
         public void setLoadFlags(Map<String, String> loadFlags) {
-            this.loadFlags = loadFlags;
+            this.loadFlags = ImmutableMap.copyOf(loadFlags);
         }
 
         public boolean getHasExternsAnnotation() {
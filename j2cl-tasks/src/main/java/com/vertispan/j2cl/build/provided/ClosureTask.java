@@ -16,12 +16,14 @@
 package com.vertispan.j2cl.build.provided;
 
 import com.google.auto.service.AutoService;
+import com.google.gson.GsonBuilder;
 import com.google.javascript.jscomp.CompilationLevel;
 import com.google.javascript.jscomp.CompilerOptions;
 import com.google.javascript.jscomp.DependencyOptions;
 import com.vertispan.j2cl.build.task.*;
 import com.vertispan.j2cl.tools.Closure;
-import org.apache.commons.io.FileUtils;
+import com.vertispan.j2cl.tools.ClosureWorkerPool;
+import com.vertispan.j2cl.tools.FileMirror;
 
 import java.io.File;
 import java.io.IOException;
@@ -41,6 +43,8 @@ public class ClosureTask extends TaskFactory {
 
     private static final Path PUBLIC = Paths.get("public");
 
+    public static final String CHUNK_MANIFEST_EXTENSION = ".chunks.json";
+
     private static final PathMatcher JS_SOURCES = withSuffix(".js");
 
     private static final PathMatcher XTB = withSuffix(".xtb");
@@ -104,6 +108,23 @@ public class ClosureTask extends TaskFactory {
         }
     };
 
+    /**
+     * Puts every file from the directories holding the given inputs in the sources directory, so that
+     * sourcemaps can point to them. Files from a project's source roots are copied, since they could be edited
+     * in place, unless the previous build already has an identical copy - everything else is hard linked from
+     * the cache.
+     */
+    public static void mirrorSources(List<Input> inputs, Path sources, Optional<Path> previousSources) throws IOException {
+        for (Input input : inputs) {
+            Set<Path> sourceRoots = input.getProject().getSourceRoots().stream()
+                    .map(root -> Paths.get(root).toAbsolutePath())
+                    .collect(Collectors.toUnmodifiableSet());
+            for (Path path : input.getParentPaths()) {
+                FileMirror.mirror(path, sources, sourceRoots.contains(path.toAbsolutePath()), previousSources.orElse(null));
+            }
+        }
+    }
+
     /** Strips off any prefix and returns an absolute path describing where to copy the file */
     public static void copiedOutputPath(Path outputDirectory, CachedPath fileToCopy) throws IOException {
         Path sourcePath = fileToCopy.getSourcePath();
@@ -132,6 +153,87 @@ public class ClosureTask extends TaskFactory {
         Files.copy(fileToCopy.getAbsolutePath(), outputFile, StandardCopyOption.REPLACE_EXISTING);
     }
 
+    private static void validateChunks(List<Config.Chunk> chunks, String initialScriptFilename) {
+        if (!initialScriptFilename.endsWith(".js")) {
+            throw new IllegalArgumentException("initialScriptFilename must end in .js to split the output into chunks: " + initialScriptFilename);
+        }
+        Set<String> names = new HashSet<>();
+        names.add(Paths.get(initialScriptFilename).getFileName().toString().replaceFirst("\\.js$", ""));
+        for (Config.Chunk chunk : chunks) {
+            if (!chunk.getName().matches("[\\w\\-]+")) {
+                throw new IllegalArgumentException("Chunk names may only use letters, digits, - and _: " + chunk.getName());
+            }
+            for (String dependency : chunk.getDependencies()) {
+                if (!names.contains(dependency)) {
+                    throw new IllegalArgumentException("Chunk " + chunk.getName() + " depends on " + dependency + ", which must be listed before it");
+                }
+            }
+            if (!names.add(chunk.getName())) {
+                throw new IllegalArgumentException("Chunk names must be unique, and can't be the name of the initial script: " + chunk.getName());
+            }
+        }
+    }
+
+    /**
+     * Finds the files for each chunk, from the namespaces they provide or the packages they are in. A file
+     * that more than one chunk asks for goes in the first of them.
+     */
+    private static List<Closure.Chunk> assignChunks(TaskContext context, List<Config.Chunk> chunks, Map<String, List<String>> js) throws Exception {
+        Map<String, String> fileOfNamespace = new HashMap<>();
+        if (chunks.stream().anyMatch(chunk -> !chunk.getEntrypoints().isEmpty())) {
+            for (Map.Entry<String, List<String>> entry : js.entrySet()) {
+                List<Path> files = entry.getValue().stream().map(Paths::get).collect(Collectors.toUnmodifiableList());
+                for (ClosureBundleTask.DependencyInfoAndSource info : ClosureBundleTask.readDependencyInfo(context, Paths.get(entry.getKey()), files)) {
+                    info.getProvides().forEach(namespace -> fileOfNamespace.putIfAbsent(namespace, info.getName()));
+                }
+            }
+        }
+        List<String> allFiles = js.values().stream().flatMap(List::stream).collect(Collectors.toUnmodifiableList());
+
+        Set<String> assigned = new HashSet<>();
+        List<Closure.Chunk> result = new ArrayList<>();
+        for (Config.Chunk chunk : chunks) {
+            Set<String> files = new LinkedHashSet<>();
+            for (String entrypoint : chunk.getEntrypoints()) {
+                String file = fileOfNamespace.get(entrypoint);
+                if (file == null) {
+                    throw new IllegalStateException("No file provides " + entrypoint + " for chunk " + chunk.getName());
+                }
+                files.add(file);
+            }
+            for (String pkg : chunk.getPackages()) {
+                String prefix = pkg.replace('.', '/') + "/";
+                allFiles.stream().filter(file -> file.startsWith(prefix)).forEach(files::add);
+            }
+            files.removeAll(assigned);
+            assigned.addAll(files);
+            result.add(new Closure.Chunk(chunk.getName(), chunk.getDependencies(), files));
+        }
+        return result;
+    }
+
+    /**
+     * Writes a manifest next to the initial script, listing the files a page has to load for each chunk, in
+     * the order to load them, relative to the manifest. Files the page has already loaded can be skipped.
+     */
+    private static void writeChunkManifest(List<Config.Chunk> chunks, Path initialScript) throws IOException {
+        String initialFile = initialScript.getFileName().toString();
+        Map<String, List<String>> filesToLoad = new LinkedHashMap<>();
+        filesToLoad.put(initialFile.replaceFirst("\\.js$", ""), List.of(initialFile));
+        for (Config.Chunk chunk : chunks) {
+            Set<String> files = new LinkedHashSet<>();
+            if (chunk.getDependencies().isEmpty()) {
+                files.add(initialFile);
+            }
+            // dependencies are listed before the chunks that use them, so their files are already known
+            chunk.getDependencies().forEach(dependency -> files.addAll(filesToLoad.get(dependency)));
+            files.add(chunk.getName() + ".js");
+            filesToLoad.put(chunk.getName(), List.copyOf(files));
+        }
+        Path manifest = initialScript.resolveSibling(initialFile.replaceFirst("\\.js$", "") + CHUNK_MANIFEST_EXTENSION);
+        Files.writeString(manifest, new GsonBuilder().setPrettyPrinting().create().toJson(filesToLoad));
+    }
+
     @Override
     public String getOutputType() {
         return OutputTypes.OPTIMIZED_JS;
@@ -144,35 +246,33 @@ public class ClosureTask extends TaskFactory {
 
     @Override
     public String getVersion() {
-        return "1";
+        return "3";
     }
 
     @Override
     public Task resolve(Project project, Config config) {
         // collect current project JS sources and runtime deps JS sources
-        // TODO filter to just JS and sourcemaps? probably not required unless we also get sources
-        //      from the actual input source instead of copying it along each step
-        Stream<Input> jsFromJavaProjects = Stream.concat(
+        boolean sourcemapsEnabled = config.getSourcemapsEnabled();
+        List<Project> javaProjects = Stream.concat(
                         Stream.of(project),
                         scope(project.getDependencies(), Dependency.Scope.RUNTIME)
                                 .stream()
                                 .filter(p -> !p.isJsZip())
                 )
-                .flatMap(p -> Stream.of(
-                        input(p, OutputTypes.TRANSPILED_JS),
-                        // Bytecode sources will include original input sources
-                        // as well as generated input when the jar was built
-                        input(p, OutputTypes.BYTECODE)
+                .collect(Collectors.toUnmodifiableList());
+        Stream<Input> jsFromJavaProjects = javaProjects.stream()
+                .flatMap(p -> Stream.concat(
+                        Stream.of(input(p, OutputTypes.TRANSPILED_JS).filter(PLAIN_JS_SOURCES, EXTERNS)),
+                        // Original input sources, as well as generated input when the jar was built
+                        BytecodeTask.resourceInputs(p, this::input, PLAIN_JS_SOURCES, EXTERNS)
                 ));
 
         Stream<Input> jsFromJsZips = scope(project.getDependencies(), Dependency.Scope.RUNTIME)
                 .stream()
                 .filter(Project::isJsZip)
-                .map(p -> input(p, OutputTypes.BYTECODE));
+                .map(p -> input(p, OutputTypes.BYTECODE).filter(PLAIN_JS_SOURCES, EXTERNS));
 
         List<Input> jsSources = Stream.concat(jsFromJavaProjects, jsFromJsZips)
-                // Only include the JS and externs
-                .map(i -> i.filter(PLAIN_JS_SOURCES, EXTERNS))
                 .collect(Collectors.toUnmodifiableList());
 
         List<Input> outputToCopy = Stream.concat(
@@ -181,7 +281,7 @@ public class ClosureTask extends TaskFactory {
         )
                 // Only need to consider the original inputs and generated sources,
                 // J2CL won't contribute this kind of sources
-                .map(p -> input(p, OutputTypes.BYTECODE).filter(COPIED_OUTPUT))
+                .flatMap(p -> BytecodeTask.resourceInputsOnly(p, this::input, COPIED_OUTPUT))
                 .collect(Collectors.toUnmodifiableList());
 
         // grab configs we plan to use
@@ -197,26 +297,37 @@ public class ClosureTask extends TaskFactory {
         CompilerOptions.LanguageMode languageOut = CompilerOptions.LanguageMode.fromString(config.getLanguageOut());
         //TODO probably kill this, or at least make it work like an import via another task so we detect changes
         Collection<String> externs = config.getExterns();
+        List<Config.Chunk> chunks = config.getChunks();
+        boolean useChunks = !chunks.isEmpty()
+                && (compilationLevel == CompilationLevel.SIMPLE_OPTIMIZATIONS || compilationLevel == CompilationLevel.ADVANCED_OPTIMIZATIONS);
+        if (useChunks) {
+            validateChunks(chunks, initialScriptFilename);
+        }
 
         TranslationsFileProcessor translationsFileProcessor = TranslationsFileProcessor.get(config);
         List<Input> xtbInputs = Stream.concat(
                         Stream.of(project),
                         scope(project.getDependencies(), Dependency.Scope.RUNTIME).stream()
                 )
-                .map(p -> input(p, OutputTypes.BYTECODE))
                 // Only include the .xtb
-                .map(i -> i.filter(XTB))
+                .flatMap(p -> BytecodeTask.resourceInputsOnly(p, this::input, XTB))
                 .collect(Collectors.toUnmodifiableList());
 
         boolean checkAssertions = config.getCheckAssertions();
         boolean rewritePolyfills = config.getRewritePolyfills();
-        boolean sourcemapsEnabled = config.getSourcemapsEnabled();
         String env = config.getEnv();
+        String closureWorkers = config.getString("closureWorkers");
+        int workerCount = closureWorkers == null ? 0 : Integer.parseInt(closureWorkers);
+        String closureWorkerJvmArgs = config.getString("closureWorkerJvmArgs");
+        List<String> workerJvmArgs = closureWorkerJvmArgs == null || closureWorkerJvmArgs.isBlank()
+                ? Collections.emptyList()
+                : Arrays.asList(closureWorkerJvmArgs.trim().split("\\s+"));
+        boolean cacheParsedInputs = Boolean.parseBoolean(config.getString("closureParseCache"));
 
         return new FinalOutputTask() {
             @Override
             public void execute(TaskContext context) throws Exception {
-                Closure closureCompiler = new Closure(context);
+                Closure closureCompiler = new Closure(context, workerCount > 0 ? ClosureWorkerPool.get(workerCount, workerJvmArgs) : null, cacheParsedInputs);
 
                 File closureOutputDir = context.outputPath().toFile();
 
@@ -249,9 +360,16 @@ public class ClosureTask extends TaskFactory {
                     js = Closure.mapFromInputs(jsSources);
                 }
                 if (sources != null) {
-                    for (Path path : jsSources.stream().map(Input::getParentPaths).flatMap(Collection::stream).collect(Collectors.toUnmodifiableList())) {
-                        FileUtils.copyDirectory(path.toFile(), sources);
-                    }
+                    Path relativeSources = context.outputPath().relativize(sources.toPath());
+                    mirrorSources(jsSources, sources.toPath(), context.lastSuccessfulOutput().map(last -> last.resolve(relativeSources)));
+                }
+
+                List<Closure.Chunk> closureChunks = Collections.emptyList();
+                if (useChunks) {
+                    closureChunks = assignChunks(context, chunks, js);
+                    writeChunkManifest(chunks, Paths.get(closureOutputDir.toString(), initialScriptFilename));
+                } else if (!chunks.isEmpty()) {
+                    context.warn("Chunks are only supported for SIMPLE_OPTIMIZATIONS and ADVANCED_OPTIMIZATIONS, writing a single file for " + compilationLevel);
                 }
 
                 Map<String, String> defines = new LinkedHashMap<>(configDefines);
@@ -267,6 +385,7 @@ public class ClosureTask extends TaskFactory {
                         js,
                         sources,
                         entrypoint,
+                        closureChunks,
                         defines,
                         externs,
                         translationsFileProcessor.getTranslationsFile(xtbInputs, context),
@@ -290,7 +409,9 @@ public class ClosureTask extends TaskFactory {
                 if (!Files.exists(webappDirectory)) {
                     Files.createDirectories(webappDirectory);
                 }
-                FileUtils.copyDirectory(taskContext.outputPath().toFile(), webappDirectory.toFile());
+                // copy rather than link, so that editing the webapp can't change the cached output,
+                // and skip what is already in place
+                FileMirror.copy(taskContext.outputPath(), webappDirectory);
                 Path resourceOutputPath = webappDirectory.resolve(initialScriptFilename).getParent();
                 for (Input input : outputToCopy) {
                     for (CachedPath entry : input.getFilesAndHashes()) {
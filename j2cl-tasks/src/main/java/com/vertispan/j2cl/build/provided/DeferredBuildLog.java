@@ -0,0 +1,74 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.provided;
+
+import com.vertispan.j2cl.build.task.BuildLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Holds on to log messages until we know if they should be shown, so that an incremental attempt which is
+ * about to be retried as a full build doesn't report the same errors twice.
+ */
+class DeferredBuildLog implements BuildLog {
+    private final List<Consumer<BuildLog>> messages = new ArrayList<>();
+
+    public void replay(BuildLog log) {
+        messages.forEach(message -> message.accept(log));
+    }
+
+    @Override
+    public void debug(String msg) {
+        messages.add(log -> log.debug(msg));
+    }
+
+    @Override
+    public void info(String msg) {
+        messages.add(log -> log.info(msg));
+    }
+
+    @Override
+    public void warn(String msg) {
+        messages.add(log -> log.warn(msg));
+    }
+
+    @Override
+    public void warn(String msg, Throwable t) {
+        messages.add(log -> log.warn(msg, t));
+    }
+
+    @Override
+    public void warn(Throwable t) {
+        messages.add(log -> log.warn(t));
+    }
+
+    @Override
+    public void error(String msg) {
+        messages.add(log -> log.error(msg));
+    }
+
+    @Override
+    public void error(String msg, Throwable t) {
+        messages.add(log -> log.error(msg, t));
+    }
+
+    @Override
+    public void error(Throwable t) {
+        messages.add(log -> log.error(t));
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.provided;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.javascript.jscomp.deps.DependencyInfo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The dependency info of each file in a bundle, in the order they were bundled, along with the range of the
+ * bundle that each file's output takes up and a hash of that output. A later incremental build can then sort
+ * the files again without parsing any that didn't change, and copy their output from the previous bundle.
+ *
+ * Written as a compact binary file: every string is stored once in a symbol table, and referred to by its
+ * index, and all numbers are varints. The file is memory-mapped when read, and each entry is only decoded
+ * as far as it is used, so files which didn't change cost almost nothing to load.
+ *
+ * <pre>
+ * magic "J2DI", version byte, flags (1: bundled with eval)
+ * symbol count, then for each symbol: byte length, UTF-8 bytes
+ * entry count, then for each entry:
+ *   name, flags (1: externs annotation, 2: nocompile annotation)
+ *   provides count, provides
+ *   required symbols count, required symbols
+ *   type requires count, type requires
+ *   load flags count, keys and values
+ *   length of its output in the bundle, which starts where the previous entry's output ended
+ *   lines in its output, line and column in its output where the source starts, lines of source
+ *   hash length, hash bytes
+ * </pre>
+ */
+final class DependencyInfoIndex extends AbstractList<DependencyInfoIndex.Entry> {
+    public static final String FILE_NAME = "depInfo.bin";
+
+    private static final byte[] MAGIC = "J2DI".getBytes(StandardCharsets.US_ASCII);
+    private static final byte VERSION = 2;
+
+    private static final int EVAL = 1;
+
+    private static final int EXTERNS = 1;
+    private static final int NO_COMPILE = 2;
+
+    private final ByteBuffer buffer;
+    private final boolean eval;
+    private final int[] symbolOffsets;
+    private final String[] symbols;
+    private final Entry[] entries;
+
+    /**
+     * Reads the index from the given file, if it exists and was written in this format.
+     */
+    public static Optional<DependencyInfoIndex> read(Path file) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+        for (byte b : MAGIC) {
+            if (!buffer.hasRemaining() || buffer.get() != b) {
+                return Optional.empty();
+            }
+        }
+        if (buffer.remaining() < 2 || buffer.get() != VERSION) {
+            return Optional.empty();
+        }
+        return Optional.of(new DependencyInfoIndex(buffer));
+    }
+
+    private DependencyInfoIndex(ByteBuffer buffer) {
+        this.buffer = buffer;
+        eval = (buffer.get() & EVAL) != 0;
+
+        symbolOffsets = new int[readVarint()];
+        symbols = new String[symbolOffsets.length];
+        for (int i = 0; i < symbolOffsets.length; i++) {
+            symbolOffsets[i] = buffer.position();
+            int length = readVarint();
+            buffer.position(buffer.position() + length);
+        }
+
+        entries = new Entry[readVarint()];
+        long end = 0;
+        for (int i = 0; i < entries.length; i++) {
+            int offset = buffer.position();
+            int name = readVarint();
+            int flags = buffer.get();
+            for (int list = 0; list < 3; list++) {
+                skipVarints(readVarint());
+            }
+            skipVarints(readVarint() * 2);
+            long start = end;
+            end += readVarLong();
+            Layout layout = new Layout(readVarint(), readVarint(), readVarint(), readVarint());
+            int hashLength = readVarint();
+            byte[] hash = new byte[hashLength];
+            buffer.get(hash);
+            entries[i] = new Entry(offset, name, flags, start, end, layout, hash);
+        }
+    }
+
+    /**
+     * True if the bundle was written with each file wrapped in eval, false if the files were written as plain code.
+     */
+    public boolean isEval() {
+        return eval;
+    }
+
+    @Override
+    public Entry get(int index) {
+        return entries[index];
+    }
+
+    @Override
+    public int size() {
+        return entries.length;
+    }
+
+    private String symbol(int index) {
+        String symbol = symbols[index];
+        if (symbol == null) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(symbolOffsets[index]);
+            byte[] bytes = new byte[readVarint(view)];
+            view.get(bytes);
+            symbol = new String(bytes, StandardCharsets.UTF_8);
+            symbols[index] = symbol;
+        }
+        return symbol;
+    }
+
+    private int readVarint() {
+        return readVarint(buffer);
+    }
+
+    private long readVarLong() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private void skipVarints(int count) {
+        for (int i = 0; i < count; i++) {
+            readVarint();
+        }
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * A file from the previous bundle. Its lists are decoded the first time they are asked for.
+     */
+    public final class Entry implements DependencyInfo {
+        private final int offset;
+        private final int name;
+        private final int flags;
+        private final long start;
+        private final long end;
+        private final Layout layout;
+        private final byte[] hash;
+
+        private ImmutableList<String> provides;
+        private ImmutableList<String> requiredSymbols;
+        private ImmutableList<String> typeRequires;
+        private ImmutableMap<String, String> loadFlags;
+
+        private Entry(int offset, int name, int flags, long start, long end, Layout layout, byte[] hash) {
+            this.offset = offset;
+            this.name = name;
+            this.flags = flags;
+            this.start = start;
+            this.end = end;
+            this.layout = layout;
+            this.hash = hash;
+        }
+
+        /**
+         * Where this file's output starts in the previous bundle.
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * Where this file's output ends in the previous bundle.
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * Where the lines of this file's output, and of the source within it, are in the previous bundle.
+         */
+        public Layout getLayout() {
+            return layout;
+        }
+
+        /**
+         * Hash of this file's output in the previous bundle, empty if it had no output.
+         */
+        public byte[] getHash() {
+            return hash;
+        }
+
+        @Override
+        public String getName() {
+            return symbol(name);
+        }
+
+        @Override
+        public String getPathRelativeToClosureBase() {
+            return getName();
+        }
+
+        @Override
+        public ImmutableList<String> getProvides() {
+            if (provides == null) {
+                decode();
+            }
+            return provides;
+        }
+
+        @Override
+        public ImmutableList<Require> getRequires() {
+            // not used when sorting
+            return ImmutableList.of();
+        }
+
+        @Override
+        public ImmutableList<String> getRequiredSymbols() {
+            if (requiredSymbols == null) {
+                decode();
+            }
+            return requiredSymbols;
+        }
+
+        @Override
+        public ImmutableList<String> getTypeRequires() {
+            if (typeRequires == null) {
+                decode();
+            }
+            return typeRequires;
+        }
+
+        @Override
+        public ImmutableMap<String, String> getLoadFlags() {
+            if (loadFlags == null) {
+                decode();
+            }
+            return loadFlags;
+        }
+
+        @Override
+        public boolean getHasExternsAnnotation() {
+            return (flags & EXTERNS) != 0;
+        }
+
+        @Override
+        public boolean getHasNoCompileAnnotation() {
+            return (flags & NO_COMPILE) != 0;
+        }
+
+        /**
+         * True once this entry's lists have been read from the file.
+         */
+        boolean isDecoded() {
+            return provides != null;
+        }
+
+        private void decode() {
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            readVarint(view);
+            view.get();
+            provides = readSymbols(view);
+            requiredSymbols = readSymbols(view);
+            typeRequires = readSymbols(view);
+            int count = readVarint(view);
+            ImmutableMap.Builder<String, String> builder = ImmutableMap.builderWithExpectedSize(count);
+            for (int i = 0; i < count; i++) {
+                builder.put(symbol(readVarint(view)), symbol(readVarint(view)));
+            }
+            loadFlags = builder.build();
+        }
+
+        private ImmutableList<String> readSymbols(ByteBuffer view) {
+            int count = readVarint(view);
+            if (count == 0) {
+                return ImmutableList.of();
+            }
+            ImmutableList.Builder<String> builder = ImmutableList.builderWithExpectedSize(count);
+            for (int i = 0; i < count; i++) {
+                builder.add(symbol(readVarint(view)));
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * The lines that a file's output takes up in the bundle, and where its unchanged source starts within them,
+     * so that a sourcemap can point each line back to the source.
+     */
+    public static final class Layout {
+        public static final Layout EMPTY = new Layout(0, 0, 0, 0);
+
+        private final int lines;
+        private final int sourceLine;
+        private final int sourceColumn;
+        private final int sourceLines;
+
+        public Layout(int lines, int sourceLine, int sourceColumn, int sourceLines) {
+            this.lines = lines;
+            this.sourceLine = sourceLine;
+            this.sourceColumn = sourceColumn;
+            this.sourceLines = sourceLines;
+        }
+
+        /**
+         * Number of lines in the file's output.
+         */
+        public int getLines() {
+            return lines;
+        }
+
+        /**
+         * Line in the file's output where the source starts.
+         */
+        public int getSourceLine() {
+            return sourceLine;
+        }
+
+        /**
+         * Column in that line where the source starts.
+         */
+        public int getSourceColumn() {
+            return sourceColumn;
+        }
+
+        /**
+         * Number of lines of source in the file's output, zero if it can't be mapped.
+         */
+        public int getSourceLines() {
+            return sourceLines;
+        }
+    }
+
+    /**
+     * Writes the given files, in the order they were bundled.
+     *
+     * @param eval true if the files were wrapped in eval in the bundle
+     * @param ends where each file's output ends in the bundle
+     * @param layouts the lines each file's output takes up in the bundle
+     * @param hashes the hash of each file's output in the bundle, empty if it had no output
+     */
+    public static void write(Path file, boolean eval, List<? extends DependencyInfo> infos, long[] ends, Layout[] layouts, byte[][] hashes) throws IOException {
+        Map<String, Integer> symbolIndexes = new HashMap<>();
+        ByteArrayOutputStream symbolTable = new ByteArrayOutputStream();
+        ByteArrayOutputStream entryTable = new ByteArrayOutputStream();
+
+        writeVarint(entryTable, infos.size());
+        long start = 0;
+        for (int i = 0; i < infos.size(); i++) {
+            DependencyInfo info = infos.get(i);
+            writeSymbol(entryTable, info.getName(), symbolIndexes, symbolTable);
+            entryTable.write((info.getHasExternsAnnotation() ? EXTERNS : 0) | (info.getHasNoCompileAnnotation() ? NO_COMPILE : 0));
+            for (List<String> list : List.of(info.getProvides(), info.getRequiredSymbols(), info.getTypeRequires())) {
+                writeVarint(entryTable, list.size());
+                for (String symbol : list) {
+                    writeSymbol(entryTable, symbol, symbolIndexes, symbolTable);
+                }
+            }
+            writeVarint(entryTable, info.getLoadFlags().size());
+            for (Map.Entry<String, String> flag : info.getLoadFlags().entrySet()) {
+                writeSymbol(entryTable, flag.getKey(), symbolIndexes, symbolTable);
+                writeSymbol(entryTable, flag.getValue(), symbolIndexes, symbolTable);
+            }
+            writeVarint(entryTable, ends[i] - start);
+            start = ends[i];
+            writeVarint(entryTable, layouts[i].getLines());
+            writeVarint(entryTable, layouts[i].getSourceLine());
+            writeVarint(entryTable, layouts[i].getSourceColumn());
+            writeVarint(entryTable, layouts[i].getSourceLines());
+            writeVarint(entryTable, hashes[i].length);
+            entryTable.write(hashes[i]);
+        }
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            out.write(MAGIC);
+            out.write(VERSION);
+            out.write(eval ? EVAL : 0);
+            writeVarint(out, symbolIndexes.size());
+            symbolTable.writeTo(out);
+            entryTable.writeTo(out);
+        }
+    }
+
+    private static void writeSymbol(OutputStream out, String symbol, Map<String, Integer> symbolIndexes, ByteArrayOutputStream symbolTable) throws IOException {
+        Integer index = symbolIndexes.get(symbol);
+        if (index == null) {
+            index = symbolIndexes.size();
+            symbolIndexes.put(symbol, index);
+            byte[] bytes = symbol.getBytes(StandardCharsets.UTF_8);
+            writeVarint(symbolTable, bytes.length);
+            symbolTable.write(bytes);
+        }
+        writeVarint(out, index);
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
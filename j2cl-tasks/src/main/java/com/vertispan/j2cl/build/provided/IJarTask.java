@@ -45,6 +45,11 @@ public class IJarTask extends TaskFactory {
         return "0";
     }
 
+    @Override
+    public boolean isIoBound(Project project) {
+        return true;
+    }
+
     @Override
     public Task resolve(Project project, Config config) {
         Input myStrippedBytecode = input(project, OutputTypes.STRIPPED_BYTECODE);
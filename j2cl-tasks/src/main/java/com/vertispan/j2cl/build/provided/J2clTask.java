@@ -19,12 +19,28 @@ import com.google.auto.service.AutoService;
 import com.google.j2cl.common.SourceUtils;
 import com.vertispan.j2cl.build.task.*;
 import com.vertispan.j2cl.tools.J2cl;
+import com.vertispan.j2cl.tools.J2clOutputs;
+import com.vertispan.j2cl.tools.JavacDependencies;
+import org.apache.commons.io.FileUtils;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -34,6 +50,15 @@ public class J2clTask extends TaskFactory {
     public static final PathMatcher JAVA_SOURCES = withSuffix(".java");
     public static final PathMatcher NATIVE_JS_SOURCES = withSuffix(".native.js");
     public static final PathMatcher JAVA_BYTECODE = withSuffix(".class");
+    // turbine also emits classes from its own classpath under META-INF, these aren't part of this project
+    private static final PathMatcher HEADER_BYTECODE = p -> JAVA_BYTECODE.matches(p) && !p.startsWith("META-INF");
+    private static final PathMatcher JAVAC_DEPENDENCIES = p -> p.equals(Paths.get(BytecodeTask.DEPENDENCIES_FILE));
+
+    /**
+     * Written to the output when incremental builds are enabled, so the next build can tell which files were
+     * produced from each source.
+     */
+    public static final String OUTPUTS_FILE = "META-INF/j2cl-outputs.json";
 
     @Override
     public String getOutputType() {
@@ -54,7 +79,8 @@ public class J2clTask extends TaskFactory {
     public Task resolve(Project project, Config config) {
         // J2CL is only interested in .java and .native.js files in our own sources
         Input ownJavaSources = input(project, OutputTypes.STRIPPED_SOURCES).filter(JAVA_SOURCES, NATIVE_JS_SOURCES);
-        List<Input> ownNativeJsSources = Collections.singletonList(input(project, OutputTypes.BYTECODE).filter(NATIVE_JS_SOURCES));
+        List<Input> ownNativeJsSources = BytecodeTask.resourceInputsOnly(project, this::input, NATIVE_JS_SOURCES)
+                .collect(Collectors.toUnmodifiableList());
 
         // From our classpath, j2cl is only interested in our compile classpath's bytecode
         List<Input> classpathHeaders = scope(project.getDependencies().stream()
@@ -63,11 +89,22 @@ public class J2clTask extends TaskFactory {
                 .stream()
                 .map(inputs(OutputTypes.STRIPPED_BYTECODE_HEADERS))
                 // we only want bytecode _changes_, but we'll use the whole dir
-                .map(input -> input.filter(JAVA_BYTECODE))
+                .map(input -> input.filter(HEADER_BYTECODE))
                 .collect(Collectors.toUnmodifiableList());
 
         File bootstrapClasspath = config.getBootstrapClasspath();
         List<File> extraClasspath = config.getExtraClasspath();
+        boolean incrementalEnabled = config.isIncrementalEnabled();
+        String transpileShards = config.getString("transpileShards");
+        int shards = transpileShards == null ? 1 : Integer.parseInt(transpileShards);
+
+        // To transpile only some sources, the rest of this project goes on the classpath as headers. If those
+        // change, javac's record of which sources refer to which types tells us what else must be transpiled -
+        // but that means waiting for javac, so unless asked to, transpile everything when headers change.
+        Input ownHeaders = incrementalEnabled || shards > 1 ? input(project, OutputTypes.STRIPPED_BYTECODE_HEADERS).filter(HEADER_BYTECODE) : null;
+        boolean transpileDependents = incrementalEnabled && Boolean.parseBoolean(config.getString("incrementalTranspileDependents"));
+        Input javacDependencies = transpileDependents ? input(project, OutputTypes.BYTECODE).filterOnly(JAVAC_DEPENDENCIES) : null;
+
         return context -> {
             if (ownJavaSources.getFilesAndHashes().isEmpty()) {
                 return;// nothing to do
@@ -78,8 +115,6 @@ public class J2clTask extends TaskFactory {
             )
                     .collect(Collectors.toUnmodifiableList());
 
-            J2cl j2cl = new J2cl(classpathDirs, bootstrapClasspath, context.outputPath().toFile(), context);
-
             // TODO convention for mapping to original file paths, provide FileInfo out of Inputs instead of Paths,
             //      automatically relativized?
             List<SourceUtils.FileInfo> javaSources = ownJavaSources.getFilesAndHashes()
@@ -94,11 +129,279 @@ public class J2clTask extends TaskFactory {
                     .map(p -> SourceUtils.FileInfo.create(p.getAbsolutePath().toString(), p.getSourcePath().toString()))
                     .collect(Collectors.toUnmodifiableList());
 
-            // TODO when we make j2cl incremental we'll consume the provided sources and hashes (the "values" in the
-            //      maps above), and diff them against the previous compile
-            if (!j2cl.transpile(javaSources, nativeSources)) {
+            String classpathKey = extraClasspath + ";" + bootstrapClasspath;
+            if (incrementalEnabled && context.lastSuccessfulOutput().isPresent()
+                    && classpathHeaders.stream().allMatch(input -> input.getChanges().isEmpty())) {
+                Optional<J2clOutputs> previous = J2clOutputs.read(context.lastSuccessfulOutput().get().resolve(OUTPUTS_FILE))
+                        .filter(outputs -> classpathKey.equals(outputs.getClasspathKey()));
+                if (previous.isPresent() && transpileIncrementally(context, previous.get(), classpathKey, ownJavaSources,
+                        ownNativeJsSources, ownHeaders, javacDependencies, javaSources, nativeSources, classpathDirs,
+                        bootstrapClasspath, shards)) {
+                    return;
+                }
+            }
+
+            final boolean transpiled;
+            if (shards > 1 && !ownHeaders.getFilesAndHashes().isEmpty()) {
+                transpiled = transpileSharded(context, context, shards, withOwnHeaders(classpathDirs, ownHeaders), bootstrapClasspath,
+                        context.outputPath().toFile(), javaSources, nativeSources);
+            } else {
+                J2cl j2cl = new J2cl(classpathDirs, bootstrapClasspath, context.outputPath().toFile(), context);
+                transpiled = j2cl.transpile(javaSources, nativeSources);
+            }
+            if (!transpiled) {
                 throw new IllegalStateException("Error while running J2CL");
             }
+            if (incrementalEnabled) {
+                recordOutputs(context, new J2clOutputs(classpathKey), Collections.emptySet(), javaSources);
+            }
         };
     }
+
+    /**
+     * Transpiles only the sources which changed since the last successful build, those whose .native.js file
+     * changed, and those which refer to a type whose header changed, copying the output of every other source
+     * from the last output. Without javac's dependencies, any header change means everything is transpiled.
+     *
+     * @return true if the output is complete, false if the caller must transpile everything instead, in which
+     * case the output directory has been emptied
+     */
+    private boolean transpileIncrementally(TaskContext context, J2clOutputs previous, String classpathKey, Input ownJavaSources,
+                                           List<Input> ownNativeJsSources, Input ownHeaders, Input javacDependencies,
+                                           List<SourceUtils.FileInfo> javaSources, List<SourceUtils.FileInfo> nativeSources,
+                                           List<File> classpathDirs, File bootstrapClasspath, int shards) throws Exception {
+        if (ownHeaders.getFilesAndHashes().isEmpty()) {
+            // turbine couldn't compile this project, so there is nothing to transpile against
+            return false;
+        }
+        Set<String> retranspile = ownJavaSources.getChanges().stream()
+                .filter(change -> change.changeType() != ChangedCachedPath.ChangeType.REMOVED)
+                .filter(change -> JAVA_SOURCES.matches(change.getSourcePath()))
+                .map(change -> toSlashPath(change.getSourcePath()))
+                .collect(Collectors.toCollection(HashSet::new));
+        // J2CL only reads a .native.js file along with the source of the same name
+        ownNativeJsSources.stream()
+                .flatMap(input -> input.getChanges().stream())
+                .map(change -> javaSourceFor(toSlashPath(change.getSourcePath())))
+                .forEach(retranspile::add);
+
+        if (!ownHeaders.getChanges().isEmpty()) {
+            if (javacDependencies == null) {
+                // not waiting for javac to say what refers to what, can't tell which sources are affected
+                return false;
+            }
+            Optional<Set<String>> affected = javacDependencies.getFilesAndHashes().stream()
+                    .findFirst()
+                    .flatMap(file -> JavacDependencies.read(file.getAbsolutePath()))
+                    .flatMap(dependencies -> sourcesAffectedByHeaders(dependencies, ownHeaders.getChanges()));
+            if (affected.isEmpty()) {
+                return false;
+            }
+            retranspile.addAll(affected.get());
+        }
+
+        J2clOutputs outputs = new J2clOutputs(classpathKey);
+        Optional<List<SourceUtils.FileInfo>> planned = planIncrementalTranspile(previous, outputs, javaSources, retranspile);
+        if (planned.isEmpty()) {
+            return false;
+        }
+        Path lastOutput = context.lastSuccessfulOutput().get();
+        Set<String> copied = new HashSet<>();
+        for (Set<String> files : outputs.getSources().values()) {
+            if (!copyOutputs(files, lastOutput, context.outputPath())) {
+                FileUtils.cleanDirectory(context.outputPath().toFile());
+                return false;
+            }
+            copied.addAll(files);
+        }
+        List<SourceUtils.FileInfo> toTranspile = planned.get();
+        context.debug("Transpiling " + toTranspile.size() + " of " + javaSources.size() + " sources incrementally");
+
+        if (!toTranspile.isEmpty()) {
+            Set<String> transpiling = toTranspile.stream()
+                    .map(source -> toSlashPath(Paths.get(source.originalPath())))
+                    .collect(Collectors.toSet());
+            List<SourceUtils.FileInfo> toTranspileNative = nativeSources.stream()
+                    .filter(source -> transpiling.contains(javaSourceFor(toSlashPath(Paths.get(source.originalPath())))))
+                    .collect(Collectors.toUnmodifiableList());
+
+            DeferredBuildLog log = new DeferredBuildLog();
+            if (!transpileSharded(context, log, shards, withOwnHeaders(classpathDirs, ownHeaders), bootstrapClasspath,
+                    context.outputPath().toFile(), toTranspile, toTranspileNative)) {
+                // might be a real error, or something we missed - either way, a full build will report it properly
+                context.info("Incremental transpile failed, transpiling all sources");
+                FileUtils.cleanDirectory(context.outputPath().toFile());
+                return false;
+            }
+            log.replay(context);
+        }
+        recordOutputs(context, outputs, copied, javaSources);
+        return true;
+    }
+
+    /**
+     * Finds the sources that declare a type whose header changed, and every source which must be transpiled
+     * again because of them. Nested and local classes are attributed to the top level type that declares them,
+     * and removed headers are skipped, since any source which still refers to them must have changed too.
+     *
+     * @return empty if a changed header can't be attributed to any source that javac saw
+     */
+    static Optional<Set<String>> sourcesAffectedByHeaders(JavacDependencies dependencies, Collection<? extends ChangedCachedPath> headerChanges) {
+        Map<String, String> sourceByType = new HashMap<>();
+        dependencies.getSources().forEach((source, info) -> info.getTypes().forEach(type -> sourceByType.put(type, source)));
+        Set<String> changedApi = new HashSet<>();
+        for (ChangedCachedPath change : headerChanges) {
+            if (change.changeType() == ChangedCachedPath.ChangeType.REMOVED) {
+                continue;
+            }
+            String source = sourceByType.get(topLevelType(toSlashPath(change.getSourcePath())));
+            if (source == null) {
+                return Optional.empty();
+            }
+            changedApi.add(source);
+        }
+        Set<String> affected = new HashSet<>(changedApi);
+        affected.addAll(dependencies.findDependents(changedApi));
+        return Optional.of(affected);
+    }
+
+    /**
+     * Finds which of the current sources must be transpiled, and records in the given outputs the files from
+     * the last build that every other source can reuse. A source that was removed or renamed is no longer in
+     * the list, so its old output isn't carried over, and one that was added or renamed must be in the set to
+     * transpile again.
+     *
+     * @return the sources to transpile, or empty if the last build didn't record what some other source
+     * produced, in which case everything must be transpiled
+     */
+    static Optional<List<SourceUtils.FileInfo>> planIncrementalTranspile(J2clOutputs previous, J2clOutputs outputs,
+                                                                         List<SourceUtils.FileInfo> javaSources, Set<String> retranspile) {
+        List<SourceUtils.FileInfo> toTranspile = new ArrayList<>();
+        for (SourceUtils.FileInfo source : javaSources) {
+            String path = toSlashPath(Paths.get(source.originalPath()));
+            if (retranspile.contains(path)) {
+                toTranspile.add(source);
+                continue;
+            }
+            Set<String> files = previous.getSources().get(path);
+            if (files == null) {
+                return Optional.empty();
+            }
+            outputs.getSources().put(path, files);
+        }
+        return Optional.of(toTranspile);
+    }
+
+    /**
+     * Splits the sources by package into at most the given number of shards of similar size, and transpiles
+     * them at the same time into the same output directory. As each package is in only one shard, no two
+     * shards write the same file. The classpath must include this project's own headers, so that each shard
+     * can see the types in the others. Shards run through the context, so they only run at the same time as
+     * far as the build's limits allow, and messages are written to the given log.
+     */
+    private static boolean transpileSharded(TaskContext context, BuildLog log, int shards, List<File> classpath, File bootstrapClasspath, File outputDir,
+                                            List<SourceUtils.FileInfo> javaSources, List<SourceUtils.FileInfo> nativeSources) throws Exception {
+        Map<String, List<SourceUtils.FileInfo>> byPackage = javaSources.stream()
+                .collect(Collectors.groupingBy(J2clTask::packageOf, TreeMap::new, Collectors.toList()));
+        if (shards <= 1 || byPackage.size() <= 1) {
+            return new J2cl(classpath, bootstrapClasspath, outputDir, log).transpile(javaSources, nativeSources);
+        }
+
+        // assign the largest packages first, each to the shard with the fewest sources so far
+        List<List<SourceUtils.FileInfo>> shardSources = new ArrayList<>();
+        for (int i = 0; i < Math.min(shards, byPackage.size()); i++) {
+            shardSources.add(new ArrayList<>());
+        }
+        byPackage.values().stream()
+                .sorted(Comparator.comparingInt((List<SourceUtils.FileInfo> sources) -> sources.size()).reversed())
+                .forEach(sources -> shardSources.stream()
+                        .min(Comparator.comparingInt(List::size))
+                        .get()
+                        .addAll(sources));
+
+        List<DeferredBuildLog> logs = new ArrayList<>();
+        List<Callable<Boolean>> jobs = new ArrayList<>();
+        for (List<SourceUtils.FileInfo> sources : shardSources) {
+            Set<String> packages = sources.stream().map(J2clTask::packageOf).collect(Collectors.toSet());
+            List<SourceUtils.FileInfo> natives = nativeSources.stream()
+                    .filter(source -> packages.contains(packageOf(source)))
+                    .collect(Collectors.toUnmodifiableList());
+            DeferredBuildLog shardLog = new DeferredBuildLog();
+            logs.add(shardLog);
+            jobs.add(() -> new J2cl(classpath, bootstrapClasspath, outputDir, shardLog).transpile(sources, natives));
+        }
+        List<Boolean> results = context.runInParallel(jobs);
+        boolean success = true;
+        for (int i = 0; i < results.size(); i++) {
+            success &= results.get(i);
+            logs.get(i).replay(log);
+        }
+        return success;
+    }
+
+    private static String packageOf(SourceUtils.FileInfo source) {
+        Path parent = Paths.get(source.originalPath()).getParent();
+        return parent == null ? "" : toSlashPath(parent);
+    }
+
+    private static List<File> withOwnHeaders(List<File> classpathDirs, Input ownHeaders) {
+        List<File> classpath = new ArrayList<>(classpathDirs);
+        ownHeaders.getParentPaths().forEach(path -> classpath.add(path.toFile()));
+        return classpath;
+    }
+
+    /**
+     * Adds every file in the output that isn't already recorded, and writes the result so that the next build
+     * can use it. If some file can't be attributed to one of the given sources, nothing is written, and the
+     * next build will transpile everything.
+     */
+    private static void recordOutputs(TaskContext context, J2clOutputs outputs, Set<String> recorded, List<SourceUtils.FileInfo> sources) throws IOException {
+        Path outputPath = context.outputPath();
+        List<String> newFiles;
+        try (Stream<Path> files = Files.walk(outputPath)) {
+            newFiles = files.filter(Files::isRegularFile)
+                    .map(file -> toSlashPath(outputPath.relativize(file)))
+                    .filter(file -> !recorded.contains(file))
+                    .collect(Collectors.toUnmodifiableList());
+        }
+        Set<String> sourcePaths = sources.stream()
+                .map(source -> toSlashPath(Paths.get(source.originalPath())))
+                .collect(Collectors.toSet());
+        // J2CL writes to the directory of each source's package, which needn't be where the source was found
+        if (!outputs.addOutputs(outputPath, newFiles) || !sourcePaths.containsAll(outputs.getSources().keySet())) {
+            context.debug("Can't tell which source each J2CL output came from, next build will transpile all sources");
+            return;
+        }
+        outputs.write(outputPath.resolve(OUTPUTS_FILE));
+    }
+
+    private static boolean copyOutputs(Set<String> files, Path from, Path to) throws IOException {
+        for (String file : files) {
+            Path source = from.resolve(file);
+            if (!Files.exists(source)) {
+                return false;
+            }
+            Path target = to.resolve(file);
+            Files.createDirectories(target.getParent());
+            Files.copy(source, target);
+        }
+        return true;
+    }
+
+    private static String toSlashPath(Path path) {
+        return path.toString().replace(File.separatorChar, '/');
+    }
+
+    private static String javaSourceFor(String nativeJsSource) {
+        return nativeJsSource.substring(0, nativeJsSource.length() - ".native.js".length()) + ".java";
+    }
+
+    /**
+     * Returns the binary name of the top level type that declares the class in the given class file.
+     */
+    private static String topLevelType(String classFile) {
+        String binaryName = classFile.substring(0, classFile.length() - ".class".length()).replace('/', '.');
+        int nested = binaryName.indexOf('$', binaryName.lastIndexOf('.') + 1);
+        return nested == -1 ? binaryName : binaryName.substring(0, nested);
+    }
 }
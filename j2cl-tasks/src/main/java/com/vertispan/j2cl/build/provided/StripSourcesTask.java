@@ -18,9 +18,9 @@ package com.vertispan.j2cl.build.provided;
 import com.google.auto.service.AutoService;
 import com.google.j2cl.common.SourceUtils;
 import com.vertispan.j2cl.build.task.*;
+import com.vertispan.j2cl.tools.FileMirror;
 import com.vertispan.j2cl.tools.GwtIncompatiblePreprocessor;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.util.ArrayList;
@@ -50,7 +50,12 @@ public class StripSourcesTask extends TaskFactory {
 
     @Override
     public Task resolve(Project project, Config config) {
-        Input inputSources = input(project, OutputTypes.BYTECODE).filter(JAVA_SOURCES);
+        // Without annotation processors javac can't add any sources, so strip the original sources right away,
+        // letting turbine produce headers for downstream projects without waiting for javac
+        boolean sourcesFinal = !BytecodeTask.mayRunProcessors(project, config.getExtraClasspath());
+        Input inputSources = input(project, sourcesFinal ? OutputTypes.INPUT_SOURCES : OutputTypes.BYTECODE).filter(JAVA_SOURCES);
+        // a reactor project's own sources can be edited in place, everything else is already in the cache
+        boolean inputsImmutable = !(sourcesFinal && project.hasSourcesMapped());
 
         return context -> {
             if (inputSources.getFilesAndHashes().isEmpty()) {
@@ -73,8 +78,7 @@ public class StripSourcesTask extends TaskFactory {
                     }
                 }
                 for (CachedPath path : unmodified.values()) {
-                    Files.createDirectories(context.outputPath().resolve(path.getSourcePath()).getParent());
-                    Files.copy(context.lastSuccessfulOutput().get().resolve(path.getSourcePath()), context.outputPath().resolve(path.getSourcePath()));
+                    FileMirror.linkOrCopy(context.lastSuccessfulOutput().get().resolve(path.getSourcePath()), context.outputPath().resolve(path.getSourcePath()));
                 }
             } else {
                 for (CachedPath path : inputSources.getFilesAndHashes()) {
@@ -82,7 +86,7 @@ public class StripSourcesTask extends TaskFactory {
                 }
             }
             GwtIncompatiblePreprocessor preprocessor = new GwtIncompatiblePreprocessor(context.outputPath().toFile(), context);
-            preprocessor.preprocess(filesToProcess);
+            preprocessor.preprocess(filesToProcess, inputsImmutable);
         };
     }
 
@@ -20,6 +20,8 @@ import com.vertispan.j2cl.build.task.*;
 import org.apache.commons.io.FileUtils;
 
 import java.nio.file.*;
+import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * Runs annotation processors and collects the test summary output.
@@ -45,24 +47,34 @@ public class TestCollectionTask extends TaskFactory {
 
     @Override
     public String getVersion() {
-        return "0";
+        return "1";
+    }
+
+    @Override
+    public boolean isIoBound(Project project) {
+        return true;
     }
 
     @Override
     public Task resolve(Project project, Config config) {
         // gather possible inputs so we can get the test summary file
-        // we assume here that the user will correctly depend on the junit apt, might revise this later
-        Input apt = input(project, OutputTypes.BYTECODE).filter(TEST_SUMMARY_JSON, TEST_SUITE);
+        // we assume here that the user will correctly depend on the junit apt, might revise this later.
+        // Depending on how annotation processors are run, the generated files are either in the bytecode
+        // output or in a generated sources directory, which is one of the project's source roots.
+        List<Input> apt = BytecodeTask.resourceInputsOnly(project, this::input, TEST_SUMMARY_JSON, TEST_SUITE)
+                .collect(Collectors.toUnmodifiableList());
         return new FinalOutputTask() {
             @Override
             public void execute(TaskContext context) throws Exception {
                 // TODO If both contain a test summary, we should fail, rather than overwrite
                 // Or even better, merge?
 
-                for (CachedPath entry : apt.getFilesAndHashes()) {
-                    Path outputFile = context.outputPath().resolve(entry.getSourcePath());
-                    Files.createDirectories(outputFile.getParent());
-                    Files.copy(entry.getAbsolutePath(), outputFile);
+                for (Input input : apt) {
+                    for (CachedPath entry : input.getFilesAndHashes()) {
+                        Path outputFile = context.outputPath().resolve(entry.getSourcePath());
+                        Files.createDirectories(outputFile.getParent());
+                        Files.copy(entry.getAbsolutePath(), outputFile, StandardCopyOption.REPLACE_EXISTING);
+                    }
                 }
             }
 
@@ -16,24 +16,20 @@
 package com.vertispan.j2cl.build.provided;
 
 import com.google.auto.service.AutoService;
-import com.google.common.collect.ImmutableList;
-import com.google.j2cl.common.SourceUtils;
-import com.google.turbine.binder.ClassPathBinder;
 import com.google.turbine.diag.TurbineError;
-import com.google.turbine.main.Main;
-import com.google.turbine.options.TurbineOptions;
 import com.vertispan.j2cl.build.task.*;
-
-import javax.lang.model.SourceVersion;
-import java.io.*;
-import java.nio.file.*;
-import java.util.Collection;
+import com.vertispan.j2cl.tools.Turbine;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 @AutoService(TaskFactory.class)
 public class TurbineTask extends TaskFactory {
@@ -53,7 +49,7 @@ public class TurbineTask extends TaskFactory {
 
     @Override
     public String getVersion() {
-        return "0";
+        return "1";
     }
 
     @Override
@@ -63,80 +59,72 @@ public class TurbineTask extends TaskFactory {
 
         List<File> extraClasspath = config.getExtraClasspath();
 
-        List<Input> compileClasspath = scope(project.getDependencies().stream()
+        List<Project> compileDependencies = scope(project.getDependencies().stream()
                         .filter(dep -> dep.getProject().getProcessors().isEmpty())
-                        .collect(Collectors.toSet()), Dependency.Scope.COMPILE)
-                .stream()
+                        .collect(Collectors.toSet()), Dependency.Scope.COMPILE);
+        List<Input> compileClasspath = compileDependencies.stream()
                 .map(p -> input(p, OutputTypes.STRIPPED_BYTECODE_HEADERS))
                 .map(input -> input.filter(JAVA_BYTECODE))
                 .collect(Collectors.toUnmodifiableList());
 
-        return context -> {
-
-            Set<String> deps = Stream.concat(extraClasspath.stream().map(File::toString),
-                            compileClasspath.stream().map(Input::getParentPaths).flatMap(Collection::stream)
-                                    .map(p -> p.resolve("output.jar"))
-                                    .map(Path::toString))
-                    .collect(Collectors.toSet());
-
-            File resultFolder = context.outputPath().toFile();
-            File output = new File(resultFolder, "output.jar");
+        // Dependencies are already flattened, so the direct ones are those that no other dependency depends on.
+        // Their headers include what they need from their own dependencies, which is usually enough to compile
+        // against, so try that smaller classpath first, similar to turbine's JAVABUILDER_REDUCED mode.
+        Set<String> transitiveKeys = compileDependencies.stream()
+                .flatMap(p -> p.getDependencies().stream())
+                .map(dep -> dep.getProject().getKey())
+                .collect(Collectors.toSet());
+        List<Input> reducedClasspath = new ArrayList<>();
+        for (int i = 0; i < compileDependencies.size(); i++) {
+            if (!transitiveKeys.contains(compileDependencies.get(i).getKey())) {
+                reducedClasspath.add(compileClasspath.get(i));
+            }
+        }
 
-            List<String> sources = ownSources.getFilesAndHashes()
+        return context -> {
+            if (ownSources.getFilesAndHashes().isEmpty()) {
+                return;// nothing to do
+            }
+            List<Path> sources = ownSources.getFilesAndHashes()
                     .stream()
-                    .map(p -> SourceUtils.FileInfo.create(p.getAbsolutePath().toString(), p.getSourcePath().toString()))
-                    .map(SourceUtils.FileInfo::sourcePath)
+                    .map(CachedPath::getAbsolutePath)
                     .collect(Collectors.toUnmodifiableList());
 
+            Turbine turbine = new Turbine(extraClasspath.stream().map(File::toPath).collect(Collectors.toUnmodifiableList()));
+            Map<String, byte[]> output;
             try {
-                Main.Result result = Main.compile(
-                        TurbineOptions.builder()
-                                .setSources(ImmutableList.copyOf(sources))
-                                .setOutput(output.toString())
-                                .setClassPath(ImmutableList.copyOf(deps))
-                                //TODO https://github.com/Vertispan/j2clmavenplugin/issues/181
-                                //.setReducedClasspathMode(TurbineOptions.ReducedClasspathMode.JAVABUILDER_REDUCED)
-                                .build());
-
-                context.debug("turbine finished: " + result);
-                extractJar(output, resultFolder.toPath(), context);
+                try {
+                    output = turbine.compile(sources, classFiles(reducedClasspath));
+                } catch (TurbineError e) {
+                    if (reducedClasspath.size() == compileClasspath.size()) {
+                        throw e;
+                    }
+                    context.debug("Turbine failed with only direct dependencies on the classpath, retrying with all dependencies: " + e.getMessage());
+                    output = turbine.compile(sources, classFiles(compileClasspath));
+                }
             } catch (TurbineError e) {
                 // usually it means, it's an apt that can't be processed, log it
                 context.info(e.getMessage());
+                return;
             }
-        };
-    }
+            context.debug("turbine finished, wrote " + output.size() + " classes");
 
-    public void extractJar(File zipFile, Path target, TaskContext context) {
-        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile))) {
-            ZipEntry zipEntry = zis.getNextEntry();
-            while (zipEntry != null) {
-                if(zipEntry.getName().contains(ClassPathBinder.TRANSITIVE_PREFIX)) {
-                    zipEntry = zis.getNextEntry();
-                    continue;
-                }
-                boolean isDirectory = false;
-                if (zipEntry.getName().endsWith(File.separator)) {
-                    isDirectory = true;
-                }
-                Path newPath = target.resolve(zipEntry.getName());
-                if (isDirectory) {
-                    Files.createDirectories(newPath);
-                } else {
-                    if (newPath.getParent() != null) {
-                        if (Files.notExists(newPath.getParent())) {
-                            Files.createDirectories(newPath.getParent());
-                        }
-                    }
-                    Files.copy(zis, newPath, StandardCopyOption.REPLACE_EXISTING);
-                }
-                zipEntry = zis.getNextEntry();
+            for (Map.Entry<String, byte[]> entry : output.entrySet()) {
+                Path outputFile = context.outputPath().resolve(entry.getKey());
+                Files.createDirectories(outputFile.getParent());
+                Files.write(outputFile, entry.getValue());
             }
-            zis.closeEntry();
-        } catch (IOException e) {
-            context.error(e);
-            throw new IllegalStateException("Error while running turbine");
-        }
+        };
     }
 
+    private static List<Map<String, Path>> classFiles(List<Input> classpath) {
+        return classpath.stream()
+                .map(input -> input.getFilesAndHashes().stream().collect(Collectors.toMap(
+                        file -> file.getSourcePath().toString(),
+                        CachedPath::getAbsolutePath,
+                        (first, second) -> first,
+                        LinkedHashMap::new
+                )))
+                .collect(Collectors.toUnmodifiableList());
+    }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.tools;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds everything javac and annotation processors write in memory until the compile is finished, so that
+ * a failed compile writes nothing, and a successful one writes each file once, in a single call, instead of
+ * through many small writes as javac produces it.
+ *
+ * Files are still named by the wrapped file manager, so they end up exactly where javac would have put them,
+ * and processors which read back a file they wrote earlier in the compile will find the buffered copy.
+ */
+public class BufferedOutput {
+    private final Map<URI, BufferedFileObject> files = new LinkedHashMap<>();
+
+    /**
+     * Wraps the given file manager so that all output is kept in this buffer.
+     */
+    public JavaFileManager wrap(JavaFileManager fileManager) {
+        return new ForwardingJavaFileManager<>(fileManager) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+                return buffer(super.getJavaFileForOutput(location, className, kind, sibling));
+            }
+
+            @Override
+            public FileObject getFileForOutput(Location location, String packageName, String relativeName, FileObject sibling) throws IOException {
+                return buffer(super.getFileForOutput(location, packageName, relativeName, sibling));
+            }
+
+            @Override
+            public JavaFileObject getJavaFileForInput(Location location, String className, JavaFileObject.Kind kind) throws IOException {
+                if (isOutput(location)) {
+                    BufferedFileObject buffered = files.get(super.getJavaFileForOutput(location, className, kind, null).toUri());
+                    if (buffered != null) {
+                        return buffered;
+                    }
+                }
+                return super.getJavaFileForInput(location, className, kind);
+            }
+
+            @Override
+            public FileObject getFileForInput(Location location, String packageName, String relativeName) throws IOException {
+                if (isOutput(location)) {
+                    BufferedFileObject buffered = files.get(super.getFileForOutput(location, packageName, relativeName, null).toUri());
+                    if (buffered != null) {
+                        return buffered;
+                    }
+                }
+                return super.getFileForInput(location, packageName, relativeName);
+            }
+
+            @Override
+            public boolean isSameFile(FileObject a, FileObject b) {
+                if (a instanceof BufferedFileObject || b instanceof BufferedFileObject) {
+                    return a.toUri().equals(b.toUri());
+                }
+                return super.isSameFile(a, b);
+            }
+        };
+    }
+
+    private static boolean isOutput(JavaFileManager.Location location) {
+        return location == StandardLocation.CLASS_OUTPUT || location == StandardLocation.SOURCE_OUTPUT;
+    }
+
+    private BufferedFileObject buffer(FileObject target) {
+        synchronized (files) {
+            return files.computeIfAbsent(target.toUri(), BufferedFileObject::new);
+        }
+    }
+
+    /**
+     * Writes every buffered file to disk, replacing any existing file.
+     */
+    public void flush() throws IOException {
+        Set<Path> createdDirs = new HashSet<>();
+        for (BufferedFileObject file : files.values()) {
+            if (file.contents == null) {
+                // opened but never written to, javac wouldn't have created it either
+                continue;
+            }
+            Path path = Paths.get(file.toUri());
+            if (createdDirs.add(path.getParent())) {
+                Files.createDirectories(path.getParent());
+            }
+            Files.write(path, file.contents);
+        }
+    }
+
+    private static class BufferedFileObject extends SimpleJavaFileObject {
+        private byte[] contents;
+        private long lastModified;
+
+        BufferedFileObject(URI uri) {
+            super(uri, kindOf(uri.getPath()));
+        }
+
+        private static Kind kindOf(String path) {
+            for (Kind kind : Kind.values()) {
+                if (kind != Kind.OTHER && path.endsWith(kind.extension)) {
+                    return kind;
+                }
+            }
+            return Kind.OTHER;
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    contents = toByteArray();
+                    lastModified = System.currentTimeMillis();
+                }
+            };
+        }
+
+        @Override
+        public Writer openWriter() {
+            return new OutputStreamWriter(openOutputStream(), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            if (contents == null) {
+                throw new IOException("Not written yet: " + uri);
+            }
+            return new ByteArrayInputStream(contents);
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+            if (contents == null) {
+                throw new IOException("Not written yet: " + uri);
+            }
+            return new String(contents, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public boolean delete() {
+            boolean existed = contents != null;
+            contents = null;
+            return existed;
+        }
+    }
+}
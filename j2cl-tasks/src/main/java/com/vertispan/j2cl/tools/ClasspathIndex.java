@@ -0,0 +1,441 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.tools;
+
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Lists the contents of classpath entries without scanning them again for each compile. Jars are read once
+ * per JVM and kept open for as long as their size and modification time don't change. Directories which
+ * can't change, like the output of another task, can be passed in along with their contents, which the build
+ * has already listed. Any other directory is listed as it is read, as javac would.
+ * <p>
+ * Close the index once the compile is done with it, so that jars which are no longer cached can be closed.
+ */
+public class ClasspathIndex implements Closeable {
+    private static final int MAX_CACHED_JARS = 256;
+
+    // guarded by itself, as are the reference counts of the jars in it
+    private static final Map<JarKey, Jar> JARS = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<JarKey, Jar> eldest) {
+            if (size() <= MAX_CACHED_JARS) {
+                return false;
+            }
+            eldest.getValue().evict();
+            return true;
+        }
+    };
+
+    private interface Entry {
+        List<IndexedFileObject> list(String packageName) throws IOException;
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<Jar> jars = new ArrayList<>();
+    private boolean closed;
+
+    /**
+     * @param classpath the classpath entries, in order
+     * @param knownContents directories on the classpath which can't change while this is in use, with the
+     *                      paths of all of their files, relative to the directory
+     */
+    public ClasspathIndex(List<File> classpath, Map<File, ? extends Collection<Path>> knownContents) throws IOException {
+        try {
+            for (File file : classpath) {
+                Collection<Path> contents = knownContents.get(file);
+                if (contents != null) {
+                    entries.add(new KnownDirectory(file.toPath(), contents));
+                } else if (file.isFile()) {
+                    Jar jar = acquire(file.toPath());
+                    jars.add(jar);
+                    entries.add(jar::list);
+                } else if (file.isDirectory()) {
+                    Path root = file.toPath();
+                    entries.add(packageName -> listDirectory(root, packageName));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the cached jar for the given path, reading it if it isn't cached or has changed since. The caller
+     * must release it when done, so that it is closed once evicted.
+     */
+    private static Jar acquire(Path path) throws IOException {
+        JarKey key = new JarKey(path.toAbsolutePath(), Files.size(path), Files.getLastModifiedTime(path).toMillis());
+        synchronized (JARS) {
+            Jar jar = JARS.get(key);
+            if (jar == null) {
+                // the jar was rewritten, so whatever was cached for this path is stale
+                Iterator<Map.Entry<JarKey, Jar>> it = JARS.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<JarKey, Jar> cached = it.next();
+                    if (cached.getKey().path.equals(key.path)) {
+                        cached.getValue().evict();
+                        it.remove();
+                    }
+                }
+                jar = new Jar(path);
+                JARS.put(key, jar);
+            }
+            jar.references++;
+            return jar;
+        }
+    }
+
+    /**
+     * Releases the jars used by this index. Anything listed from it must not be read afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (JARS) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Jar jar : jars) {
+                jar.release();
+            }
+        }
+    }
+
+    /**
+     * Wraps the given file manager so that it lists classpath entries from this index.
+     */
+    public JavaFileManager wrap(StandardJavaFileManager fileManager) {
+        return new ForwardingJavaFileManager<>(fileManager) {
+            @Override
+            public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+                if (location != StandardLocation.CLASS_PATH || recurse) {
+                    return super.list(location, packageName, kinds, recurse);
+                }
+                List<JavaFileObject> result = new ArrayList<>();
+                for (Entry entry : entries) {
+                    for (IndexedFileObject file : entry.list(packageName)) {
+                        if (kinds.contains(file.getKind())) {
+                            result.add(file);
+                        }
+                    }
+                }
+                return result;
+            }
+
+            @Override
+            public String inferBinaryName(Location location, JavaFileObject file) {
+                if (file instanceof IndexedFileObject) {
+                    return ((IndexedFileObject) file).binaryName;
+                }
+                return super.inferBinaryName(location, file);
+            }
+
+            @Override
+            public boolean isSameFile(FileObject a, FileObject b) {
+                if (a instanceof IndexedFileObject || b instanceof IndexedFileObject) {
+                    return a.toUri().equals(b.toUri());
+                }
+                return super.isSameFile(a, b);
+            }
+
+            @Override
+            public boolean contains(Location location, FileObject file) throws IOException {
+                if (file instanceof IndexedFileObject) {
+                    return location == StandardLocation.CLASS_PATH;
+                }
+                return super.contains(location, file);
+            }
+        };
+    }
+
+    private static List<IndexedFileObject> listDirectory(Path root, String packageName) throws IOException {
+        Path dir = root.resolve(packageName.replace('.', File.separatorChar));
+        if (!Files.isDirectory(dir)) {
+            return Collections.emptyList();
+        }
+        List<IndexedFileObject> files = new ArrayList<>();
+        try (Stream<Path> list = Files.list(dir)) {
+            list.filter(Files::isRegularFile)
+                    .forEach(file -> files.add(IndexedFileObject.forFile(file, packageName)));
+        }
+        return files;
+    }
+
+    private static String packageOf(String relativePath) {
+        int slash = relativePath.lastIndexOf('/');
+        return slash == -1 ? "" : relativePath.substring(0, slash).replace('/', '.');
+    }
+
+    private static class KnownDirectory implements Entry {
+        private final Map<String, List<IndexedFileObject>> packages = new HashMap<>();
+
+        KnownDirectory(Path root, Collection<Path> contents) {
+            for (Path relativePath : contents) {
+                String packageName = packageOf(relativePath.toString().replace(File.separatorChar, '/'));
+                packages.computeIfAbsent(packageName, ignore -> new ArrayList<>())
+                        .add(IndexedFileObject.forFile(root.resolve(relativePath), packageName));
+            }
+        }
+
+        @Override
+        public List<IndexedFileObject> list(String packageName) {
+            return packages.getOrDefault(packageName, Collections.emptyList());
+        }
+    }
+
+    /**
+     * A jar which is kept open so entries can be read later. It is closed once it has been evicted from the
+     * cache and no index is using it any more, since a compile that started before it was evicted may still
+     * read from it. The reference count and evicted flag are guarded by {@link #JARS}.
+     */
+    private static class Jar {
+        private final ZipFile zipFile;
+        private final Map<String, List<IndexedFileObject>> packages = new HashMap<>();
+        private int references;
+        private boolean evicted;
+
+        Jar(Path path) throws IOException {
+            zipFile = new ZipFile(path.toFile());
+            try {
+                URI jarUri = path.toAbsolutePath().toUri();
+                Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+                while (zipEntries.hasMoreElements()) {
+                    ZipEntry zipEntry = zipEntries.nextElement();
+                    if (zipEntry.isDirectory()) {
+                        continue;
+                    }
+                    String packageName = packageOf(zipEntry.getName());
+                    packages.computeIfAbsent(packageName, ignore -> new ArrayList<>())
+                            .add(IndexedFileObject.forJarEntry(zipFile, zipEntry, jarUri, packageName));
+                }
+            } catch (RuntimeException e) {
+                // a corrupt jar can fail while its entries are read
+                zipFile.close();
+                throw e;
+            }
+        }
+
+        List<IndexedFileObject> list(String packageName) {
+            return packages.getOrDefault(packageName, Collections.emptyList());
+        }
+
+        void evict() {
+            evicted = true;
+            closeIfUnused();
+        }
+
+        void release() {
+            references--;
+            closeIfUnused();
+        }
+
+        private void closeIfUnused() {
+            if (evicted && references == 0) {
+                try {
+                    zipFile.close();
+                } catch (IOException ignored) {
+                    // nothing more can be read from it either way
+                }
+            }
+        }
+    }
+
+    private static class JarKey {
+        private final Path path;
+        private final long size;
+        private final long lastModified;
+
+        JarKey(Path path, long size, long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            JarKey jarKey = (JarKey) o;
+            return size == jarKey.size && lastModified == jarKey.lastModified && path.equals(jarKey.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, size, lastModified);
+        }
+    }
+
+    private interface Opener {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Implements JavaFileObject directly, as SimpleJavaFileObject can't represent jar entries.
+     */
+    private static class IndexedFileObject implements JavaFileObject {
+        private final URI uri;
+        private final Kind kind;
+        private final String fileName;
+        private final String binaryName;
+        private final Opener opener;
+        private final LongSupplier lastModified;
+
+        private IndexedFileObject(URI uri, String fileName, String packageName, Opener opener, LongSupplier lastModified) {
+            this.uri = uri;
+            this.kind = kindOf(fileName);
+            this.fileName = fileName;
+            String simpleName = fileName.substring(0, fileName.length() - kind.extension.length());
+            this.binaryName = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+            this.opener = opener;
+            this.lastModified = lastModified;
+        }
+
+        static IndexedFileObject forFile(Path file, String packageName) {
+            // only read if javac finds the same type as both source and class, and has to pick the newer one
+            LongSupplier lastModified = () -> {
+                try {
+                    return Files.getLastModifiedTime(file).toMillis();
+                } catch (IOException e) {
+                    return 0;
+                }
+            };
+            return new IndexedFileObject(file.toUri(), file.getFileName().toString(), packageName, () -> Files.newInputStream(file), lastModified);
+        }
+
+        static IndexedFileObject forJarEntry(ZipFile zipFile, ZipEntry entry, URI jarUri, String packageName) {
+            String name = entry.getName();
+            return new IndexedFileObject(URI.create("jar:" + jarUri + "!/" + name), name.substring(name.lastIndexOf('/') + 1),
+                    packageName, () -> zipFile.getInputStream(entry), entry::getTime);
+        }
+
+        private static Kind kindOf(String fileName) {
+            for (Kind kind : Kind.values()) {
+                if (kind != Kind.OTHER && fileName.endsWith(kind.extension)) {
+                    return kind;
+                }
+            }
+            return Kind.OTHER;
+        }
+
+        @Override
+        public Kind getKind() {
+            return kind;
+        }
+
+        @Override
+        public boolean isNameCompatible(String simpleName, Kind kind) {
+            return this.kind == kind && fileName.equals(simpleName + kind.extension);
+        }
+
+        @Override
+        public NestingKind getNestingKind() {
+            return null;
+        }
+
+        @Override
+        public Modifier getAccessLevel() {
+            return null;
+        }
+
+        @Override
+        public URI toUri() {
+            return uri;
+        }
+
+        @Override
+        public String getName() {
+            return uri.toString();
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            return opener.open();
+        }
+
+        @Override
+        public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
+            return new StringReader(getCharContent(ignoreEncodingErrors).toString());
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+            try (InputStream inputStream = openInputStream()) {
+                return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            throw new UnsupportedOperationException("Classpath entries are read-only: " + uri);
+        }
+
+        @Override
+        public Writer openWriter() {
+            throw new UnsupportedOperationException("Classpath entries are read-only: " + uri);
+        }
+
+        @Override
+        public long getLastModified() {
+            return lastModified.getAsLong();
+        }
+
+        @Override
+        public boolean delete() {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return getName();
+        }
+    }
+}
@@ -15,38 +15,70 @@
  */
 package com.vertispan.j2cl.tools;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.javascript.jscomp.*;
 import com.google.javascript.jscomp.Compiler;
+import com.google.javascript.jscomp.deps.ClosureBundler;
+import com.google.javascript.jscomp.deps.ModuleLoader;
+import com.google.javascript.jscomp.parsing.parser.FeatureSet;
+import com.google.javascript.jscomp.transpile.BaseTranspiler;
+import com.google.javascript.jscomp.transpile.Transpiler;
+import com.google.javascript.rhino.IR;
+import com.google.javascript.rhino.Node;
 import com.vertispan.j2cl.build.DiskCache;
 import com.vertispan.j2cl.build.task.BuildLog;
 import com.vertispan.j2cl.build.task.Input;
+import io.methvin.watcher.hashing.Murmur3F;
 
 import javax.annotation.Nullable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class Closure {
     public static final String SOURCES_DIRECTORY_NAME = "sources";
     /**
-     * Closure compiler uses static variables at least when parsing arguments, so we have to ensure
-     * that only one thread at a time is trying to parse args, otherwise we risk CMEs. The comments
-     * around this code appear to indicate that multiple instances of the compiler at a time are
-     * safe as long as they share "flags", but it is a bit worse - the subsequent instances must
-     * actually share the options instance itself.
+     * Chunks share their globals through this object, so that each can still be wrapped in its own function.
      */
-    private static final Object GLOBAL_CLOSURE_ARGS_LOCK = new Object();
+    private static final String CHUNK_NAMESPACE = "_j2cl";
+    private static final String OUTPUT_MARKER = "%output%";
     private final BuildLog log;
+    @Nullable
+    private final ClosureWorkerPool workers;
+    private final boolean cacheParsedInputs;
 
     public Closure(BuildLog log) {
+        this(log, null, false);
+    }
+
+    /**
+     * @param workers if not null, compiles are run in a worker process from this pool rather than in this JVM
+     * @param cacheParsedInputs if true, inputs parsed by one compile are kept in memory and reused by later
+     *                          compiles in the same JVM (or worker), as long as their contents have not changed
+     */
+    public Closure(BuildLog log, @Nullable ClosureWorkerPool workers, boolean cacheParsedInputs) {
         this.log = log;
+        this.workers = workers;
+        this.cacheParsedInputs = cacheParsedInputs;
     }
 
     public static Map<String, List<String>> mapFromInputs(List<Input> inputs) {
@@ -66,6 +98,7 @@ public class Closure {
             Map<String, List<String>> jsInputs,
             @Nullable File jsSourceDir,
             List<String> entrypoints,
+            List<Chunk> chunks,
             Map<String, String> defines,
             Collection<String> externFiles,
             Optional<File> translationsFile,
@@ -75,32 +108,46 @@ public class Closure {
             boolean enabledSourcemaps,
             String env,
             String jsOutputFile
-    ) {
-        List<String> jscompArgs = new ArrayList<>();
-
-        Compiler jsCompiler = new Compiler(System.err);
+    ) throws IOException, InterruptedException {
+        Compilation compilation = new Compilation();
+        compilation.compilationLevel = compilationLevel;
+        compilation.dependencyMode = dependencyMode;
+        compilation.languageOut = languageOut;
+        compilation.env = env;
+        compilation.entrypoints = new ArrayList<>(entrypoints);
+        compilation.defines = new LinkedHashMap<>(defines);
+        compilation.externs = new ArrayList<>(externFiles);
+        compilation.translationsFile = translationsFile.map(File::getAbsolutePath).orElse(null);
+        compilation.exportTestFunctions = exportTestFunctions;
+        compilation.checkAssertions = checkAssertions;
+        compilation.rewritePolyfills = rewritePolyfills;
+        compilation.outputFile = jsOutputFile;
+        compilation.cacheParsedInputs = cacheParsedInputs;
 
         // List the parent directories of each input so that module resolution works as expected
         jsInputs.keySet().forEach(parentPath -> {
-            jscompArgs.add("--js_module_root");
-            jscompArgs.add(parentPath);
-            jscompArgs.add("--source_map_location_mapping");
-            jscompArgs.add(parentPath + "|" + SOURCES_DIRECTORY_NAME);
+            compilation.moduleRoots.add(parentPath);
+            compilation.sourceMapLocationMappings.put(parentPath, SOURCES_DIRECTORY_NAME);
         });
 
-        // For each input, list each js file that was given to us.
+        // For each input, list each js file that was given to us, grouped by the chunk it goes in.
         // Capture the relative paths as we go to ensure we don't have collisions, report them nicely
+        String initialChunk = new File(jsOutputFile).getName().replaceFirst("\\.js$", "");
+        Map<String, String> chunkOfFile = new HashMap<>();
+        for (Chunk chunk : chunks) {
+            chunk.getFiles().forEach(file -> chunkOfFile.putIfAbsent(file, chunk.getName()));
+        }
+        Map<String, List<String>> filesByChunk = new LinkedHashMap<>();
+        filesByChunk.put(initialChunk, new ArrayList<>());
+        chunks.forEach(chunk -> filesByChunk.put(chunk.getName(), new ArrayList<>()));
         Map<String, Integer> relativePathsWithCount = new HashMap<>();
         jsInputs.entrySet().stream()
                 .flatMap(e -> e.getValue().stream()
                         .peek(relPath -> relativePathsWithCount.compute(relPath, (key, count) -> count == null ? 1 : count + 1))
-                        .map(relPath -> e.getKey() + File.separator + relPath) )
+                        .map(relPath -> Map.entry(relPath, e.getKey() + File.separator + relPath)))
                 //TODO this distinct() call should not be needed, but we apparently have at least one dependency getting duplicated
                 .distinct()
-                .forEach(jsInputPath -> {
-                    jscompArgs.add("--js");
-                    jscompArgs.add(jsInputPath);
-                });
+                .forEach(jsInput -> filesByChunk.get(chunkOfFile.getOrDefault(jsInput.getKey(), initialChunk)).add(jsInput.getValue()));
 
         List<String> duplicateRelativePaths = relativePathsWithCount.entrySet().stream()
                 .filter(entry -> entry.getValue() > 1)
@@ -111,137 +158,468 @@ public class Closure {
             return false;
         }
 
-        for (Map.Entry<String, String> define : defines.entrySet()) {
-            jscompArgs.add("--define");
-            jscompArgs.add(define.getKey() + "=" + define.getValue());
+        compilation.chunks.add(new Compilation.ChunkFiles(initialChunk, Collections.emptyList(), filesByChunk.get(initialChunk)));
+        for (Chunk chunk : chunks) {
+            compilation.chunks.add(new Compilation.ChunkFiles(
+                    chunk.getName(),
+                    chunk.getDependencies().isEmpty() ? Collections.singletonList(initialChunk) : chunk.getDependencies(),
+                    filesByChunk.get(chunk.getName())
+            ));
         }
 
-        for (String extern : externFiles) {
-            jscompArgs.add("--externs");
-            jscompArgs.add(extern);
+        // bundles are written straight from their inputs, and so have no sourcemaps of their own
+        compilation.sourceMaps = enabledSourcemaps && jsSourceDir != null && compilationLevel != CompilationLevel.BUNDLE;
+        if (compilation.sourceMaps) {
+            compilation.sourceMapLocationMappings.put(jsSourceDir.getParent(), ".");// we use parent since the source dir always has a source/ suffix
+        }
+        if (!chunks.isEmpty()) {
+            // each chunk is wrapped in a function like a single output would be, but their globals are rewritten
+            // to be properties of a shared object, so later chunks can see the names declared by earlier ones
+            compilation.renamePrefixNamespace = CHUNK_NAMESPACE;
+            compilation.outputWrapper = "(function(" + CHUNK_NAMESPACE + "){" + OUTPUT_MARKER + "}).call(this,this." + CHUNK_NAMESPACE + "=this." + CHUNK_NAMESPACE + "||{});"
+                    + (compilation.sourceMaps ? "\n//# sourceMappingURL=%basename%.map" : "");
+        } else if (compilation.sourceMaps) {
+            compilation.outputWrapper = "(function(){" + OUTPUT_MARKER + "}).call(this);\n//# sourceMappingURL=%basename%.map";
+            compilation.assumeFunctionWrapper = true;
+        } else if (compilationLevel == CompilationLevel.ADVANCED_OPTIMIZATIONS) {
+            // go ahead and use IIFE
+            compilation.outputWrapper = "(function(){" + OUTPUT_MARKER + "}).call(this);";
+            compilation.assumeFunctionWrapper = true;
         }
 
-        translationsFile.ifPresent(file -> {
-            jscompArgs.add("--translations_file");
-            jscompArgs.add(file.getAbsolutePath());
+        compilation.chunks.forEach(chunk -> {
+            log.debug("Chunk " + chunk.name + " depends on " + chunk.dependencies);
+            chunk.files.forEach(file -> log.debug("\t" + file));
         });
+        if (workers != null) {
+            return workers.compile(log, compilation);
+        }
+        return run(log, compilation);
+    }
 
-        jscompArgs.add("--compilation_level");
-        jscompArgs.add(compilationLevel.name());
+    /**
+     * A chunk to split the output into, other than the initial chunk, which holds every file that isn't given
+     * to another chunk.
+     */
+    public static class Chunk {
+        private final String name;
+        private final List<String> dependencies;
+        private final Set<String> files;
+
+        /**
+         * @param dependencies the chunks that must be loaded first, or empty to depend only on the initial chunk
+         * @param files the relative paths of the files to put in this chunk
+         */
+        public Chunk(String name, List<String> dependencies, Set<String> files) {
+            this.name = name;
+            this.dependencies = dependencies;
+            this.files = files;
+        }
 
-        jscompArgs.add("--dependency_mode");
-        jscompArgs.add(dependencyMode.name());
+        public String getName() {
+            return name;
+        }
 
-        jscompArgs.add("--language_out");
-        jscompArgs.add(languageOut.name());
+        public List<String> getDependencies() {
+            return dependencies;
+        }
 
-        jscompArgs.addAll(Arrays.asList(//TODO parameterize?
-                "--jscomp_off",
-                "analyzerChecks",
-//                    "--jscomp_off",
-//                    "JSC_UNKNOWN_EXPR_TYPE",
-//                    "--jscomp_off",
-//                    "JSC_STRICT_INEXISTENT_PROPERTY",
-                "--rewrite_polyfills=" + rewritePolyfills
-        ));
+        public Set<String> getFiles() {
+            return files;
+        }
+    }
 
-        if (enabledSourcemaps && jsSourceDir != null) {
-            jscompArgs.add("--create_source_map");
-            jscompArgs.add(jsOutputFile + ".map");
-//            jscompArgs.add("%outname%.map"); // this variant would allow one sourcemap per chunk
+    /**
+     * Everything needed to run a single compile, in a form that can be sent to a {@link ClosureWorker}.
+     */
+    static class Compilation {
+        CompilationLevel compilationLevel;
+        DependencyOptions.DependencyMode dependencyMode;
+        CompilerOptions.LanguageMode languageOut;
+        String env;
+        List<String> entrypoints;
+        List<String> moduleRoots = new ArrayList<>();
+        // the first chunk is the initial one, and is written to outputFile
+        List<ChunkFiles> chunks = new ArrayList<>();
+        Map<String, String> defines;
+        List<String> externs;
+        @Nullable
+        String translationsFile;
+        boolean exportTestFunctions;
+        boolean checkAssertions;
+        boolean rewritePolyfills;
+        boolean sourceMaps;
+        // checked in order, the first matching prefix wins
+        Map<String, String> sourceMapLocationMappings = new LinkedHashMap<>();
+        @Nullable
+        String outputWrapper;
+        boolean assumeFunctionWrapper;
+        @Nullable
+        String renamePrefixNamespace;
+        String outputFile;
+        boolean cacheParsedInputs;
+
+        static class ChunkFiles {
+            String name;
+            List<String> dependencies;
+            // absolute paths, in the order they were given
+            List<String> files;
+
+            ChunkFiles(String name, List<String> dependencies, List<String> files) {
+                this.name = name;
+                this.dependencies = dependencies;
+                this.files = files;
+            }
+        }
+    }
 
-            jscompArgs.add("--source_map_location_mapping");
-            jscompArgs.add(jsSourceDir.getParent() + "|.");// we use parent since the source dir always has a source/ suffix
+    /**
+     * Runs Closure Compiler in this JVM. The options are built directly rather than parsed from command line
+     * flags, so that any number of compiles can run at the same time.
+     */
+    static boolean run(BuildLog log, Compilation compilation) throws IOException {
+        // note each input sourcemap found while parsing, so that it can be cached along with the parsed input
+        Map<String, SourceMapInput> inputSourceMaps = new ConcurrentHashMap<>();
+        Compiler compiler = new Compiler(System.err) {
+            @Override
+            public void addInputSourceMap(String sourceFileName, SourceMapInput inputSourceMap) {
+                inputSourceMaps.put(sourceFileName, inputSourceMap);
+                super.addInputSourceMap(sourceFileName, inputSourceMap);
+            }
+        };
+        compiler.setErrorManager(new SortingErrorManager(Collections.singleton(new LoggingErrorReportGenerator(compiler, log))));
+
+        final CompilerOptions options;
+        try {
+            options = createOptions(compilation);
+        } catch (FlagUsageException e) {
+            log.error(e.getMessage());
+            return false;
+        }
 
-            jscompArgs.add("--output_wrapper");
-            jscompArgs.add("(function(){%output%}).call(this);\n//# sourceMappingURL="+jsOutputFile.substring(jsOutputFile.lastIndexOf("/") + 1)+".map");
-            jscompArgs.add("--assume_function_wrapper");
-            jscompArgs.add("true");
+        List<SourceFile> externs = CommandLineRunner.getBuiltinExterns(options.getEnvironment());
+        for (String extern : compilation.externs) {
+            externs.add(SourceFile.fromFile(extern, StandardCharsets.UTF_8));
+        }
 
+        List<JSChunk> chunks = new ArrayList<>();
+        Map<String, JSChunk> chunksByName = new HashMap<>();
+        for (Compilation.ChunkFiles chunkFiles : compilation.chunks) {
+            JSChunk chunk = new JSChunk(chunkFiles.name);
+            for (String file : chunkFiles.files) {
+                chunk.add(compilation.cacheParsedInputs
+                        ? new CompilerInput(CachedAst.get(file, inputSourceMaps), false)
+                        : new CompilerInput(SourceFile.fromFile(file, StandardCharsets.UTF_8), false));
+            }
+            chunkFiles.dependencies.forEach(dependency -> chunk.addDependency(chunksByName.get(dependency)));
+            chunksByName.put(chunkFiles.name, chunk);
+            chunks.add(chunk);
+        }
 
-            //TODO deal with chunk_wrapper here, once we support those. might be as simple as this (plus knowledge of the chunk names):
-//            jscompArgs.add("--chunk_wrapper");
-//            jscompArgs.add("NAME_OF_CHUNK_HERE:%output%%n//# sourceMappingURL=%basename%.map");
-        } else if (compilationLevel == CompilationLevel.ADVANCED_OPTIMIZATIONS) {
-            // go ahead and use IIFE
-            jscompArgs.add("--isolation_mode");
-            jscompArgs.add("IIFE");
+        if (compilation.compilationLevel == CompilationLevel.BUNDLE) {
+            return bundle(compiler, externs, chunks.get(0), options, compilation);
         }
 
-        if (compilationLevel == CompilationLevel.BUNDLE) {
-            // avoid injecting libraries, the runtime will be added as part of the BundleJarTask step in the
-            // initial download
-            jscompArgs.add("--inject_libraries");
-            jscompArgs.add("false");
+        compiler.compileModules(externs, chunks, options);
+        if (compiler.hasErrors()) {
+            return false;
         }
 
-        for (String entrypoint : entrypoints) {
-            jscompArgs.add("--entry_point");
-            jscompArgs.add(entrypoint);
+        if (chunks.size() == 1) {
+            writeOutput(compiler, compilation, compiler.toSource(), compilation.outputFile);
+        } else {
+            // the initial chunk is named after the output file, so it is written in its place
+            File outputDir = new File(compilation.outputFile).getParentFile();
+            for (JSChunk chunk : compiler.getModules()) {
+                if (chunk.getName().equals(JSChunk.WEAK_CHUNK_NAME)) {
+                    continue;
+                }
+                if (compilation.sourceMaps) {
+                    compiler.resetAndIntitializeSourceMap();
+                }
+                writeOutput(compiler, compilation, compiler.toSource(chunk), new File(outputDir, chunk.getName() + ".js").getPath());
+            }
         }
+        return true;
+    }
 
-        jscompArgs.add("--js_output_file");
-        jscompArgs.add(jsOutputFile);
+    private static CompilerOptions createOptions(Compilation compilation) throws IOException {
+        CompilationLevel level = compilation.compilationLevel;
+        CompilerOptions options = new CompilerOptions();
+        options.setLanguageIn(CompilerOptions.LanguageMode.STABLE);
+        options.setLanguageOut(compilation.languageOut);
+        options.setCodingConvention(new ClosureCodingConvention());
+        level.setOptionsForCompilationLevel(options);
+        level.setTypeBasedOptimizationOptions(options);
+        if (compilation.assumeFunctionWrapper) {
+            level.setWrappedOutputOptimizations(options);
+        }
+        WarningLevel.DEFAULT.setOptionsForWarningLevel(options);
+        options.setEnvironment(CompilerOptions.Environment.valueOf(compilation.env));
+        options.setBadRewriteModulesBeforeTypecheckingThatWeWantToGetRidOf(true);
+        options.setGenerateExports(true);
+        options.setExportLocalPropertyDefinitions(true);
+        options.setClosurePass(true);
+        options.setJ2clPass(CompilerOptions.J2clPassMode.AUTO);
+        options.setRemoveJ2clAsserts(!compilation.checkAssertions);
+        options.setExportTestFunctions(compilation.exportTestFunctions);
+        options.setRenamePrefixNamespace(compilation.renamePrefixNamespace);
+        options.setStrictModeInput(true);
+        options.setEmitUseStrict(false);
+        options.setModuleResolutionMode(ModuleLoader.ResolutionMode.BROWSER);
+        options.setModuleRoots(compilation.moduleRoots);
+        options.setAllowDynamicImport(true);
+        options.setAssumeStaticInheritanceIsNotUsed(true);
+        options.setTrustedStrings(true);
+        options.setOutputCharset(StandardCharsets.US_ASCII);
+
+        //TODO parameterize?
+        options.setWarningLevel(DiagnosticGroups.ANALYZER_CHECKS, CheckLevel.OFF);
+
+        // avoid injecting libraries into bundles, the runtime will be added as part of the BundleJarTask step
+        // in the initial download
+        options.setPreventLibraryInjection(level == CompilationLevel.BUNDLE);
+        options.setRewritePolyfills(compilation.rewritePolyfills);
+
+        if (compilation.translationsFile != null) {
+            try (InputStream translations = new FileInputStream(compilation.translationsFile)) {
+                options.setMessageBundle(new XtbMessageBundle(translations, null));
+            }
+        } else if (level == CompilationLevel.ADVANCED_OPTIMIZATIONS) {
+            // without translations, messages still need to be replaced in advanced mode
+            options.setMessageBundle(new EmptyMessageBundle());
+            options.setWarningLevel(DiagnosticGroups.MSG_CONVENTIONS, CheckLevel.OFF);
+        }
 
-        jscompArgs.add("--env");
-        jscompArgs.add(env);
+        AbstractCommandLineRunner.createDefineReplacements(
+                compilation.defines.entrySet().stream()
+                        .map(define -> define.getKey() + "=" + define.getValue())
+                        .collect(Collectors.toUnmodifiableList()),
+                options
+        );
+
+        options.setDependencyOptions(DependencyOptions.fromFlags(
+                compilation.dependencyMode, compilation.entrypoints, ImmutableList.of(), null, false, false));
+
+        options.setParseInlineSourceMaps(true);
+        options.setApplyInputSourceMaps(true);
+        options.setSourceMapLocationMappings(compilation.sourceMapLocationMappings.entrySet().stream()
+                .map(mapping -> new SourceMap.PrefixLocationMapping(mapping.getKey(), mapping.getValue()))
+                .collect(Collectors.toUnmodifiableList()));
+        if (compilation.sourceMaps) {
+            options.setSourceMapOutputPath(compilation.outputFile + ".map");
+            options.setSourceMapDetailLevel(SourceMap.DetailLevel.ALL);
+            options.setSourceMapFormat(SourceMap.Format.DEFAULT);
+            options.setSourceMapIncludeSourcesContent(false);
+        }
 
-        //TODO bundles
+        return options;
+    }
 
-        final InProcessJsCompRunner jscompRunner;
-        synchronized (GLOBAL_CLOSURE_ARGS_LOCK) {
-            jscompRunner = new InProcessJsCompRunner(log, jscompArgs.toArray(new String[0]), jsCompiler, exportTestFunctions, checkAssertions);
-        }
-        jscompArgs.forEach(log::debug);
-        if (!jscompRunner.shouldRunCompiler()) {
-            return false;
+    /**
+     * Writes the given compiled code inside the output wrapper, and the sourcemap next to it if enabled.
+     */
+    private static void writeOutput(Compiler compiler, Compilation compilation, String code, String outputFile) throws IOException {
+        String wrapper = compilation.outputWrapper == null
+                ? OUTPUT_MARKER
+                : compilation.outputWrapper.replace("%basename%", new File(outputFile).getName());
+        int index = wrapper.indexOf(OUTPUT_MARKER);
+        String prefix = wrapper.substring(0, index);
+        Files.createDirectories(Paths.get(outputFile).getParent());
+        try (Writer out = Files.newBufferedWriter(Paths.get(outputFile), StandardCharsets.UTF_8)) {
+            out.append(prefix);
+            out.append(code);
+            out.append(wrapper, index + OUTPUT_MARKER.length(), wrapper.length());
+            out.append('\n');
         }
 
-        jscompRunner.run();
+        if (compilation.sourceMaps) {
+            // mappings are relative to the start of the code, shift them past the wrapper
+            compiler.getSourceMap().setWrapperPrefix(prefix);
+            try (Writer out = Files.newBufferedWriter(Paths.get(outputFile + ".map"), StandardCharsets.UTF_8)) {
+                compiler.getSourceMap().appendTo(out, outputFile);
+            }
+        }
+    }
 
-        if (jscompRunner.hasErrors() || jscompRunner.exitCode != 0) {
+    /**
+     * Sorts (and if requested, prunes) the inputs, and concatenates them into a single file without compiling
+     * them.
+     */
+    private static boolean bundle(Compiler compiler, List<SourceFile> externs, JSChunk chunk, CompilerOptions options, Compilation compilation) throws IOException {
+        Set<String> inputNames = new HashSet<>();
+        chunk.getInputs().forEach(input -> inputNames.add(input.getName()));
+        compiler.initModules(externs, Collections.singletonList(chunk), options);
+        if (!compiler.hasErrors()) {
+            compiler.parseForCompilation();
+        }
+        compiler.generateReport();
+        if (compiler.hasErrors()) {
             return false;
         }
 
+        ClosureBundler bundler = new ClosureBundler(Transpiler.NULL, new BaseTranspiler(
+                new BaseTranspiler.CompilerSupplier(
+                        CompilerOptions.LanguageMode.ECMASCRIPT_NEXT.toFeatureSet().without(FeatureSet.Feature.MODULES),
+                        ModuleLoader.ResolutionMode.BROWSER,
+                        ImmutableList.copyOf(compilation.moduleRoots),
+                        ImmutableMap.of()
+                ),
+                ""
+        ));
+        Files.createDirectories(Paths.get(compilation.outputFile).getParent());
+        try (Writer out = Files.newBufferedWriter(Paths.get(compilation.outputFile), StandardCharsets.UTF_8)) {
+            // nothing is compiled, so defines are handed to base.js to apply at runtime
+            Map<String, Node> defines = options.getDefineReplacements();
+            if (!defines.isEmpty()) {
+                Node assign = IR.assign(
+                        IR.getprop(IR.thisNode(), "CLOSURE_UNCOMPILED_DEFINES"),
+                        IR.objectlit(defines.entrySet().stream()
+                                .map(define -> IR.propdef(IR.stringKey(define.getKey()), define.getValue()))
+                                .toArray(Node[]::new))
+                );
+                out.append(new CodePrinter.Builder(assign).setPrettyPrint(true).build()).append(";\n");
+            }
+            for (JSChunk sorted : compiler.getModules()) {
+                if (sorted.getName().equals(JSChunk.WEAK_CHUNK_NAME)) {
+                    continue;
+                }
+                for (CompilerInput input : sorted.getInputs()) {
+                    String code = input.getSourceFile().getCode();
+                    // skip the placeholder the compiler adds when every input was pruned
+                    if (code.isEmpty() && !inputNames.contains(input.getName())) {
+                        continue;
+                    }
+                    out.append("//").append(input.getName()).append('\n');
+                    bundler.withPath(input.getName()).appendTo(out, input, code);
+                    out.append('\n');
+                }
+            }
+        }
         return true;
     }
 
-    static class InProcessJsCompRunner extends CommandLineRunner {
-        private final boolean exportTestFunctions;
-        private final boolean checkAssertions;
-        private final Compiler compiler;
-        private Integer exitCode;
+    /**
+     * Hands each compile its own copy of an input's parsed AST, reusing the parse from an earlier compile in
+     * this JVM if the file's contents haven't changed since. Only inputs that parsed without any errors or
+     * warnings are kept, since those diagnostics can't be replayed into a later compile. Entries are softly
+     * referenced, so the cache gives way before the build runs out of memory.
+     * <p>
+     * This extends JsAst rather than wrapping it, so that the compiler still finds each input's dependencies
+     * by scanning its source, as it would for any other input.
+     */
+    static class CachedAst extends JsAst {
+        private static final int MAX_CACHED_INPUTS = 100_000;
+
+        private static final Map<String, SoftReference<ParsedInput>> PARSED_INPUTS = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SoftReference<ParsedInput>> eldest) {
+                return size() > MAX_CACHED_INPUTS;
+            }
+        };
+
+        private static class ParsedInput {
+            // never handed to a compiler, only copied
+            private final Node root;
+            private final FeatureSet features;
+            // the sourcemap the compiler found for this input while parsing it, if any
+            @Nullable
+            private final SourceMapInput inputSourceMap;
+
+            private ParsedInput(Node root, FeatureSet features, @Nullable SourceMapInput inputSourceMap) {
+                this.root = root;
+                this.features = features;
+                this.inputSourceMap = inputSourceMap;
+            }
+        }
 
-        InProcessJsCompRunner(BuildLog log, String[] args, Compiler compiler, boolean exportTestFunctions, boolean checkAssertions) {
-            super(args);
-            this.compiler = compiler;
-            this.compiler.setErrorManager(new SortingErrorManager(Collections.singleton(new LoggingErrorReportGenerator(compiler, log))));
-            this.exportTestFunctions = exportTestFunctions;
-            this.checkAssertions = checkAssertions;
-            setExitCodeReceiver(exitCode -> {
-                this.exitCode = exitCode;
-                return null;
-            });
+        /**
+         * @param inputSourceMaps the sourcemaps the current compiler has found while parsing, by input name
+         */
+        static CachedAst get(String path, Map<String, SourceMapInput> inputSourceMaps) throws IOException {
+            byte[] bytes = Files.readAllBytes(Paths.get(path));
+            Murmur3F hash = new Murmur3F();
+            hash.update(bytes);
+            String key = path + ":" + hash.getValueHexString();
+
+            ParsedInput cached;
+            synchronized (PARSED_INPUTS) {
+                SoftReference<ParsedInput> ref = PARSED_INPUTS.get(key);
+                cached = ref == null ? null : ref.get();
+            }
+            // each compile gets its own SourceFile, as the compiler updates them as it goes
+            SourceFile sourceFile = SourceFile.builder()
+                    .withPath(path)
+                    .withContent(new String(bytes, StandardCharsets.UTF_8))
+                    .build();
+            return new CachedAst(sourceFile, key, cached, inputSourceMaps);
         }
 
-        @Override
-        protected Compiler createCompiler() {
-            return compiler;
+        private final String key;
+        @Nullable
+        private final ParsedInput cached;
+        private final Map<String, SourceMapInput> inputSourceMaps;
+        private boolean visited;
+        @Nullable
+        private Node copy;
+
+        private CachedAst(SourceFile sourceFile, String key, @Nullable ParsedInput cached, Map<String, SourceMapInput> inputSourceMaps) {
+            super(sourceFile);
+            this.key = key;
+            this.cached = cached;
+            this.inputSourceMaps = inputSourceMaps;
         }
 
         @Override
-        protected CompilerOptions createOptions() {
-            CompilerOptions options = super.createOptions();
-
-//            options.addWarningsGuard();
-
-            options.setExportTestFunctions(exportTestFunctions);
+        public synchronized Node getAstRoot(AbstractCompiler compiler) {
+            if (cached != null) {
+                if (copy == null) {
+                    copy = cached.root.cloneTree(true);
+                    NodeUtil.visitPreOrder(copy, node -> {
+                        if (node.getStaticSourceFile() != null) {
+                            node.setStaticSourceFile(getSourceFile());
+                        }
+                    });
+                    copy.setInputId(getInputId());
+                }
+                if (!visited) {
+                    visited = true;
+                    // parsing would have handed this to the compiler, so do the same for the copy
+                    if (cached.inputSourceMap != null) {
+                        compiler.addInputSourceMap(getSourceFile().getName(), cached.inputSourceMap);
+                    }
+                }
+                return copy;
+            }
+            if (visited) {
+                return super.getAstRoot(compiler);
+            }
+            visited = true;
+
+            ErrorManager errorManager = compiler.getErrorManager();
+            int diagnostics = errorManager.getErrorCount() + errorManager.getWarningCount();
+            Node root = super.getAstRoot(compiler);
+            if (errorManager.getErrorCount() + errorManager.getWarningCount() == diagnostics) {
+                ParsedInput parsed = new ParsedInput(root.cloneTree(true), super.getFeatures(compiler), inputSourceMaps.get(getSourceFile().getName()));
+                synchronized (PARSED_INPUTS) {
+                    PARSED_INPUTS.put(key, new SoftReference<>(parsed));
+                }
+            }
+            return root;
+        }
 
-            options.setRemoveJ2clAsserts(!checkAssertions);
+        @Override
+        public FeatureSet getFeatures(AbstractCompiler compiler) {
+            if (cached != null) {
+                return cached.features;
+            }
+            return super.getFeatures(compiler);
+        }
 
-            return options;
+        @Override
+        public synchronized void clearAst() {
+            copy = null;
+            super.clearAst();
         }
     }
-
-
-}
\ No newline at end of file
+}
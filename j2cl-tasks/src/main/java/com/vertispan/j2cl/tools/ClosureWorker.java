@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.tools;
+
+import com.google.gson.Gson;
+import com.vertispan.j2cl.build.task.BuildLog;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Entrypoint for a long-lived process that runs Closure Compiler on behalf of a {@link ClosureWorkerPool}, so
+ * that each compile gets its own heap, and one which runs out of memory can't take the build down with it.
+ *
+ * Each line read from stdin is a {@link Request}, and the worker replies on stdout with a {@link Message} per
+ * line for each log message, then one with the result. The worker exits when stdin is closed.
+ */
+public class ClosureWorker {
+    static class Request {
+        Closure.Compilation compilation;
+    }
+
+    static class Message {
+        enum Level {
+            DEBUG,
+            INFO,
+            WARN,
+            ERROR
+        }
+
+        // null for the final message, which carries the result instead
+        Level level;
+        String message;
+        boolean success;
+
+        void replay(BuildLog log) {
+            switch (level) {
+                case DEBUG:
+                    log.debug(message);
+                    break;
+                case INFO:
+                    log.info(message);
+                    break;
+                case WARN:
+                    log.warn(message);
+                    break;
+                case ERROR:
+                    log.error(message);
+                    break;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // closure and its dependencies occasionally print to stdout, keep that from interleaving with replies
+        PrintStream stdout = System.out;
+        System.setOut(System.err);
+
+        Gson gson = new Gson();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        Writer writer = new OutputStreamWriter(stdout, StandardCharsets.UTF_8);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            Request request = gson.fromJson(line, Request.class);
+            BuildLog log = new BuildLog() {
+                private void send(Message.Level level, String msg, Throwable t) {
+                    Message message = new Message();
+                    message.level = level;
+                    message.message = t == null ? msg : msg == null ? stackTrace(t) : msg + "\n" + stackTrace(t);
+                    write(gson, writer, message);
+                }
+
+                @Override
+                public void debug(String msg) {
+                    send(Message.Level.DEBUG, msg, null);
+                }
+
+                @Override
+                public void info(String msg) {
+                    send(Message.Level.INFO, msg, null);
+                }
+
+                @Override
+                public void warn(String msg) {
+                    send(Message.Level.WARN, msg, null);
+                }
+
+                @Override
+                public void warn(String msg, Throwable t) {
+                    send(Message.Level.WARN, msg, t);
+                }
+
+                @Override
+                public void warn(Throwable t) {
+                    send(Message.Level.WARN, null, t);
+                }
+
+                @Override
+                public void error(String msg) {
+                    send(Message.Level.ERROR, msg, null);
+                }
+
+                @Override
+                public void error(String msg, Throwable t) {
+                    send(Message.Level.ERROR, msg, t);
+                }
+
+                @Override
+                public void error(Throwable t) {
+                    send(Message.Level.ERROR, null, t);
+                }
+            };
+
+            Message result = new Message();
+            try {
+                result.success = Closure.run(log, request.compilation);
+            } catch (Exception e) {
+                log.error("Closure Compiler failed", e);
+            }
+            write(gson, writer, result);
+        }
+    }
+
+    private static void write(Gson gson, Writer writer, Message message) {
+        synchronized (writer) {
+            try {
+                writer.write(gson.toJson(message));
+                writer.write('\n');
+                writer.flush();
+            } catch (Exception e) {
+                // the pool went away, nothing left to report to
+                System.exit(1);
+            }
+        }
+    }
+
+    private static String stackTrace(Throwable t) {
+        StringWriter writer = new StringWriter();
+        t.printStackTrace(new PrintWriter(writer));
+        return writer.toString();
+    }
+}
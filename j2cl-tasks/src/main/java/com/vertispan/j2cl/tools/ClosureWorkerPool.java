@@ -0,0 +1,175 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.tools;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.vertispan.j2cl.build.task.BuildLog;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs Closure Compiler in separate, long-lived JVMs started with their own arguments, such as a larger heap.
+ * Workers are started as they are needed, up to the given limit, and kept running so that later compiles
+ * start with a warm JIT. A worker that crashes or runs out of memory fails only the compile it was running,
+ * and is replaced by a new one for the next compile.
+ *
+ * Pools are shared by the whole JVM, so that every build in a reactor or in a watch session uses the same
+ * workers.
+ */
+public class ClosureWorkerPool {
+    private static final Map<List<String>, ClosureWorkerPool> POOLS = new HashMap<>();
+
+    private final List<String> command;
+    private final Semaphore permits;
+    private final Deque<Worker> idle = new ArrayDeque<>();
+
+    /**
+     * Returns the pool for the given worker count and JVM arguments, creating it if necessary.
+     */
+    public static ClosureWorkerPool get(int maxWorkers, List<String> jvmArgs) {
+        List<String> key = new ArrayList<>(jvmArgs);
+        key.add(Integer.toString(maxWorkers));
+        synchronized (POOLS) {
+            return POOLS.computeIfAbsent(key, ignore -> new ClosureWorkerPool(maxWorkers, jvmArgs));
+        }
+    }
+
+    private ClosureWorkerPool(int maxWorkers, List<String> jvmArgs) {
+        command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(classpath());
+        command.add(ClosureWorker.class.getName());
+        permits = new Semaphore(maxWorkers);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            synchronized (idle) {
+                idle.forEach(Worker::destroy);
+            }
+        }));
+    }
+
+    /**
+     * The classpath this class was loaded from - inside Maven, the plugin's class realm.
+     */
+    private static String classpath() {
+        ClassLoader loader = ClosureWorkerPool.class.getClassLoader();
+        if (loader instanceof URLClassLoader) {
+            List<String> entries = new ArrayList<>();
+            try {
+                for (URL url : ((URLClassLoader) loader).getURLs()) {
+                    entries.add(Paths.get(url.toURI()).toString());
+                }
+            } catch (URISyntaxException e) {
+                throw new IllegalStateException("Failed to read the plugin classpath", e);
+            }
+            return String.join(File.pathSeparator, entries);
+        }
+        return System.getProperty("java.class.path");
+    }
+
+    /**
+     * Runs the given compile in a worker, waiting for one to be free if all are busy. Messages from the worker
+     * are written to the given log.
+     *
+     * @return true if the compile succeeded, false if it failed or the worker was lost
+     */
+    boolean compile(BuildLog log, Closure.Compilation compilation) throws InterruptedException {
+        ClosureWorker.Request request = new ClosureWorker.Request();
+        request.compilation = compilation;
+
+        permits.acquire();
+        Worker worker = null;
+        try {
+            synchronized (idle) {
+                worker = idle.poll();
+            }
+            if (worker == null) {
+                worker = new Worker(command);
+            }
+            boolean success = worker.compile(request, log);
+            synchronized (idle) {
+                idle.push(worker);
+            }
+            worker = null;
+            return success;
+        } catch (IOException | JsonParseException e) {
+            log.error("Closure worker failed, it will be replaced for the next compile", e);
+            return false;
+        } finally {
+            if (worker != null) {
+                worker.destroy();
+            }
+            permits.release();
+        }
+    }
+
+    private static class Worker {
+        private final Gson gson = new Gson();
+        private final Process process;
+        private final Writer writer;
+        private final BufferedReader reader;
+
+        Worker(List<String> command) throws IOException {
+            process = new ProcessBuilder(command)
+                    // closure writes some diagnostics to stderr, as it would in this process
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        boolean compile(ClosureWorker.Request request, BuildLog log) throws IOException, InterruptedException {
+            writer.write(gson.toJson(request));
+            writer.write('\n');
+            writer.flush();
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                ClosureWorker.Message message = gson.fromJson(line, ClosureWorker.Message.class);
+                if (message.level == null) {
+                    return message.success;
+                }
+                message.replay(log);
+            }
+            throw new IOException("Closure worker exited with code " + process.waitFor());
+        }
+
+        void destroy() {
+            process.destroyForcibly();
+        }
+    }
+}
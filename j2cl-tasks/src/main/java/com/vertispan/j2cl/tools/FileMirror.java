@@ -0,0 +1,137 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.tools;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Puts files in place without copying their contents where possible. Files in the build cache never change
+ * once written, so they are hard linked into other cache entries. Files which might be edited in place, like a
+ * project's own sources, are copied, but a copy made by a previous build is linked instead if the file hasn't
+ * changed since. Anything outside the cache, like a webapp directory, only ever gets copies, since editing a
+ * linked file there would change the cache entry along with it.
+ * <p>
+ * Whether a file "hasn't changed" is decided by its size and modification time, not its contents, see
+ * {@link #isCopyOf(Path, Path)}.
+ */
+public class FileMirror {
+    /**
+     * Hard links the given file into place, copying it instead if the file system can't link them.
+     */
+    public static void linkOrCopy(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // different file systems, or no support for links at all
+            Files.copy(source, target);
+        }
+    }
+
+    /**
+     * Mirrors every file in the source directory into the target directory, replacing files that are already
+     * there if they differ, and leaving any other files in the target alone. Like copying the directory, the
+     * last source mirrored wins when several have the same file. Immutable sources are hard linked, so the
+     * target must be in the build cache too, see {@link #copy(Path, Path)} for anywhere else.
+     *
+     * @param sourceMutable true if files in the source could be changed in place, so they can't be linked
+     * @param previousTargetDir where a previous build mirrored the same files, if any, so that unchanged
+     *                          copies of mutable files can be linked from there
+     */
+    public static void mirror(Path sourceDir, Path targetDir, boolean sourceMutable, @Nullable Path previousTargetDir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(sourceDir)) {
+            walk.filter(Files::isRegularFile).forEach(files::add);
+        }
+        for (Path file : files) {
+            Path relativePath = sourceDir.relativize(file);
+            Path target = targetDir.resolve(relativePath);
+            if (!sourceMutable) {
+                if (Files.exists(target)) {
+                    if (Files.isSameFile(file, target)) {
+                        continue;
+                    }
+                    Files.delete(target);
+                }
+                linkOrCopy(file, target);
+                continue;
+            }
+
+            if (Files.exists(target)) {
+                if (isCopyOf(target, file)) {
+                    continue;
+                }
+                // unlink rather than overwrite, in case the target is linked to some other output
+                Files.delete(target);
+            }
+            Path previous = previousTargetDir == null ? null : previousTargetDir.resolve(relativePath);
+            if (previous != null && isCopyOf(previous, file)) {
+                linkOrCopy(previous, target);
+            } else {
+                Files.createDirectories(target.getParent());
+                Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+        }
+    }
+
+    /**
+     * Copies every file in the source directory into the target directory, leaving any other files in the
+     * target alone. Never links, so the copies can be edited or deleted without touching the source. A file
+     * already in the target is kept if it appears to be a copy of the source file, and otherwise replaced,
+     * including one that a previous build linked there.
+     */
+    public static void copy(Path sourceDir, Path targetDir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(sourceDir)) {
+            walk.filter(Files::isRegularFile).forEach(files::add);
+        }
+        for (Path file : files) {
+            Path target = targetDir.resolve(sourceDir.relativize(file));
+            if (Files.exists(target)) {
+                if (!Files.isSameFile(file, target) && isCopyOf(target, file)) {
+                    continue;
+                }
+                // unlink rather than overwrite, so a link left in place can't write through to the source
+                Files.delete(target);
+            }
+            Files.createDirectories(target.getParent());
+            Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    /**
+     * Copies keep the modification time of the original, so if that and the size match, assume the contents do.
+     * Times are compared in milliseconds, since copying can lose precision beyond that.
+     * <p>
+     * This is a heuristic, the same one incremental copying tools commonly rely on: an edit that keeps the size
+     * of the file and lands within the same millisecond, or a tool that restores the old modification time
+     * afterwards, won't be noticed, and the stale copy is kept. Hashing both files would be exact, but would read
+     * every file on each build, which is what mirroring is meant to avoid.
+     */
+    private static boolean isCopyOf(Path copy, Path original) throws IOException {
+        return Files.isRegularFile(copy)
+                && Files.size(copy) == Files.size(original)
+                && Files.getLastModifiedTime(copy).toMillis() == Files.getLastModifiedTime(original).toMillis();
+    }
+}
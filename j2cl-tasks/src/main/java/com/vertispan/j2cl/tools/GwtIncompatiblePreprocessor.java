@@ -15,43 +15,129 @@
  */
 package com.vertispan.j2cl.tools;
 
-import com.google.j2cl.common.OutputUtils;
-import com.google.j2cl.common.Problems;
 import com.google.j2cl.common.SourceUtils.FileInfo;
 import com.google.j2cl.tools.gwtincompatible.GwtIncompatibleStripper;
-import com.vertispan.j2cl.build.task.BuildLog;
+import com.vertispan.j2cl.build.task.TaskContext;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * Takes a directory of sources, and removes any types or members that are
  * annotated with @GwtIncompatible
  */
 public class GwtIncompatiblePreprocessor {
+    private static final String ANNOTATION_NAME = "GwtIncompatible";
+    private static final byte[] ANNOTATION_BYTES = ANNOTATION_NAME.getBytes(StandardCharsets.US_ASCII);
+
     private final File outputDirectory;
-    private final BuildLog log;
+    private final TaskContext context;
 
-    public GwtIncompatiblePreprocessor(File outputDirectory, BuildLog log) {
+    public GwtIncompatiblePreprocessor(File outputDirectory, TaskContext context) {
         this.outputDirectory = outputDirectory;
-        this.log = log;
+        this.context = context;
         if (!outputDirectory.exists() || !outputDirectory.isDirectory()) {
             throw new IllegalArgumentException(outputDirectory.toString());
         }
     }
 
-    public void preprocess(List<FileInfo> unprocessedFiles) {
-        Problems problems = new Problems();
+    public void preprocess(List<FileInfo> unprocessedFiles) throws Exception {
+        preprocess(unprocessedFiles, false);
+    }
+
+    /**
+     * Writes each file to the output directory at its original path, stripped of anything annotated with
+     * GwtIncompatible. Like J2CL's stripper, a file that never mentions the annotation by name is passed
+     * through unchanged, but without being parsed or decoded - most files are just linked or copied.
+     *
+     * @param linkUnchanged true if the given files can't change later, like the output of another task, so
+     *                      that unchanged files can be hard linked instead of copied
+     */
+    public void preprocess(List<FileInfo> unprocessedFiles, boolean linkUnchanged) throws Exception {
+        Path outputPath = outputDirectory.toPath();
+        List<FileInfo> filesToStrip = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        for (FileInfo file : unprocessedFiles) {
+            Path source = Paths.get(file.sourcePath());
+            if (mentionsAnnotation(source, buffer)) {
+                filesToStrip.add(file);
+            } else if (linkUnchanged) {
+                FileMirror.linkOrCopy(source, outputPath.resolve(file.originalPath()));
+            } else {
+                Files.createDirectories(outputPath.resolve(file.originalPath()).getParent());
+                Files.copy(source, outputPath.resolve(file.originalPath()));
+            }
+        }
+        if (filesToStrip.isEmpty()) {
+            return;
+        }
+        context.debug("Stripping " + filesToStrip.size() + " of " + unprocessedFiles.size() + " files that mention " + ANNOTATION_NAME);
+
+        // only these files need to be parsed, which is slow enough to be worth spreading across whatever
+        // threads the build can spare
+        List<Callable<Void>> jobs = new ArrayList<>();
+        for (FileInfo file : filesToStrip) {
+            jobs.add(() -> {
+                String stripped = GwtIncompatibleStripper.strip(Files.readString(Paths.get(file.sourcePath()), StandardCharsets.UTF_8), ANNOTATION_NAME);
+                Path target = outputPath.resolve(file.originalPath());
+                Files.createDirectories(target.getParent());
+                Files.writeString(target, stripped, StandardCharsets.UTF_8);
+                return null;
+            });
+        }
+        try {
+            context.runInParallel(jobs);
+        } catch (Exception e) {
+            context.error("Failed to strip " + ANNOTATION_NAME + " members", e);
+            throw e;
+        }
+    }
 
-        try (OutputUtils.Output output = OutputUtils.initOutput(outputDirectory.toPath(), problems)) {
-            GwtIncompatibleStripper.preprocessFiles(unprocessedFiles, output, problems, "GwtIncompatible");
+    /**
+     * Checks for the annotation's simple name anywhere in the file, reading it into the given buffer rather
+     * than decoding it. UTF-8 never encodes other characters using ASCII bytes, so searching the raw bytes
+     * finds the same matches as searching the text would.
+     */
+    private static boolean mentionsAnnotation(Path file, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        try (FileChannel channel = FileChannel.open(file)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                if (contains(buffer)) {
+                    return true;
+                }
+                // keep the end of what was read, in case the name is split across two reads
+                buffer.position(Math.max(0, buffer.limit() - (ANNOTATION_BYTES.length - 1)));
+                buffer.compact();
+            }
+        }
+        return false;
+    }
 
-            if (problems.hasErrors()) {
-                throw new IllegalStateException(problems.getErrors().toString());
+    private static boolean contains(ByteBuffer buffer) {
+        byte[] bytes = buffer.array();
+        int last = buffer.limit() - ANNOTATION_BYTES.length;
+        outer:
+        for (int i = 0; i <= last; i++) {
+            if (bytes[i] != ANNOTATION_BYTES[0]) {
+                continue;
+            }
+            for (int j = 1; j < ANNOTATION_BYTES.length; j++) {
+                if (bytes[i + j] != ANNOTATION_BYTES[j]) {
+                    continue outer;
+                }
             }
-        } catch (Throwable t) {
-            problems.getErrors().forEach(log::error);
-            throw t;
+            return true;
         }
+        return false;
     }
 }
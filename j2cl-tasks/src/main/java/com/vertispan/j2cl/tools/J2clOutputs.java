@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.tools;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Records which files J2CL wrote for each source, so that a later transpile of the same project can copy the
+ * output of sources that don't need to be transpiled again.
+ *
+ * J2CL writes a copy of each source and of its .native.js file if any, and a .java.js, .impl.java.js and .js.map
+ * file for each type, all in the directory of the package. Types are attributed to the source named in their
+ * sourcemap, so that a source declaring several top level types is handled correctly.
+ */
+public class J2clOutputs {
+    private static class SourceMap {
+        private List<String> sources;
+    }
+
+    // config that the recorded output depends on, if this changes the output can't be reused
+    private String classpathKey;
+    // keyed by the source path as J2CL writes it, relative to the output directory
+    private Map<String, Set<String>> sources = new TreeMap<>();
+
+    public J2clOutputs(String classpathKey) {
+        this.classpathKey = classpathKey;
+    }
+
+    public String getClasspathKey() {
+        return classpathKey;
+    }
+
+    public Map<String, Set<String>> getSources() {
+        return sources;
+    }
+
+    public static Optional<J2clOutputs> read(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return Optional.ofNullable(new Gson().fromJson(reader, J2clOutputs.class));
+        } catch (IOException | JsonParseException e) {
+            return Optional.empty();
+        }
+    }
+
+    public void write(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            new Gson().toJson(this, writer);
+        }
+    }
+
+    /**
+     * Attributes each of the given files, which J2CL just wrote, to the source that produced it.
+     *
+     * @param outputDir the directory J2CL wrote to
+     * @param files paths of the new files, relative to the output directory
+     * @return false if any file couldn't be attributed to a source, in which case this instance shouldn't be
+     * used to reuse output later
+     */
+    public boolean addOutputs(Path outputDir, Collection<String> files) {
+        Map<String, Optional<String>> sourcesByType = new HashMap<>();
+        for (String file : files) {
+            int slash = file.lastIndexOf('/');
+            String dir = file.substring(0, slash + 1);
+            String name = file.substring(slash + 1);
+
+            final Optional<String> source;
+            if (name.endsWith(".java")) {
+                source = Optional.of(file);
+            } else if (name.endsWith(".native_js")) {
+                source = Optional.of(dir + name.substring(0, name.length() - ".native_js".length()) + ".java");
+            } else {
+                String type = stripSuffix(name, ".impl.java.js", ".java.js", ".js.map");
+                if (type == null) {
+                    return false;
+                }
+                Path sourceMap = outputDir.resolve(dir + type + ".js.map");
+                source = sourcesByType.computeIfAbsent(dir + type, ignore -> readSource(sourceMap))
+                        .map(fileName -> dir + fileName);
+            }
+            if (source.isEmpty()) {
+                return false;
+            }
+            sources.computeIfAbsent(source.get(), ignore -> new TreeSet<>()).add(file);
+        }
+        return true;
+    }
+
+    private static String stripSuffix(String name, String... suffixes) {
+        for (String suffix : suffixes) {
+            if (name.endsWith(suffix)) {
+                return name.substring(0, name.length() - suffix.length());
+            }
+        }
+        return null;
+    }
+
+    private static Optional<String> readSource(Path sourceMap) {
+        try (Reader reader = Files.newBufferedReader(sourceMap, StandardCharsets.UTF_8)) {
+            SourceMap map = new Gson().fromJson(reader, SourceMap.class);
+            if (map == null || map.sources == null) {
+                return Optional.empty();
+            }
+            // types with native methods also list the copied .native_js file
+            List<String> javaSources = map.sources.stream()
+                    .filter(source -> source.endsWith(".java"))
+                    .collect(Collectors.toUnmodifiableList());
+            return javaSources.size() == 1 ? Optional.of(javaSources.get(0)) : Optional.empty();
+        } catch (IOException | JsonParseException e) {
+            return Optional.empty();
+        }
+    }
+}
@@ -16,18 +16,23 @@
 package com.vertispan.j2cl.tools;
 
 import com.google.j2cl.common.SourceUtils.FileInfo;
+import com.sun.source.util.JavacTask;
 import com.vertispan.j2cl.build.task.BuildLog;
 
+import javax.annotation.Nullable;
 import javax.lang.model.SourceVersion;
 import javax.tools.*;
 import javax.tools.JavaCompiler.CompilationTask;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -47,9 +52,20 @@ public class Javac {
     List<String> javacOptions;
     JavaCompiler compiler;
     StandardJavaFileManager fileManager;
+    private final List<File> classpath;
+    private final Map<File, ? extends Collection<Path>> knownClasspathContents;
     private DiagnosticCollector<JavaFileObject> listener;
 
     public Javac(BuildLog log, File generatedClassesPath, List<File> sourcePaths, List<File> classpath, File classesDirFile, File bootstrap, Set<String> processors) throws IOException {
+        this(log, generatedClassesPath, sourcePaths, classpath, Collections.emptyMap(), classesDirFile, bootstrap, processors);
+    }
+
+    /**
+     * @param knownClasspathContents classpath directories which won't change during the compile, with the
+     *                               relative paths of their files, so that javac doesn't need to list them
+     */
+    public Javac(BuildLog log, File generatedClassesPath, List<File> sourcePaths, List<File> classpath, Map<File, ? extends Collection<Path>> knownClasspathContents,
+                 File classesDirFile, File bootstrap, Set<String> processors) throws IOException {
         this.log = log;
 //        for (File file : classpath) {
 //            System.out.println(file.getAbsolutePath() + " " + file.exists() + " " + file.isDirectory());
@@ -76,9 +92,19 @@ public class Javac {
         }
         fileManager.setLocation(StandardLocation.CLASS_PATH, classpath);
         fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singleton(classesDirFile));
+        this.classpath = classpath;
+        this.knownClasspathContents = knownClasspathContents;
+    }
+
+    public boolean compile(List<FileInfo> modifiedJavaFiles) throws IOException {
+        return compile(modifiedJavaFiles, null);
     }
 
-    public boolean compile(List<FileInfo> modifiedJavaFiles) {
+    /**
+     * Compiles the given files, optionally recording the dependencies between them for later incremental
+     * compiles. Nothing is written unless the compile succeeds.
+     */
+    public boolean compile(List<FileInfo> modifiedJavaFiles, @Nullable JavacDependencies.Recorder recorder) throws IOException {
         // preCompile java files with javac into classesDir
         Iterable<? extends JavaFileObject> modifiedFileObjects = fileManager.getJavaFileObjectsFromStrings(
                 modifiedJavaFiles.stream()
@@ -88,10 +114,22 @@ public class Javac {
         //TODO pass-non null for "classes" to properly kick apt?
         //TODO consider a different classpath for this tasks, so as to not interfere with everything else?
 
-        CompilationTask task = compiler.getTask(null, fileManager, listener, javacOptions, null, modifiedFileObjects);
+        BufferedOutput output = new BufferedOutput();
+        try (ClasspathIndex classpathIndex = new ClasspathIndex(classpath, knownClasspathContents)) {
+            JavaFileManager taskFileManager = output.wrap(classpathIndex.wrap(fileManager));
+            if (recorder != null) {
+                taskFileManager = recorder.wrap(taskFileManager);
+            }
+            CompilationTask task = compiler.getTask(null, taskFileManager, listener, javacOptions, null, modifiedFileObjects);
+            if (recorder != null) {
+                ((JavacTask) task).addTaskListener(recorder.listener((JavacTask) task));
+            }
 
-        try {
-            return task.call();
+            if (!task.call()) {
+                return false;
+            }
+            output.flush();
+            return true;
         } finally {
             listener.getDiagnostics().forEach(d -> {
                 String messageToLog = d.getMessage(Locale.getDefault());
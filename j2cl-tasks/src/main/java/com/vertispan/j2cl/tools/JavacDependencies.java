@@ -0,0 +1,309 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.tools;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Records which top level types each source file declares and refers to, and which class files it produced,
+ * so that a later compile of the same project can work out which sources need to be compiled again after
+ * some of them change, and which class files can be reused from the previous output.
+ *
+ * References are collected from the attributed source trees rather than from class files, so that uses of
+ * compile-time constants, which javac inlines, are still seen.
+ */
+public class JavacDependencies {
+    public static class SourceInfo {
+        private final Set<String> types = new TreeSet<>();
+        private final Set<String> supertypes = new TreeSet<>();
+        private final Set<String> references = new TreeSet<>();
+        private final Set<String> classFiles = new TreeSet<>();
+        private boolean declaresConstants;
+
+        public Set<String> getTypes() {
+            return types;
+        }
+
+        public Set<String> getClassFiles() {
+            return classFiles;
+        }
+    }
+
+    // config that the recorded output depends on, if this changes the output can't be reused
+    private String classpathKey;
+    // keyed by the source path relative to its source root
+    private Map<String, SourceInfo> sources = new TreeMap<>();
+
+    public JavacDependencies(String classpathKey) {
+        this.classpathKey = classpathKey;
+    }
+
+    public String getClasspathKey() {
+        return classpathKey;
+    }
+
+    public Map<String, SourceInfo> getSources() {
+        return sources;
+    }
+
+    public static Optional<JavacDependencies> read(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return Optional.ofNullable(new Gson().fromJson(reader, JavacDependencies.class));
+        } catch (IOException | JsonParseException e) {
+            return Optional.empty();
+        }
+    }
+
+    public void write(Path file) throws IOException {
+        // only keep references to types in this project, others are tracked as a whole by the classpath
+        Set<String> localTypes = new HashSet<>();
+        sources.values().forEach(info -> localTypes.addAll(info.types));
+        sources.values().forEach(info -> {
+            info.references.retainAll(localTypes);
+            info.supertypes.retainAll(localTypes);
+            info.references.removeAll(info.types);
+        });
+
+        Files.createDirectories(file.getParent());
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            new Gson().toJson(this, writer);
+        }
+    }
+
+    /**
+     * Given the sources which were added, changed or removed since the last compile, finds every other source
+     * that must be compiled again: those which refer to a type declared in a changed source or to any subtype
+     * of one, and, transitively, those which refer to constants declared in a source that is compiled again,
+     * since the old value could have been inlined.
+     *
+     * @param changed sources which were added, modified or removed, relative to their source root
+     * @return sources known from the last compile which should be compiled again, not including the changed
+     * sources themselves
+     */
+    public Set<String> findDependents(Set<String> changed) {
+        Map<String, Set<String>> subtypes = new HashMap<>();
+        Map<String, Set<String>> referencedBy = new HashMap<>();
+        Map<String, String> declaredIn = new HashMap<>();
+        sources.forEach((source, info) -> {
+            info.types.forEach(type -> declaredIn.put(type, source));
+            info.supertypes.forEach(supertype -> subtypes.computeIfAbsent(supertype, ignore -> new HashSet<>()).addAll(info.types));
+            info.references.forEach(type -> referencedBy.computeIfAbsent(type, ignore -> new HashSet<>()).add(source));
+        });
+
+        // types whose shape may have changed, and all types that inherit from them
+        Set<String> affectedTypes = new HashSet<>();
+        Deque<String> work = new ArrayDeque<>();
+        for (String source : changed) {
+            SourceInfo info = sources.get(source);
+            if (info != null) {
+                work.addAll(info.types);
+            }
+        }
+        while (!work.isEmpty()) {
+            String type = work.pop();
+            if (affectedTypes.add(type)) {
+                work.addAll(subtypes.getOrDefault(type, Set.of()));
+            }
+        }
+
+        Set<String> dependents = new TreeSet<>();
+        Deque<String> sourcesToCheck = new ArrayDeque<>();
+        affectedTypes.forEach(type -> {
+            sourcesToCheck.addAll(referencedBy.getOrDefault(type, Set.of()));
+            String source = declaredIn.get(type);
+            if (source != null) {
+                sourcesToCheck.add(source);
+            }
+        });
+        while (!sourcesToCheck.isEmpty()) {
+            String source = sourcesToCheck.pop();
+            if (changed.contains(source) || !dependents.add(source)) {
+                continue;
+            }
+            SourceInfo info = sources.get(source);
+            if (info.declaresConstants) {
+                for (String type : info.types) {
+                    sourcesToCheck.addAll(referencedBy.getOrDefault(type, Set.of()));
+                }
+            }
+        }
+        return dependents;
+    }
+
+    /**
+     * Collects dependencies while javac runs, attach with {@link Javac#compile(java.util.List, Recorder)}.
+     * Results are added to the given instance, replacing any existing entry for each compiled source.
+     */
+    public static class Recorder {
+        private final JavacDependencies dependencies;
+        private final Map<String, String> relativePaths;
+
+        /**
+         * @param relativePaths map from the absolute path of each source file to be compiled, to its path
+         *                      relative to its source root
+         */
+        public Recorder(JavacDependencies dependencies, Map<String, String> relativePaths) {
+            this.dependencies = dependencies;
+            this.relativePaths = relativePaths;
+            for (String relativePath : relativePaths.values()) {
+                dependencies.sources.put(relativePath, new SourceInfo());
+            }
+        }
+
+        private SourceInfo infoFor(JavaFileObject source) {
+            String relativePath = relativePaths.get(Paths.get(source.toUri()).toString());
+            return relativePath == null ? null : dependencies.sources.get(relativePath);
+        }
+
+        JavaFileManager wrap(JavaFileManager fileManager) {
+            return new ForwardingJavaFileManager<>(fileManager) {
+                @Override
+                public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+                    if (kind == JavaFileObject.Kind.CLASS && sibling instanceof JavaFileObject) {
+                        SourceInfo info = infoFor((JavaFileObject) sibling);
+                        if (info != null) {
+                            info.classFiles.add(className.replace('.', '/') + ".class");
+                        }
+                    }
+                    return super.getJavaFileForOutput(location, className, kind, sibling);
+                }
+            };
+        }
+
+        TaskListener listener(JavacTask task) {
+            Trees trees = Trees.instance(task);
+            Elements elements = task.getElements();
+            Types types = task.getTypes();
+            return new TaskListener() {
+                @Override
+                public void finished(TaskEvent e) {
+                    if (e.getKind() != TaskEvent.Kind.ANALYZE || e.getTypeElement() == null) {
+                        return;
+                    }
+                    CompilationUnitTree unit = e.getCompilationUnit();
+                    SourceInfo info = infoFor(unit.getSourceFile());
+                    if (info == null) {
+                        return;
+                    }
+                    TypeElement type = e.getTypeElement();
+                    info.types.add(elements.getBinaryName(type).toString());
+                    for (TypeMirror supertype : types.directSupertypes(type.asType())) {
+                        if (supertype instanceof DeclaredType) {
+                            topLevelName(((DeclaredType) supertype).asElement(), elements).ifPresent(info.supertypes::add);
+                        }
+                    }
+                    info.declaresConstants |= declaresConstants(type);
+
+                    TreePathScanner<Void, Void> scanner = new TreePathScanner<>() {
+                        @Override
+                        public Void visitIdentifier(IdentifierTree node, Void unused) {
+                            record();
+                            return super.visitIdentifier(node, unused);
+                        }
+
+                        @Override
+                        public Void visitMemberSelect(MemberSelectTree node, Void unused) {
+                            record();
+                            return super.visitMemberSelect(node, unused);
+                        }
+
+                        private void record() {
+                            Element element = trees.getElement(getCurrentPath());
+                            if (element != null) {
+                                topLevelName(element, elements).ifPresent(info.references::add);
+                            }
+                        }
+                    };
+                    for (Tree tree : unit.getImports()) {
+                        scanner.scan(new TreePath(new TreePath(unit), tree), null);
+                    }
+                    TreePath path = trees.getPath(type);
+                    if (path != null) {
+                        scanner.scan(path, null);
+                    }
+                }
+            };
+        }
+
+        private static boolean declaresConstants(TypeElement type) {
+            for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+                if (field.getConstantValue() != null) {
+                    return true;
+                }
+            }
+            for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements())) {
+                if (declaresConstants(nested)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static Optional<String> topLevelName(Element element, Elements elements) {
+            while (element != null && element.getEnclosingElement() != null && element.getEnclosingElement().getKind() != ElementKind.PACKAGE) {
+                element = element.getEnclosingElement();
+            }
+            if (element instanceof TypeElement) {
+                return Optional.of(elements.getBinaryName((TypeElement) element).toString());
+            }
+            return Optional.empty();
+        }
+    }
+}
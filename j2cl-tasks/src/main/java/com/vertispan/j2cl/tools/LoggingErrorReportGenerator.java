@@ -29,7 +29,7 @@ public class LoggingErrorReportGenerator implements SortingErrorManager.ErrorRep
     private final Compiler compiler;
     private final BuildLog log;
 
-    LoggingErrorReportGenerator(Compiler compiler, BuildLog log) {
+    public LoggingErrorReportGenerator(Compiler compiler, BuildLog log) {
         this.compiler = compiler;
         this.log = log;
     }
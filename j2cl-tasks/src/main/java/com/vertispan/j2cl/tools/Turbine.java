@@ -0,0 +1,182 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.tools;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.turbine.binder.Binder;
+import com.google.turbine.binder.ClassPath;
+import com.google.turbine.binder.ClassPathBinder;
+import com.google.turbine.binder.bound.ModuleInfo;
+import com.google.turbine.binder.bytecode.BytecodeBoundClass;
+import com.google.turbine.binder.env.Env;
+import com.google.turbine.binder.env.SimpleEnv;
+import com.google.turbine.binder.lookup.SimpleTopLevelIndex;
+import com.google.turbine.binder.lookup.TopLevelIndex;
+import com.google.turbine.binder.sym.ClassSymbol;
+import com.google.turbine.binder.sym.ModuleSymbol;
+import com.google.turbine.deps.Transitive;
+import com.google.turbine.diag.SourceFile;
+import com.google.turbine.diag.TurbineError;
+import com.google.turbine.lower.Lower;
+import com.google.turbine.parse.Parser;
+import com.google.turbine.tree.Tree;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Runs turbine's parse, bind and lower steps directly rather than through its command line entrypoint, so
+ * that headers can be read from and written to directories instead of jars.
+ *
+ * As with turbine's jar output, classes from the classpath which are needed to compile against the output
+ * (supertypes, for example) are emitted along with it, under {@link ClassPathBinder#TRANSITIVE_PREFIX}, so
+ * that projects which depend on this one can usually compile with only their direct dependencies.
+ */
+public class Turbine {
+    // binding the JRE is the most expensive part of a small compile, and it is shared by every project
+    private static final Map<List<String>, ClassPath> BOOT_CLASSPATHS = new LinkedHashMap<>(4, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<String>, ClassPath> eldest) {
+            return size() > 4;
+        }
+    };
+
+    private final ClassPath bootClasspath;
+
+    /**
+     * @param bootClasspath jars with classes that shouldn't be emitted with the output, like the JRE
+     */
+    public Turbine(List<Path> bootClasspath) throws IOException {
+        this.bootClasspath = bootClasspath(bootClasspath);
+    }
+
+    private static ClassPath bootClasspath(List<Path> jars) throws IOException {
+        // keyed on size and modification time too, in case a snapshot jar is replaced while the JVM is running
+        List<String> key = new ArrayList<>();
+        for (Path jar : jars) {
+            key.add(jar.toAbsolutePath() + ":" + Files.size(jar) + ":" + Files.getLastModifiedTime(jar).toMillis());
+        }
+        synchronized (BOOT_CLASSPATHS) {
+            ClassPath classPath = BOOT_CLASSPATHS.get(key);
+            if (classPath == null) {
+                classPath = ClassPathBinder.bindClasspath(jars);
+                BOOT_CLASSPATHS.put(key, classPath);
+            }
+            return classPath;
+        }
+    }
+
+    /**
+     * Compiles the given sources to headers.
+     *
+     * @param sources the source files to compile
+     * @param classpath class files to compile against, keyed by their path relative to their classpath entry,
+     *                  in classpath order
+     * @return the header class files to write, keyed by their path relative to the output directory
+     * @throws TurbineError if the sources can't be compiled against the given classpath
+     */
+    public Map<String, byte[]> compile(List<Path> sources, List<Map<String, Path>> classpath) throws IOException {
+        ImmutableList.Builder<Tree.CompUnit> units = ImmutableList.builder();
+        for (Path source : sources) {
+            units.add(Parser.parse(new SourceFile(source.toString(), Files.readString(source, StandardCharsets.UTF_8))));
+        }
+
+        Binder.BindingResult bound = Binder.bind(units.build(), directoryClassPath(classpath), bootClasspath, Optional.empty());
+        Lower.Lowered lowered = Lower.lowerAll(Lower.LowerOptions.createDefault(), bound.units(), bound.modules(), bound.classPathEnv());
+
+        Map<String, byte[]> output = new LinkedHashMap<>();
+        lowered.bytes().forEach((name, bytes) -> output.put(name + ".class", bytes));
+        Transitive.collectDeps(bootClasspath, bound)
+                .forEach((name, bytes) -> output.put(ClassPathBinder.TRANSITIVE_PREFIX + name + ".class", bytes));
+        return output;
+    }
+
+    /**
+     * Builds a classpath from class files which have already been found on disk. Like a classpath of jars,
+     * the first entry for a class wins, and classes that were only emitted transitively are used if no entry
+     * has the class itself.
+     */
+    private static ClassPath directoryClassPath(List<Map<String, Path>> entries) {
+        Map<ClassSymbol, BytecodeBoundClass> classes = new HashMap<>();
+        Map<ClassSymbol, BytecodeBoundClass> transitive = new HashMap<>();
+        Env<ClassSymbol, BytecodeBoundClass> env = classes::get;
+        for (Map<String, Path> entry : entries) {
+            entry.forEach((relativePath, file) -> {
+                if (!relativePath.endsWith(".class")) {
+                    return;
+                }
+                String name = relativePath.replace('\\', '/');
+                Map<ClassSymbol, BytecodeBoundClass> target = classes;
+                if (name.startsWith(ClassPathBinder.TRANSITIVE_PREFIX)) {
+                    name = name.substring(ClassPathBinder.TRANSITIVE_PREFIX.length());
+                    target = transitive;
+                } else if (name.startsWith("META-INF/")) {
+                    return;
+                }
+                ClassSymbol symbol = new ClassSymbol(name.substring(0, name.length() - ".class".length()));
+                target.putIfAbsent(symbol, new BytecodeBoundClass(symbol, read(file), env, file.toString()));
+            });
+        }
+        transitive.forEach(classes::putIfAbsent);
+
+        TopLevelIndex index = SimpleTopLevelIndex.of(classes.keySet());
+        Env<ModuleSymbol, ModuleInfo> moduleEnv = new SimpleEnv<>(ImmutableMap.of());
+        return new ClassPath() {
+            @Override
+            public Env<ClassSymbol, BytecodeBoundClass> env() {
+                return env;
+            }
+
+            @Override
+            public Env<ModuleSymbol, ModuleInfo> moduleEnv() {
+                return moduleEnv;
+            }
+
+            @Override
+            public TopLevelIndex index() {
+                return index;
+            }
+
+            @Override
+            public Supplier<byte[]> resource(String path) {
+                // only used by annotation processors, which turbine doesn't run here
+                return null;
+            }
+        };
+    }
+
+    private static Supplier<byte[]> read(Path file) {
+        return Suppliers.memoize(() -> {
+            try {
+                return Files.readAllBytes(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+}
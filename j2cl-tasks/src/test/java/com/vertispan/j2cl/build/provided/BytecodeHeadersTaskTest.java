@@ -0,0 +1,137 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.provided;
+
+import com.vertispan.j2cl.build.DiskCache;
+import com.vertispan.j2cl.build.Input;
+import com.vertispan.j2cl.build.Project;
+import com.vertispan.j2cl.build.TaskOutput;
+import com.vertispan.j2cl.build.task.OutputTypes;
+import com.vertispan.j2cl.build.task.TaskContext;
+import com.vertispan.j2cl.build.task.TaskFactory;
+import io.methvin.watcher.hashing.FileHasher;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class BytecodeHeadersTaskTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private static List<DiskCache.CacheEntry> list(Path dir) throws IOException {
+        List<DiskCache.CacheEntry> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                entries.add(new DiskCache.CacheEntry(dir.relativize(file), dir, FileHasher.DEFAULT_FILE_HASHER.hash(file)));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Compiles the source to a new bytecode directory, as the bytecode task would have.
+     */
+    private Path compile(String source) throws IOException {
+        Path sources = temp.newFolder().toPath();
+        Path file = sources.resolve("com/example/Outer.java");
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, source);
+        Path bytecode = temp.newFolder().toPath();
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        assertEquals(0, javac.run(null, null, null, "-d", bytecode.toString(), "-proc:none", file.toString()));
+        return bytecode;
+    }
+
+    /**
+     * Runs the task as the scheduler would, with the given directory as the project's bytecode, and returns the
+     * paths of the files it wrote.
+     */
+    private Set<String> headers(Path bytecode) throws Exception {
+        Project project = new Project("com.example:lib");
+        Path sources = temp.newFolder().toPath();
+        project.setSourceRoots(Collections.singletonList(sources.toString()));
+        project.setDependencies(Collections.emptyList());
+
+        TaskFactory factory = new BytecodeHeadersTask();
+        TaskFactory.Task task = factory.resolve(project, null);
+        for (Input input : factory.inputs) {
+            input.setCurrentContents(new TaskOutput(list(input.getOutputType().equals(OutputTypes.BYTECODE) ? bytecode : sources)));
+        }
+
+        Path output = temp.newFolder().toPath();
+        task.execute(new TaskContext(output, new DeferredBuildLog(), null));
+        return list(output).stream()
+                .map(entry -> entry.getSourcePath().toString().replace('\\', '/'))
+                .collect(Collectors.toSet());
+    }
+
+    @Test
+    public void testAnonymousAndLocalClassesRemoved() throws Exception {
+        Path bytecode = compile("package com.example;\n" +
+                "public class Outer {\n" +
+                "  public static class Member {\n" +
+                "    public class Inner {}\n" +
+                "  }\n" +
+                "  // legal, if unusual, and must not be mistaken for a class javac named\n" +
+                "  public static class $1Member {}\n" +
+                "  public Runnable method() {\n" +
+                "    class Local {\n" +
+                "      class InLocal {}\n" +
+                "    }\n" +
+                "    new Local();\n" +
+                "    return new Runnable() {\n" +
+                "      public void run() {}\n" +
+                "    };\n" +
+                "  }\n" +
+                "}\n");
+        assertEquals(Set.of("com/example/Outer$1", "com/example/Outer$1Local", "com/example/Outer$1Local$InLocal",
+                        "com/example/Outer$Member", "com/example/Outer$Member$Inner", "com/example/Outer$$1Member", "com/example/Outer"),
+                list(bytecode).stream()
+                        .map(entry -> entry.getSourcePath().toString().replace('\\', '/').replace(".class", ""))
+                        .collect(Collectors.toSet()));
+
+        assertEquals(Set.of("com/example/Outer.class", "com/example/Outer$Member.class",
+                        "com/example/Outer$Member$Inner.class", "com/example/Outer$$1Member.class"),
+                headers(bytecode));
+    }
+
+    @Test
+    public void testResourcesCopied() throws Exception {
+        Path bytecode = compile("package com.example;\npublic class Outer {}\n");
+        Files.createDirectories(bytecode.resolve("META-INF/services"));
+        Files.writeString(bytecode.resolve("META-INF/services/com.example.Service"), "com.example.Outer");
+        Files.writeString(bytecode.resolve(BytecodeTask.DEPENDENCIES_FILE), "{}");
+        Files.writeString(bytecode.resolve("com/example/Outer.java"), "package com.example;\npublic class Outer {}\n");
+
+        // generated resources are kept for downstream processors, but not what only the bytecode task reads
+        assertEquals(Set.of("com/example/Outer.class", "META-INF/services/com.example.Service"),
+                headers(bytecode));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.provided;
+
+import com.vertispan.j2cl.build.Project;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class BytecodeTaskTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    /**
+     * Writes a new jar with the given entry and moves it into place, as a build replacing its output would.
+     */
+    private static void writeJar(Path jar, String entry) throws IOException {
+        Path written = Files.createTempFile(jar.getParent(), "new", ".jar");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(written))) {
+            out.putNextEntry(new ZipEntry(entry));
+            out.write("com.example.Processor".getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        Files.move(written, jar, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static Project project() {
+        Project project = new Project("com.example:app");
+        project.setDependencies(Collections.emptyList());
+        return project;
+    }
+
+    @Test
+    public void testChangedJarCheckedAgain() throws IOException {
+        Path jar = temp.newFile("processor.jar").toPath();
+        writeJar(jar, "META-INF/services/javax.annotation.processing.Processor");
+        List<File> extraClasspath = Collections.singletonList(jar.toFile());
+        assertTrue(BytecodeTask.mayRunProcessors(project(), extraClasspath));
+        assertTrue(BytecodeTask.mayRunProcessors(project(), extraClasspath));
+
+        writeJar(jar, "META-INF/services/com.example.SomethingElse");
+        assertFalse(BytecodeTask.mayRunProcessors(project(), extraClasspath));
+    }
+
+    @Test
+    public void testUnreadableJarReported() throws IOException {
+        Path jar = temp.newFile("corrupt.jar").toPath();
+        Files.writeString(jar, "not a jar");
+        // javac couldn't read it either, so rather than guessing, fail while still resolving the build
+        assertThrows(UncheckedIOException.class, () -> BytecodeTask.mayRunProcessors(project(), Collections.singletonList(jar.toFile())));
+    }
+}
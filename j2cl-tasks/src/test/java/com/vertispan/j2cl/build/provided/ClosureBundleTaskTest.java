@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.provided;
+
+import com.vertispan.j2cl.build.task.BuildLog;
+import com.vertispan.j2cl.build.task.TaskContext;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClosureBundleTaskTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+    private final BuildLog log = new BuildLog() {
+        @Override
+        public void debug(String msg) {
+        }
+
+        @Override
+        public void info(String msg) {
+        }
+
+        @Override
+        public void warn(String msg) {
+        }
+
+        @Override
+        public void warn(String msg, Throwable t) {
+        }
+
+        @Override
+        public void warn(Throwable t) {
+        }
+
+        @Override
+        public void error(String msg) {
+            errors.add(msg);
+        }
+
+        @Override
+        public void error(String msg, Throwable t) {
+            errors.add(msg);
+        }
+
+        @Override
+        public void error(Throwable t) {
+            errors.add(t.toString());
+        }
+    };
+
+    private List<ClosureBundleTask.DependencyInfoAndSource> read(Path sources, String file) throws Exception {
+        return ClosureBundleTask.readDependencyInfo(new TaskContext(temp.getRoot().toPath(), log, null), sources, Collections.singletonList(Paths.get(file)));
+    }
+
+    private Path sources(String file, String contents) throws IOException {
+        Path sources = temp.newFolder().toPath();
+        Files.writeString(sources.resolve(file), contents);
+        return sources;
+    }
+
+    @Test
+    public void testDependencyInfo() throws Exception {
+        Path sources = sources("app.js", "goog.module('app');\nconst lib = goog.require('lib');\n");
+        ClosureBundleTask.DependencyInfoAndSource info = read(sources, "app.js").get(0);
+        assertEquals(Collections.singletonList("app"), info.getProvides());
+        assertEquals(Arrays.asList("goog", "lib"), info.getRequiredSymbols());
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void testParseErrorsLoggedEachTime() throws Exception {
+        Path sources = sources("broken.js", "goog.module('broken');\nconst = ;\n");
+        read(sources, "broken.js");
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0), errors.get(0).contains("broken.js"));
+
+        // not taken from the cache, so the next build reports it too
+        read(sources, "broken.js");
+        assertEquals(2, errors.size());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.provided;
+
+import com.google.javascript.jscomp.deps.DependencyInfo;
+import com.google.javascript.jscomp.deps.SimpleDependencyInfo;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DependencyInfoIndexTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private static final List<DependencyInfo> INFOS = Arrays.asList(
+            SimpleDependencyInfo.builder("base.js", "base.js")
+                    .setProvides("goog")
+                    .build(),
+            SimpleDependencyInfo.builder("app/app.js", "app/app.js")
+                    .setProvides("app", "app.Main")
+                    .setRequires(DependencyInfo.Require.googRequireSymbol("goog"), DependencyInfo.Require.googRequireSymbol("lib"))
+                    .setTypeRequires("lib.Type")
+                    .setLoadFlags(Map.of("module", "goog", "lang", "es6"))
+                    .build(),
+            SimpleDependencyInfo.builder("externs.js", "externs.js")
+                    .setHasExternsAnnotation(true)
+                    .setHasNoCompileAnnotation(true)
+                    .build()
+    );
+    private static final long[] ENDS = {100, 100, 1_000_000_000_000L};
+    private static final DependencyInfoIndex.Layout[] LAYOUTS = {
+            new DependencyInfoIndex.Layout(3, 1, 5, 2),
+            DependencyInfoIndex.Layout.EMPTY,
+            new DependencyInfoIndex.Layout(300, 0, 0, 0)
+    };
+    private static final byte[][] HASHES = {
+            {1, 2, 3},
+            {},
+            "a longer hash".getBytes(StandardCharsets.UTF_8)
+    };
+
+    private Path write(boolean eval) throws IOException {
+        Path file = temp.getRoot().toPath().resolve(DependencyInfoIndex.FILE_NAME);
+        DependencyInfoIndex.write(file, eval, INFOS, ENDS, LAYOUTS, HASHES);
+        return file;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        DependencyInfoIndex index = DependencyInfoIndex.read(write(true)).get();
+        assertTrue(index.isEval());
+        assertEquals(INFOS.size(), index.size());
+
+        long start = 0;
+        for (int i = 0; i < INFOS.size(); i++) {
+            DependencyInfo expected = INFOS.get(i);
+            DependencyInfoIndex.Entry entry = index.get(i);
+            assertEquals(expected.getName(), entry.getName());
+            assertEquals(expected.getPathRelativeToClosureBase(), entry.getPathRelativeToClosureBase());
+            assertEquals(expected.getProvides(), entry.getProvides());
+            assertEquals(expected.getRequiredSymbols(), entry.getRequiredSymbols());
+            assertEquals(expected.getTypeRequires(), entry.getTypeRequires());
+            assertEquals(expected.getLoadFlags(), entry.getLoadFlags());
+            assertEquals(expected.getHasExternsAnnotation(), entry.getHasExternsAnnotation());
+            assertEquals(expected.getHasNoCompileAnnotation(), entry.getHasNoCompileAnnotation());
+
+            assertEquals(start, entry.getStart());
+            assertEquals(ENDS[i], entry.getEnd());
+            start = ENDS[i];
+            assertEquals(LAYOUTS[i].getLines(), entry.getLayout().getLines());
+            assertEquals(LAYOUTS[i].getSourceLine(), entry.getLayout().getSourceLine());
+            assertEquals(LAYOUTS[i].getSourceColumn(), entry.getLayout().getSourceColumn());
+            assertEquals(LAYOUTS[i].getSourceLines(), entry.getLayout().getSourceLines());
+            assertArrayEquals(HASHES[i], entry.getHash());
+        }
+
+        assertFalse(DependencyInfoIndex.read(write(false)).get().isEval());
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        Path file = temp.getRoot().toPath().resolve(DependencyInfoIndex.FILE_NAME);
+        DependencyInfoIndex.write(file, false, Collections.emptyList(), new long[0], new DependencyInfoIndex.Layout[0], new byte[0][]);
+        assertTrue(DependencyInfoIndex.read(file).get().isEmpty());
+    }
+
+    @Test
+    public void testOtherFormatsIgnored() throws IOException {
+        Path file = write(false);
+        byte[] bytes = Files.readAllBytes(file);
+
+        // written by another version of the plugin
+        bytes[4]++;
+        Files.write(file, bytes);
+        assertFalse(DependencyInfoIndex.read(file).isPresent());
+
+        // the old json format, or anything else
+        Files.writeString(file, "{\"app/app.js\":{}}");
+        assertFalse(DependencyInfoIndex.read(file).isPresent());
+        Files.write(file, new byte[0]);
+        assertFalse(DependencyInfoIndex.read(file).isPresent());
+
+        assertFalse(DependencyInfoIndex.read(temp.getRoot().toPath().resolve("missing.bin")).isPresent());
+    }
+
+    @Test
+    public void testDecodedLazily() throws IOException {
+        DependencyInfoIndex index = DependencyInfoIndex.read(write(false)).get();
+        // what is needed to tell whether a file changed is available without decoding its lists
+        for (DependencyInfoIndex.Entry entry : index) {
+            entry.getName();
+            entry.getEnd();
+            entry.getHash();
+            assertFalse(entry.isDecoded());
+        }
+
+        DependencyInfoIndex.Entry app = index.get(1);
+        assertEquals(Arrays.asList("goog", "lib"), app.getRequiredSymbols());
+        assertTrue(app.isDecoded());
+        // decoding one entry leaves the others alone
+        assertFalse(index.get(0).isDecoded());
+        assertFalse(index.get(2).isDecoded());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.provided;
+
+import com.google.gson.Gson;
+import com.google.j2cl.common.SourceUtils;
+import com.vertispan.j2cl.build.task.ChangedCachedPath;
+import com.vertispan.j2cl.tools.J2clOutputs;
+import com.vertispan.j2cl.tools.JavacDependencies;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class J2clTaskTest {
+    private static SourceUtils.FileInfo source(String path) {
+        return SourceUtils.FileInfo.create("/src/" + path, path);
+    }
+
+    private static List<String> paths(List<SourceUtils.FileInfo> sources) {
+        return sources.stream().map(SourceUtils.FileInfo::originalPath).collect(Collectors.toList());
+    }
+
+    private static J2clOutputs previous() {
+        J2clOutputs previous = new J2clOutputs("key");
+        previous.getSources().put("a/A.java", Set.of("a/A.java", "a/A.java.js", "a/A$1.java.js"));
+        previous.getSources().put("a/B.java", Set.of("a/B.java", "a/B.java.js"));
+        previous.getSources().put("a/C.java", Set.of("a/C.java", "a/C.java.js"));
+        return previous;
+    }
+
+    @Test
+    public void testPlanModified() {
+        J2clOutputs outputs = new J2clOutputs("key");
+        Optional<List<SourceUtils.FileInfo>> plan = J2clTask.planIncrementalTranspile(previous(), outputs,
+                Arrays.asList(source("a/A.java"), source("a/B.java"), source("a/C.java")), Set.of("a/B.java"));
+        assertEquals(Optional.of(Collections.singletonList("a/B.java")), plan.map(J2clTaskTest::paths));
+        assertEquals(Set.of("a/A.java", "a/C.java"), outputs.getSources().keySet());
+        assertEquals(previous().getSources().get("a/A.java"), outputs.getSources().get("a/A.java"));
+    }
+
+    @Test
+    public void testPlanAdded() {
+        J2clOutputs outputs = new J2clOutputs("key");
+        Optional<List<SourceUtils.FileInfo>> plan = J2clTask.planIncrementalTranspile(previous(), outputs,
+                Arrays.asList(source("a/A.java"), source("a/B.java"), source("a/C.java"), source("a/D.java")), Set.of("a/D.java"));
+        assertEquals(Optional.of(Collections.singletonList("a/D.java")), plan.map(J2clTaskTest::paths));
+        assertEquals(Set.of("a/A.java", "a/B.java", "a/C.java"), outputs.getSources().keySet());
+    }
+
+    @Test
+    public void testPlanRemoved() {
+        J2clOutputs outputs = new J2clOutputs("key");
+        Optional<List<SourceUtils.FileInfo>> plan = J2clTask.planIncrementalTranspile(previous(), outputs,
+                Arrays.asList(source("a/A.java"), source("a/C.java")), Collections.emptySet());
+        assertEquals(Optional.of(Collections.emptyList()), plan.map(J2clTaskTest::paths));
+        // the removed source's output isn't carried over
+        assertEquals(Set.of("a/A.java", "a/C.java"), outputs.getSources().keySet());
+    }
+
+    @Test
+    public void testPlanRenamed() {
+        J2clOutputs outputs = new J2clOutputs("key");
+        Optional<List<SourceUtils.FileInfo>> plan = J2clTask.planIncrementalTranspile(previous(), outputs,
+                Arrays.asList(source("a/A.java"), source("a/C.java"), source("b/B.java")), Set.of("b/B.java"));
+        assertEquals(Optional.of(Collections.singletonList("b/B.java")), plan.map(J2clTaskTest::paths));
+        assertEquals(Set.of("a/A.java", "a/C.java"), outputs.getSources().keySet());
+    }
+
+    @Test
+    public void testPlanUnknownSource() {
+        // a source that wasn't changed, but the last build has no record of
+        Optional<List<SourceUtils.FileInfo>> plan = J2clTask.planIncrementalTranspile(previous(), new J2clOutputs("key"),
+                Arrays.asList(source("a/A.java"), source("a/E.java")), Collections.emptySet());
+        assertFalse(plan.isPresent());
+    }
+
+    private static ChangedCachedPath change(ChangedCachedPath.ChangeType type, String path) {
+        return new ChangedCachedPath() {
+            @Override
+            public ChangeType changeType() {
+                return type;
+            }
+
+            @Override
+            public Path getSourcePath() {
+                return Paths.get(path);
+            }
+
+            @Override
+            public Optional<Path> getNewAbsolutePath() {
+                return type == ChangeType.REMOVED ? Optional.empty() : Optional.of(Paths.get("/headers", path));
+            }
+        };
+    }
+
+    // A.java declares a.A, and a second top level type a.Helper; B.java refers to a.A; C.java refers to B
+    private static JavacDependencies dependencies() {
+        return new Gson().fromJson("{\"classpathKey\":\"key\",\"sources\":{"
+                + "\"a/A.java\":{\"types\":[\"a.A\",\"a.Helper\"],\"supertypes\":[],\"references\":[],\"classFiles\":[],\"declaresConstants\":false},"
+                + "\"a/B.java\":{\"types\":[\"a.B\"],\"supertypes\":[],\"references\":[\"a.A\"],\"classFiles\":[],\"declaresConstants\":false},"
+                + "\"a/C.java\":{\"types\":[\"a.C\"],\"supertypes\":[],\"references\":[\"a.B\"],\"classFiles\":[],\"declaresConstants\":false}"
+                + "}}", JavacDependencies.class);
+    }
+
+    @Test
+    public void testNestedClassHeaders() {
+        // nested, anonymous and secondary top level classes all belong to A.java
+        for (String header : Arrays.asList("a/A.class", "a/A$Inner.class", "a/A$1.class", "a/Helper.class")) {
+            Optional<Set<String>> affected = J2clTask.sourcesAffectedByHeaders(dependencies(),
+                    Collections.singletonList(change(ChangedCachedPath.ChangeType.MODIFIED, header)));
+            assertEquals(header, Optional.of(Set.of("a/A.java", "a/B.java")), affected);
+        }
+    }
+
+    @Test
+    public void testRemovedHeaders() {
+        // anything still referring to a removed type changed too, so is already being transpiled
+        Optional<Set<String>> affected = J2clTask.sourcesAffectedByHeaders(dependencies(),
+                Collections.singletonList(change(ChangedCachedPath.ChangeType.REMOVED, "a/A$Inner.class")));
+        assertEquals(Optional.of(Collections.emptySet()), affected);
+    }
+
+    @Test
+    public void testUnknownHeader() {
+        // a type javac didn't see in any source, such as one added since it last ran
+        Optional<Set<String>> affected = J2clTask.sourcesAffectedByHeaders(dependencies(), Arrays.asList(
+                change(ChangedCachedPath.ChangeType.MODIFIED, "a/B.class"),
+                change(ChangedCachedPath.ChangeType.ADDED, "a/D.class")));
+        assertTrue(affected.isEmpty());
+    }
+}
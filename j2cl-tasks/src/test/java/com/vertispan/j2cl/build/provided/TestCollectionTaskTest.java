@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.build.provided;
+
+import com.vertispan.j2cl.build.DiskCache;
+import com.vertispan.j2cl.build.Input;
+import com.vertispan.j2cl.build.Project;
+import com.vertispan.j2cl.build.TaskOutput;
+import com.vertispan.j2cl.build.task.OutputTypes;
+import com.vertispan.j2cl.build.task.TaskContext;
+import com.vertispan.j2cl.build.task.TaskFactory;
+import io.methvin.watcher.hashing.FileHasher;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestCollectionTaskTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private static List<DiskCache.CacheEntry> list(Path dir) throws IOException {
+        List<DiskCache.CacheEntry> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                entries.add(new DiskCache.CacheEntry(dir.relativize(file), dir, FileHasher.DEFAULT_FILE_HASHER.hash(file)));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Runs the task as the scheduler would, with the given directories as the project's input sources and
+     * bytecode, and returns the paths of the files it collected.
+     */
+    private Set<String> collect(Map<String, Path> outputs) throws Exception {
+        Project project = new Project("com.example:tests");
+        project.setSourceRoots(Collections.singletonList(outputs.get(OutputTypes.INPUT_SOURCES).toString()));
+        project.setDependencies(Collections.emptyList());
+
+        TaskFactory factory = new TestCollectionTask();
+        TaskFactory.Task task = factory.resolve(project, null);
+        for (Input input : factory.inputs) {
+            input.setCurrentContents(new TaskOutput(list(outputs.get(input.getOutputType()))));
+        }
+
+        Path output = temp.newFolder().toPath();
+        task.execute(new TaskContext(output, new DeferredBuildLog(), null));
+        return list(output).stream()
+                .map(entry -> entry.getSourcePath().toString().replace('\\', '/'))
+                .collect(Collectors.toSet());
+    }
+
+    @Test
+    public void testSummaryInSourceRoot() throws Exception {
+        // as the junit processor writes it, when run by maven or by a separate apt task
+        Path generatedSources = temp.newFolder("generated-test-sources").toPath();
+        Files.writeString(generatedSources.resolve("test_summary.json"), "{\"tests\":[\"com/example/MyTest.testsuite\"]}");
+        Files.createDirectories(generatedSources.resolve("com/example"));
+        Files.writeString(generatedSources.resolve("com/example/MyTest.testsuite"), "goog.module('MyTest');");
+        Files.writeString(generatedSources.resolve("com/example/MyTest_Adapter.java"), "class MyTest_Adapter {}");
+        Path bytecode = temp.newFolder("bytecode").toPath();
+        Files.writeString(bytecode.resolve("MyTest.class"), "");
+
+        assertEquals(Set.of("test_summary.json", "com/example/MyTest.testsuite"),
+                collect(Map.of(OutputTypes.INPUT_SOURCES, generatedSources, OutputTypes.BYTECODE, bytecode)));
+    }
+
+    @Test
+    public void testSummaryInBytecode() throws Exception {
+        Path sources = temp.newFolder("sources").toPath();
+        Files.writeString(sources.resolve("MyTest.java"), "class MyTest {}");
+        Path bytecode = temp.newFolder("bytecode").toPath();
+        Files.writeString(bytecode.resolve("test_summary.json"), "{\"tests\":[]}");
+
+        assertEquals(Set.of("test_summary.json"),
+                collect(Map.of(OutputTypes.INPUT_SOURCES, sources, OutputTypes.BYTECODE, bytecode)));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.tools;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class ClasspathIndexTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    /**
+     * Writes a new jar and moves it into place, as a build replacing its output would, so that a ZipFile already
+     * open on the old jar can still read it.
+     */
+    private static void writeJar(Path jar, String contents) throws IOException {
+        Path written = Files.createTempFile(jar.getParent(), "new", ".jar");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(written))) {
+            out.putNextEntry(new ZipEntry("com/example/App.class"));
+            out.write(contents.getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        Files.move(written, jar, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Lists the only class in the given index's jar, the way javac would.
+     */
+    private static JavaFileObject listApp(ClasspathIndex index) throws IOException {
+        StandardJavaFileManager fileManager = ToolProvider.getSystemJavaCompiler().getStandardFileManager(null, null, null);
+        JavaFileManager wrapped = index.wrap(fileManager);
+        Iterator<JavaFileObject> files = wrapped.list(StandardLocation.CLASS_PATH, "com.example", EnumSet.of(JavaFileObject.Kind.CLASS), false).iterator();
+        JavaFileObject file = files.next();
+        assertEquals("com.example.App", wrapped.inferBinaryName(StandardLocation.CLASS_PATH, file));
+        return file;
+    }
+
+    private static String read(JavaFileObject file) throws IOException {
+        try (InputStream in = file.openInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private ClasspathIndex index(Path jar) throws IOException {
+        return new ClasspathIndex(Collections.singletonList(jar.toFile()), Collections.emptyMap());
+    }
+
+    @Test
+    public void testJarReused() throws IOException {
+        Path jar = temp.newFile("lib.jar").toPath();
+        writeJar(jar, "v1");
+        JavaFileObject first;
+        try (ClasspathIndex index = index(jar)) {
+            first = listApp(index);
+        }
+        try (ClasspathIndex index = index(jar)) {
+            // the same jar, still open even though the first index was closed
+            assertEquals("v1", read(listApp(index)));
+        }
+        assertEquals("v1", read(first));
+    }
+
+    @Test
+    public void testChangedJarClosesOldOne() throws IOException {
+        Path jar = temp.newFile("lib.jar").toPath();
+        writeJar(jar, "v1");
+        JavaFileObject old;
+        try (ClasspathIndex index = index(jar)) {
+            old = listApp(index);
+        }
+
+        writeJar(jar, "version 2");
+        try (ClasspathIndex index = index(jar)) {
+            assertEquals("version 2", read(listApp(index)));
+        }
+        // nothing uses the old jar, so it was closed as soon as it was replaced
+        assertThrows(IllegalStateException.class, () -> read(old));
+    }
+
+    @Test
+    public void testChangedJarStaysOpenWhileInUse() throws IOException {
+        Path jar = temp.newFile("lib.jar").toPath();
+        writeJar(jar, "v1");
+        ClasspathIndex running = index(jar);
+        JavaFileObject old = listApp(running);
+
+        writeJar(jar, "version 2");
+        try (ClasspathIndex index = index(jar)) {
+            assertEquals("version 2", read(listApp(index)));
+        }
+        // a compile that started before the jar changed can finish with what it saw
+        assertEquals("v1", read(old));
+
+        running.close();
+        assertThrows(IllegalStateException.class, () -> read(old));
+        // closing again does nothing
+        running.close();
+    }
+
+    @Test
+    public void testEvictedJarsClosed() throws IOException {
+        Path first = temp.newFile("first.jar").toPath();
+        writeJar(first, "first");
+        JavaFileObject firstApp;
+        try (ClasspathIndex index = index(first)) {
+            firstApp = listApp(index);
+        }
+
+        // push the first jar out of the cache
+        List<Path> others = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            Path jar = temp.newFile("other" + i + ".jar").toPath();
+            writeJar(jar, "other" + i);
+            others.add(jar);
+        }
+        for (Path jar : others) {
+            index(jar).close();
+        }
+
+        assertThrows(IllegalStateException.class, () -> read(firstApp));
+    }
+
+    @Test
+    public void testFailedIndexReleasesJars() throws IOException {
+        Path jar = temp.newFile("lib.jar").toPath();
+        writeJar(jar, "v1");
+        Path corrupt = temp.newFile("corrupt.jar").toPath();
+        try (OutputStream out = Files.newOutputStream(corrupt)) {
+            out.write("not a jar".getBytes(StandardCharsets.UTF_8));
+        }
+
+        JavaFileObject app;
+        try (ClasspathIndex index = index(jar)) {
+            app = listApp(index);
+        }
+        assertThrows(IOException.class, () -> new ClasspathIndex(List.of(jar.toFile(), corrupt.toFile()), Collections.emptyMap()));
+
+        // the failed index gave back the jar it had already acquired, so replacing it closes it
+        writeJar(jar, "version 2");
+        index(jar).close();
+        assertThrows(IllegalStateException.class, () -> read(app));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.tools;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileMirrorTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path cache;
+    private Path webapp;
+
+    @Before
+    public void setUp() throws IOException {
+        cache = temp.newFolder("cache").toPath();
+        webapp = temp.newFolder("webapp").toPath();
+        Files.createDirectories(cache.resolve("app"));
+        Files.writeString(cache.resolve("app/app.js"), "var app;");
+    }
+
+    @Test
+    public void testCopyDoesNotLink() throws IOException {
+        FileMirror.copy(cache, webapp);
+        Path copy = webapp.resolve("app/app.js");
+        assertFalse(Files.isSameFile(cache.resolve("app/app.js"), copy));
+
+        // editing the copy leaves the cache alone
+        Files.writeString(copy, "var edited;");
+        assertEquals("var app;", Files.readString(cache.resolve("app/app.js")));
+    }
+
+    @Test
+    public void testCopyReplacesLink() throws IOException {
+        // as an earlier build would have left it
+        FileMirror.mirror(cache, webapp, false, null);
+        Path target = webapp.resolve("app/app.js");
+        assertTrue(Files.isSameFile(cache.resolve("app/app.js"), target));
+
+        FileMirror.copy(cache, webapp);
+        assertFalse(Files.isSameFile(cache.resolve("app/app.js"), target));
+        Files.writeString(target, "var edited;");
+        assertEquals("var app;", Files.readString(cache.resolve("app/app.js")));
+    }
+
+    @Test
+    public void testCopyReplacesChangedFiles() throws IOException {
+        FileMirror.copy(cache, webapp);
+        Files.writeString(webapp.resolve("app/app.js"), "var edited;");
+        Files.writeString(webapp.resolve("other.js"), "var other;");
+
+        FileMirror.copy(cache, webapp);
+        assertEquals("var app;", Files.readString(webapp.resolve("app/app.js")));
+        // files the source doesn't have are left alone
+        assertEquals("var other;", Files.readString(webapp.resolve("other.js")));
+    }
+
+    @Test
+    public void testMirrorLinksImmutableFiles() throws IOException {
+        Path other = temp.newFolder("other-cache-entry").toPath();
+        FileMirror.mirror(cache, other, false, null);
+        assertTrue(Files.isSameFile(cache.resolve("app/app.js"), other.resolve("app/app.js")));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.tools;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class J2clOutputsTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path outputDir;
+
+    private void write(String path, String contents) throws IOException {
+        Path file = outputDir.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, contents, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the files J2CL would write for a type, with a sourcemap naming the given sources.
+     */
+    private void writeType(String dir, String type, String... sources) throws IOException {
+        write(dir + type + ".java.js", "");
+        write(dir + type + ".impl.java.js", "");
+        StringBuilder map = new StringBuilder("{\"version\":3,\"sources\":[");
+        for (int i = 0; i < sources.length; i++) {
+            map.append(i == 0 ? "" : ",").append('"').append(sources[i]).append('"');
+        }
+        write(dir + type + ".js.map", map.append("]}").toString());
+    }
+
+    private static Set<String> typeFiles(String dir, String type) {
+        return Set.of(dir + type + ".java.js", dir + type + ".impl.java.js", dir + type + ".js.map");
+    }
+
+    @Test
+    public void testAttributesTypesToSources() throws IOException {
+        outputDir = temp.newFolder("out").toPath();
+        write("com/example/Foo.java", "");
+        writeType("com/example/", "Foo", "Foo.java");
+        // nested, anonymous and local classes are written as their own types, but map back to the same source
+        writeType("com/example/", "Foo$Inner", "Foo.java");
+        writeType("com/example/", "Foo$1", "Foo.java");
+        writeType("com/example/", "Foo$1Local", "Foo.java");
+        // a second top level type in the same source
+        writeType("com/example/", "Helper", "Foo.java");
+
+        write("com/example/Bar.java", "");
+        write("com/example/Bar.native_js", "");
+        // a type with native methods also lists its .native_js in the sourcemap
+        writeType("com/example/", "Bar", "Bar.java", "Bar.native_js");
+
+        J2clOutputs outputs = new J2clOutputs("key");
+        try (Stream<Path> files = Files.walk(outputDir)) {
+            assertTrue(outputs.addOutputs(outputDir, files.filter(Files::isRegularFile)
+                    .map(file -> outputDir.relativize(file).toString().replace('\\', '/'))
+                    .collect(Collectors.toList())));
+        }
+
+        Set<String> foo = new TreeSet<>();
+        foo.add("com/example/Foo.java");
+        for (String type : Arrays.asList("Foo", "Foo$Inner", "Foo$1", "Foo$1Local", "Helper")) {
+            foo.addAll(typeFiles("com/example/", type));
+        }
+        Set<String> bar = new TreeSet<>(typeFiles("com/example/", "Bar"));
+        bar.add("com/example/Bar.java");
+        bar.add("com/example/Bar.native_js");
+        assertEquals(Map.of("com/example/Foo.java", foo, "com/example/Bar.java", bar), outputs.getSources());
+    }
+
+    @Test
+    public void testUnattributableOutput() throws IOException {
+        outputDir = temp.newFolder("out").toPath();
+        write("com/example/Foo.java.js", "");
+        // no sourcemap to say where it came from
+        assertFalse(new J2clOutputs("key").addOutputs(outputDir, Collections.singletonList("com/example/Foo.java.js")));
+
+        // a sourcemap that names more than one Java source can't be attributed either
+        writeType("com/example/", "Both", "Foo.java", "Bar.java");
+        assertFalse(new J2clOutputs("key").addOutputs(outputDir, Collections.singletonList("com/example/Both.java.js")));
+
+        // nor can a file J2CL wouldn't write
+        assertFalse(new J2clOutputs("key").addOutputs(outputDir, Collections.singletonList("com/example/Foo.txt")));
+    }
+
+    @Test
+    public void testReadWrite() throws IOException {
+        outputDir = temp.newFolder("out").toPath();
+        write("com/example/Foo.java", "");
+        writeType("com/example/", "Foo", "Foo.java");
+        J2clOutputs outputs = new J2clOutputs("classpath;bootstrap");
+        assertTrue(outputs.addOutputs(outputDir, Arrays.asList("com/example/Foo.java", "com/example/Foo.java.js", "com/example/Foo.impl.java.js", "com/example/Foo.js.map")));
+
+        Path file = temp.getRoot().toPath().resolve("meta/outputs.json");
+        outputs.write(file);
+        Optional<J2clOutputs> read = J2clOutputs.read(file);
+        assertTrue(read.isPresent());
+        assertEquals("classpath;bootstrap", read.get().getClasspathKey());
+        assertEquals(outputs.getSources(), read.get().getSources());
+
+        assertFalse(J2clOutputs.read(temp.getRoot().toPath().resolve("missing.json")).isPresent());
+        Files.writeString(file, "{not json");
+        assertFalse(J2clOutputs.read(file).isPresent());
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright © 2023 j2cl-maven-plugin authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.vertispan.j2cl.tools;
+
+import com.google.j2cl.common.SourceUtils.FileInfo;
+import com.vertispan.j2cl.build.task.BuildLog;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaFileObject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JavacDependenciesTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path sourceDir;
+    private Path classesDir;
+    private final List<String> errors = new ArrayList<>();
+
+    private final BuildLog log = new BuildLog() {
+        @Override
+        public void debug(String msg) {
+        }
+
+        @Override
+        public void info(String msg) {
+        }
+
+        @Override
+        public void warn(String msg) {
+        }
+
+        @Override
+        public void warn(String msg, Throwable t) {
+        }
+
+        @Override
+        public void warn(Throwable t) {
+        }
+
+        @Override
+        public void error(String msg) {
+            errors.add(msg);
+        }
+
+        @Override
+        public void error(String msg, Throwable t) {
+            errors.add(msg);
+        }
+
+        @Override
+        public void error(Throwable t) {
+            errors.add(t.toString());
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        sourceDir = temp.newFolder("src").toPath();
+        classesDir = temp.newFolder("classes").toPath();
+    }
+
+    private void write(String relativePath, String contents) throws IOException {
+        Path file = sourceDir.resolve(relativePath);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, contents);
+    }
+
+    /**
+     * Compiles the given sources, which must already be written, recording their dependencies into the given
+     * instance.
+     */
+    private void compile(JavacDependencies dependencies, Set<String> processors, String... relativePaths) throws IOException {
+        List<FileInfo> sources = new ArrayList<>();
+        Map<String, String> absoluteToRelative = new HashMap<>();
+        for (String relativePath : relativePaths) {
+            String absolutePath = sourceDir.resolve(relativePath).toString();
+            sources.add(FileInfo.create(absolutePath, relativePath));
+            absoluteToRelative.put(absolutePath, relativePath);
+        }
+        List<File> classpath = new ArrayList<>();
+        classpath.add(classesDir.toFile());
+        File generatedDir = null;
+        if (!processors.isEmpty()) {
+            // the test's own classes, so javac can find the processor
+            classpath.add(testClasses().toFile());
+            generatedDir = temp.newFolder().toPath().toFile();
+        }
+        Javac javac = new Javac(log, generatedDir, Collections.singletonList(sourceDir.toFile()), classpath,
+                classesDir.toFile(), bootstrap(), processors);
+        boolean success = javac.compile(sources, new JavacDependencies.Recorder(dependencies, absoluteToRelative));
+        assertTrue(String.join("\n", errors), success);
+    }
+
+    private void compile(JavacDependencies dependencies, String... relativePaths) throws IOException {
+        compile(dependencies, Collections.emptySet(), relativePaths);
+    }
+
+    private static File bootstrap() {
+        // the running JDK's own classes, which is enough for these sources
+        return Paths.get(System.getProperty("java.home"), "lib", "jrt-fs.jar").toFile();
+    }
+
+    private static Path testClasses() {
+        try {
+            return Paths.get(JavacDependenciesTest.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    public void testConstantsInlined() throws IOException {
+        write("p/Constants.java", "package p; public class Constants { public static final int VALUE = 1; }");
+        // javac inlines the value, so the class file won't mention Constants at all
+        write("p/UsesConstant.java", "package p; class UsesConstant { int value = Constants.VALUE; }");
+        // declares a constant derived from another, so its users need to see the new value too
+        write("p/Derived.java", "package p; class Derived { static final int DOUBLED = Constants.VALUE * 2; }");
+        write("p/UsesDerived.java", "package p; class UsesDerived { int value = Derived.DOUBLED; }");
+        write("p/UsesUsesConstant.java", "package p; class UsesUsesConstant { int value = new UsesConstant().value; }");
+        write("p/Unrelated.java", "package p; class Unrelated { }");
+
+        JavacDependencies dependencies = new JavacDependencies("");
+        compile(dependencies, "p/Constants.java", "p/UsesConstant.java", "p/Derived.java", "p/UsesDerived.java",
+                "p/UsesUsesConstant.java", "p/Unrelated.java");
+
+        assertEquals(Set.of("p/UsesConstant.java", "p/Derived.java", "p/UsesDerived.java"),
+                dependencies.findDependents(Set.of("p/Constants.java")));
+        // no constants in UsesConstant, so only its direct users are affected
+        assertEquals(Set.of("p/UsesUsesConstant.java"), dependencies.findDependents(Set.of("p/UsesConstant.java")));
+    }
+
+    @Test
+    public void testSubtypesPropagated() throws IOException {
+        write("p/Base.java", "package p; public class Base { public void method() { } }");
+        write("p/Sub.java", "package p; public class Sub extends Base { }");
+        write("p/SubSub.java", "package p; public class SubSub extends Sub { }");
+        // only mentions the subtype, but calls a method that Base declares
+        write("p/UsesSubSub.java", "package p; class UsesSubSub { void run(SubSub s) { s.method(); } }");
+        write("p/Api.java", "package p; public interface Api { }");
+        write("p/Impl.java", "package p; class Impl implements Api { }");
+        write("p/UsesImpl.java", "package p; class UsesImpl { Object o = new Impl(); }");
+
+        JavacDependencies dependencies = new JavacDependencies("");
+        compile(dependencies, "p/Base.java", "p/Sub.java", "p/SubSub.java", "p/UsesSubSub.java",
+                "p/Api.java", "p/Impl.java", "p/UsesImpl.java");
+
+        assertEquals(Set.of("p/Sub.java", "p/SubSub.java", "p/UsesSubSub.java"), dependencies.findDependents(Set.of("p/Base.java")));
+        assertEquals(Set.of("p/Impl.java", "p/UsesImpl.java"), dependencies.findDependents(Set.of("p/Api.java")));
+        // a subtype changing doesn't affect its supertype
+        assertEquals(Set.of("p/SubSub.java", "p/UsesSubSub.java"), dependencies.findDependents(Set.of("p/Sub.java")));
+    }
+
+    @Test
+    public void testNestedTypesRecordedAsTopLevel() throws IOException {
+        write("p/Outer.java", "package p; public class Outer { public static class Inner { } }");
+        write("p/UsesInner.java", "package p; class UsesInner { Outer.Inner inner; Runnable r = new Runnable() { public void run() { } }; }");
+
+        JavacDependencies dependencies = new JavacDependencies("");
+        compile(dependencies, "p/Outer.java", "p/UsesInner.java");
+
+        assertEquals(Set.of("p.Outer"), dependencies.getSources().get("p/Outer.java").getTypes());
+        assertEquals(Set.of("p/Outer.class", "p/Outer$Inner.class"), dependencies.getSources().get("p/Outer.java").getClassFiles());
+        assertEquals(Set.of("p/UsesInner.class", "p/UsesInner$1.class"), dependencies.getSources().get("p/UsesInner.java").getClassFiles());
+        assertEquals(Set.of("p/UsesInner.java"), dependencies.findDependents(Set.of("p/Outer.java")));
+    }
+
+    @Test
+    public void testRemovedClasses() throws IOException {
+        write("p/Shared.java", "package p; public class Shared { } class Secondary { }");
+        write("p/UsesSecondary.java", "package p; class UsesSecondary { Secondary s; }");
+        write("p/Gone.java", "package p; public class Gone { }");
+        write("p/UsesGone.java", "package p; class UsesGone { Gone g; }");
+
+        JavacDependencies dependencies = new JavacDependencies("");
+        compile(dependencies, "p/Shared.java", "p/UsesSecondary.java", "p/Gone.java", "p/UsesGone.java");
+        assertEquals(Set.of("p.Shared", "p.Secondary"), dependencies.getSources().get("p/Shared.java").getTypes());
+
+        // a deleted source is passed as changed, and everything that used its types must be compiled again
+        assertEquals(Set.of("p/UsesGone.java"), dependencies.findDependents(Set.of("p/Gone.java")));
+        // as must users of a type removed from a source that still exists
+        assertEquals(Set.of("p/UsesSecondary.java"), dependencies.findDependents(Set.of("p/Shared.java")));
+
+        // compiling the source again replaces what was recorded, so the removed class file isn't copied forward
+        write("p/Shared.java", "package p; public class Shared { }");
+        compile(dependencies, "p/Shared.java");
+        assertEquals(Set.of("p.Shared"), dependencies.getSources().get("p/Shared.java").getTypes());
+        assertEquals(Set.of("p/Shared.class"), dependencies.getSources().get("p/Shared.java").getClassFiles());
+
+        // sources unknown to the last compile have no dependents
+        assertEquals(Set.of(), dependencies.findDependents(Set.of("p/New.java")));
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        write("p/A.java", "package p; public class A { String s; java.util.List<String> list; }");
+        write("p/B.java", "package p; class B extends A { }");
+
+        JavacDependencies dependencies = new JavacDependencies("classpath");
+        compile(dependencies, "p/A.java", "p/B.java");
+        Path file = temp.getRoot().toPath().resolve("out/dependencies.json");
+        dependencies.write(file);
+
+        JavacDependencies read = JavacDependencies.read(file).get();
+        assertEquals("classpath", read.getClasspathKey());
+        assertEquals(dependencies.getSources().keySet(), read.getSources().keySet());
+        assertEquals(Set.of("p/B.java"), read.findDependents(Set.of("p/A.java")));
+        // only types in this project are kept, the classpath is tracked as a whole
+        String json = Files.readString(file);
+        assertFalse(json, json.contains("java.lang.String"));
+        assertFalse(json, json.contains("java.util.List"));
+
+        Files.writeString(file, "{not json");
+        assertFalse(JavacDependencies.read(file).isPresent());
+        assertFalse(JavacDependencies.read(temp.getRoot().toPath().resolve("missing.json")).isPresent());
+    }
+
+    /**
+     * Generates a class for each type named App, referring back to it.
+     */
+    @SupportedAnnotationTypes("*")
+    public static class GeneratingProcessor extends AbstractProcessor {
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            for (Element element : roundEnv.getRootElements()) {
+                if (element.getSimpleName().contentEquals("App")) {
+                    try {
+                        JavaFileObject file = processingEnv.getFiler().createSourceFile("p.App_Generated", element);
+                        try (Writer writer = file.openWriter()) {
+                            writer.write("package p; class App_Generated { App app; }");
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    @Test
+    public void testProcessorOutputNotRecorded() throws IOException {
+        write("p/App.java", "package p; public class App { }");
+
+        JavacDependencies dependencies = new JavacDependencies("");
+        compile(dependencies, Set.of(GeneratingProcessor.class.getName()), "p/App.java");
+
+        // the generated class was written, but isn't attributed to any source, and nothing records that it
+        // depends on App - this is why BytecodeTask doesn't track dependencies when a processor might run
+        assertTrue(Files.exists(classesDir.resolve("p/App_Generated.class")));
+        Map<String, Set<String>> classFiles = new LinkedHashMap<>();
+        dependencies.getSources().forEach((source, info) -> classFiles.put(source, info.getClassFiles()));
+        assertEquals(Map.of("p/App.java", Set.of("p/App.class")), classFiles);
+        assertEquals(Set.of(), dependencies.findDependents(Set.of("p/App.java")));
+    }
+}